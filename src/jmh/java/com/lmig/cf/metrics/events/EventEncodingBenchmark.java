@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
+
+/**
+ * Compares encoding a batch of Ops Metrics events for the Insights Insert
+ * API with a reused {@link EventEncoder} against the stream per batch it
+ * replaced. Run with {@code -prof gc} (the default {@code jmh.args}) to see
+ * that the reused encoder allocates next to nothing per batch once warmed up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventEncodingBenchmark {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final EventEncoder encoder = new EventEncoder();
+    private List<Event> events;
+
+    @Setup
+    public void setUp() {
+        events = new ArrayList<Event>();
+        for (int i = 0; i < 1000; i++) {
+            OpsMetricsMetric metric = OpsMetricsMetric.from("org.cloudfoundry:deployment=cf,job=router-" + i % 8
+                    + ",index=" + i + ",ip=10.187.0." + i % 250, i * 0.5,
+                    "router.responses[component=app,dea_index=4,status=5xx]", "sandbox");
+            events.add(new Event(metric.getType(), metric.getAttributes()));
+        }
+    }
+
+    @Benchmark
+    public int pooledEncoder() throws IOException {
+        return encoder.array(events).gzip().getLength();
+    }
+
+    @Benchmark
+    public int streamPerBatch() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(events.size() * 64);
+        try (JsonGenerator json = JSON.createGenerator(new GZIPOutputStream(bytes))) {
+            json.writeStartArray();
+            for (Event event : events) {
+                json.writeStartObject();
+                json.writeStringField("eventType", event.getType());
+                json.writeNumberField("timestamp", event.getTimestamp());
+                for (Map.Entry<String, Object> attribute : event.getAttributes().entrySet()) {
+                    InsightsInsertSink.writeAttribute(json, attribute.getKey(), attribute.getValue());
+                }
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+        return bytes.toByteArray().length;
+    }
+}
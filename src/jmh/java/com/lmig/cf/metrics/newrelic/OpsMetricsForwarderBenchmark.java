@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.newrelic;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.events.InsightsAgentSink;
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
+import com.lmig.cf.metrics.opsmetrics.CloudFoundryMBeans;
+import com.lmig.cf.metrics.opsmetrics.MBeanCollector;
+import com.newrelic.api.agent.Insights;
+
+/**
+ * Measures a whole Ops Metrics collection cycle, from the in-memory MBean
+ * server through the {@link EventPublisher} queue to a stub {@link Insights}
+ * that only consumes the events. The publisher blocks when its queue is full
+ * so publishing keeps up with collection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OpsMetricsForwarderBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    private int beans;
+
+    @Param({ "false", "true" })
+    public boolean delta;
+
+    private MBeanCollector collector;
+    private EventPublisher publisher;
+    private OpsMetricsForwarder forwarder;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        collector = new MBeanCollector(4, 10000, 60000);
+        Insights insights = new Insights() {
+            @Override
+            public void recordCustomEvent(String eventType, Map<String, Object> attributes) {
+                blackhole.consume(attributes);
+            }
+        };
+        publisher = new EventPublisher(new InsightsAgentSink(insights), beans * 50, 500, 1000, 1, "block");
+        forwarder = new OpsMetricsForwarder(
+                CloudFoundryMBeans.opsMetrics(CloudFoundryMBeans.server(beans).getServer(), collector),
+                publisher, new ChangeTracker(delta, 0, 10, new String[] { "router.responses" }, 500000),
+                "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        collector.shutdown();
+        publisher.shutdown();
+    }
+
+    @Benchmark
+    public void forwardOpsMetricsToInsights() {
+        forwarder.forwardOpsMetricsToInsights();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.Map;
+
+import javax.management.MBeanServer;
+
+/**
+ * Builds in-memory MBean servers shaped like an Ops Metrics server for a
+ * foundation of a given size: mostly DEAs and routers with the system
+ * gauges every BOSH job reports, plus the nested router and logging
+ * attributes the Elastic Runtime jobs report.
+ */
+public final class CloudFoundryMBeans {
+
+    private static final String[] JOBS = { "DEA", "DEA", "DEA", "DEA", "Router", "CloudController",
+            "HealthManager", "NATS", "etcd", "uaa" };
+    private static final String[] STATUSES = { "2xx", "3xx", "4xx", "5xx" };
+    private static final String[] LOG_LEVELS = { "fatal", "error", "warn", "info" };
+
+    private CloudFoundryMBeans() {
+    }
+
+    public static FakeOpsMetricsServer server(int beans) throws Exception {
+        FakeOpsMetricsServer server = new FakeOpsMetricsServer();
+        populate(server, beans);
+        return server;
+    }
+
+    public static void populate(FakeOpsMetricsServer server, int beans) throws Exception {
+        for (int i = 0; i < beans; i++) {
+            String job = JOBS[i % JOBS.length];
+            String deployment = i % 2 == 0 ? "untitled_dev" : "cf-ff8aaad5ee70d9fd796b";
+            server.addJob(deployment, job, i / JOBS.length, "10.187." + (i / 250) + "." + (i % 250),
+                    attributes(job, i));
+        }
+    }
+
+    /**
+     * Returns an {@link OpsMetrics} reading straight from the given server
+     * without any JMX remoting.
+     */
+    public static OpsMetrics opsMetrics(MBeanServer server, MBeanCollector collector) {
+        JmxConnectionManager connections = new JmxConnectionManager("in-memory",
+                () -> new FakeJmxConnector(server));
+        return new OpsMetrics("in-memory", connections, collector, new MBeanSchemaCache(600000), MBeanFilter.ALL, false,
+                true);
+    }
+
+    private static Map<String, Object> attributes(String job, int i) {
+        Map<String, Object> attributes = FakeOpsMetricsServer.attributes(
+                "system.cpu.user", 0.2 + (i % 10) / 10.0,
+                "system.cpu.sys", 0.1,
+                "system.cpu.wait", 0.0,
+                "system.mem.percent", 43.0,
+                "system.mem.kb", 1826112L,
+                "system.swap.percent", 0.0,
+                "system.swap.kb", 0L,
+                "system.load.1m", 0.35,
+                "system.disk.system.percent", 51.0,
+                "system.disk.ephemeral.percent", 12.0,
+                "system.disk.persistent.percent", 3.0,
+                "system.healthy", 1,
+                "uptime", 86400L + i,
+                "healthy", "true");
+        for (String level : LOG_LEVELS) {
+            attributes.put("log_count[level=" + level + ",stack=lucid64]", i % 7);
+        }
+        if ("Router".equals(job)) {
+            attributes.put("router.requests_per_sec", 120.0);
+            for (int dea = 0; dea < 4; dea++) {
+                for (String status : STATUSES) {
+                    attributes.put("router.responses[component=app,dea_index=" + dea + ",status=" + status + "]",
+                            1000L * dea + i);
+                }
+            }
+        }
+        return attributes;
+    }
+}
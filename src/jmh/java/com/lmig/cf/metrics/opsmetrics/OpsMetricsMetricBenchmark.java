@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the single-pass {@link OpsMetricsMetric} parser with the regular
+ * expression based one it replaced, along with building the Insights event
+ * attributes of a parsed metric. Run with {@code -prof gc} (the default
+ * {@code jmh.args}) to compare bytes allocated per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpsMetricsMetricBenchmark {
+
+    private static final String[] ATTRIBUTES = {
+            "system.cpu.user",
+            "system.mem.percent",
+            "router.requests_per_sec",
+            "router.responses[component=app,dea_index=4,status=5xx]",
+            "log_count[level=fatal,stack=lucid64]" };
+
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        names = new String[200];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("org.cloudfoundry:deployment=cf-ff8aaad5ee70d9fd796b,job=dea-partition-%d,"
+                    + "index=%d,ip=10.187.%d.%d", i % 8, i, i / 250, i % 250);
+        }
+        parsed = OpsMetricsMetric.from(names[0], 45.0, ATTRIBUTES[3], "sandbox");
+        legacyParsed = LegacyOpsMetricsMetric.from(names[0], 45.0, ATTRIBUTES[3], "sandbox");
+    }
+
+    private OpsMetricsMetric parsed;
+    private LegacyOpsMetricsMetric legacyParsed;
+
+    @Benchmark
+    public LegacyOpsMetricsMetric regexParser() {
+        int i = next++;
+        return LegacyOpsMetricsMetric.from(names[i % names.length], 0.2, ATTRIBUTES[i % ATTRIBUTES.length],
+                "sandbox");
+    }
+
+    @Benchmark
+    public OpsMetricsMetric singlePassParser() {
+        int i = next++;
+        return OpsMetricsMetric.from(names[i % names.length], 0.2, ATTRIBUTES[i % ATTRIBUTES.length], "sandbox");
+    }
+
+    @Benchmark
+    public Map<String, Object> legacyAttributes() {
+        return legacyParsed.getAttributes();
+    }
+
+    @Benchmark
+    public Map<String, Object> attributes() {
+        return parsed.getAttributes();
+    }
+}
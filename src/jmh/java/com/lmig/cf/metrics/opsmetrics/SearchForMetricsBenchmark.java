@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a full {@link OpsMetrics#searchForMetrics} pass over an in-memory
+ * MBean server shaped like an Ops Metrics server. Sample time mode reports
+ * latency percentiles for a scrape.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchForMetricsBenchmark {
+
+    @Param({ "100", "1000", "10000" })
+    private int beans;
+
+    private MBeanServer server;
+    private MBeanCollector collector;
+    private OpsMetrics opsMetrics;
+    private ObjectName query;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = CloudFoundryMBeans.server(beans).getServer();
+        collector = new MBeanCollector(4, 10000, 60000);
+        opsMetrics = CloudFoundryMBeans.opsMetrics(server, collector);
+        query = new ObjectName("org.cloudfoundry:deployment=*,job=*,index=*,ip=*");
+    }
+
+    @TearDown
+    public void tearDown() {
+        collector.shutdown();
+    }
+
+    @Benchmark
+    public List<JmxMetric> searchForMetrics() throws Exception {
+        return opsMetrics.searchForMetrics(server, query);
+    }
+}
@@ -17,13 +17,11 @@ package com.lmig.cf.metrics;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.scheduling.annotation.EnableScheduling;
 
 /**
  * @author David Ehringer
  */
 @SpringBootApplication
-@EnableScheduling
 public class Application {
 
     public static void main(String[] args) {
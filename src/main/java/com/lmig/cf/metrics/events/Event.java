@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.util.Map;
+
+/**
+ * A custom Insights event waiting to be published.
+ */
+public class Event {
+
+    private final String type;
+    private final Map<String, Object> attributes;
+    private final long timestamp;
+
+    public Event(String type, Map<String, Object> attributes) {
+        this(type, attributes, System.currentTimeMillis());
+    }
+
+    public Event(String type, Map<String, Object> attributes, long timestamp) {
+        this.type = type;
+        this.attributes = attributes;
+        this.timestamp = timestamp;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public Map<String, Object> getAttributes() {
+        return attributes;
+    }
+
+    /**
+     * When the event was collected, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "Event [type=" + type + ", attributes=" + attributes + "]";
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * A compact map of event attributes: a key array shared by every event with
+ * the same attributes and an array of values of its own. Compared with a
+ * {@code HashMap} an event costs two objects instead of a table and a node
+ * per attribute. Lookups scan the keys, which is faster than hashing for
+ * the dozen or so attributes of an event.
+ * <p>
+ * The shared keys may end with spare keys that are not yet part of the map,
+ * such as {@code total} for counters; putting the next spare key takes its
+ * place without copying. Putting any other new key copies the keys.
+ * Entries cannot be removed.
+ */
+public final class EventAttributes extends AbstractMap<String, Object> {
+
+    private String[] keys;
+    private Object[] values;
+    private int size;
+    private boolean sharedKeys = true;
+
+    /**
+     * A map of the first {@code size} of {@code keys}, all with
+     * {@code null} values.
+     */
+    public EventAttributes(String[] keys, int size) {
+        this.keys = keys;
+        this.values = new Object[keys.length];
+        this.size = size;
+    }
+
+    /**
+     * Sets the value of the {@code index}th key.
+     */
+    public void set(int index, Object value) {
+        values[index] = value;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        if (size == keys.length || !keys[size].equals(key)) {
+            if (size == keys.length) {
+                values = Arrays.copyOf(values, size + 4);
+            }
+            keys = Arrays.copyOf(keys, values.length);
+            keys[size] = key;
+            sharedKeys = false;
+        }
+        values[size++] = value;
+        return null;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(keys[i], values[i]);
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Entries();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    boolean hasSharedKeys() {
+        return sharedKeys;
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final class Entries implements Iterator<Map.Entry<String, Object>> {
+
+        private int index;
+
+        @Override
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        @Override
+        public Map.Entry<String, Object> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return new Entry(index++);
+        }
+    }
+
+    /**
+     * The attribute at an index, reading and writing through to the map.
+     */
+    private final class Entry implements Map.Entry<String, Object> {
+
+        private final int index;
+
+        Entry(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public String getKey() {
+            return keys[index];
+        }
+
+        @Override
+        public Object getValue() {
+            return values[index];
+        }
+
+        @Override
+        public Object setValue(Object value) {
+            Object previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+            return getKey().equals(other.getKey()) && Objects.equals(getValue(), other.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return getKey().hashCode() ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public String toString() {
+            return getKey() + "=" + getValue();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Encodes batches of events as JSON into a buffer it keeps from one batch to
+ * the next, optionally gzip compressing them with a {@link Deflater} it also
+ * keeps, so a sink that encodes every batch with the same encoder stops
+ * allocating buffers once they have grown to the size of its batches.
+ * Buffers that grew beyond {@value #MAX_RETAINED_BYTES} bytes for an unusual
+ * batch are let go before the next one.
+ * <p>
+ * An encoder is not thread safe; sinks with more than one publisher thread
+ * keep a pool of them.
+ */
+public class EventEncoder {
+
+    static final int MAX_RETAINED_BYTES = 4 * 1024 * 1024;
+
+    private static final int INITIAL_BYTES = 64 * 1024;
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private Buffer buffer = new Buffer();
+    private Buffer spare = new Buffer();
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Encodes {@code events} as a JSON array, as posted to the Insights
+     * Insert API.
+     */
+    public EventEncoder array(List<Event> events) throws IOException {
+        buffer.reset();
+        try (JsonGenerator json = JSON.createGenerator(buffer)) {
+            json.writeStartArray();
+            for (Event event : events) {
+                write(json, event);
+            }
+            json.writeEndArray();
+        }
+        return this;
+    }
+
+    /**
+     * Encodes {@code events} as JSON objects, each followed by a new line.
+     */
+    public EventEncoder lines(List<Event> events) throws IOException {
+        buffer.reset();
+        try (JsonGenerator json = JSON.createGenerator(buffer)) {
+            json.setRootValueSeparator(null);
+            for (Event event : events) {
+                write(json, event);
+                json.writeRaw('\n');
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Compresses what was encoded last into the gzip format.
+     */
+    public EventEncoder gzip() {
+        spare.reset();
+        spare.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        deflater.reset();
+        deflater.setInput(buffer.bytes, 0, buffer.count);
+        deflater.finish();
+        while (!deflater.finished()) {
+            spare.ensureCapacity(spare.count + 1024);
+            spare.count += deflater.deflate(spare.bytes, spare.count, spare.bytes.length - spare.count);
+        }
+        crc.reset();
+        crc.update(buffer.bytes, 0, buffer.count);
+        spare.writeIntLittleEndian((int) crc.getValue());
+        spare.writeIntLittleEndian(buffer.count);
+        Buffer encoded = spare;
+        spare = buffer;
+        buffer = encoded;
+        return this;
+    }
+
+    /**
+     * The buffer holding what was encoded last, in its first
+     * {@link #getLength()} bytes. It is overwritten by the next batch.
+     */
+    public byte[] getBytes() {
+        return buffer.bytes;
+    }
+
+    public int getLength() {
+        return buffer.count;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer.bytes, 0, buffer.count);
+    }
+
+    static void write(JsonGenerator json, Event event) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("eventType", event.getType());
+        json.writeNumberField("timestamp", event.getTimestamp());
+        for (Map.Entry<String, Object> attribute : event.getAttributes().entrySet()) {
+            InsightsInsertSink.writeAttribute(json, attribute.getKey(), attribute.getValue());
+        }
+        json.writeEndObject();
+    }
+
+    private static final class Buffer extends OutputStream {
+
+        private byte[] bytes = new byte[INITIAL_BYTES];
+        private int count;
+
+        void reset() {
+            if (bytes.length > MAX_RETAINED_BYTES) {
+                bytes = new byte[INITIAL_BYTES];
+            }
+            count = 0;
+        }
+
+        void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length * 2)];
+                System.arraycopy(bytes, 0, grown, 0, count);
+                bytes = grown;
+            }
+        }
+
+        void writeIntLittleEndian(int value) {
+            ensureCapacity(count + 4);
+            bytes[count++] = (byte) value;
+            bytes[count++] = (byte) (value >>> 8);
+            bytes[count++] = (byte) (value >>> 16);
+            bytes[count++] = (byte) (value >>> 24);
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+    }
+}
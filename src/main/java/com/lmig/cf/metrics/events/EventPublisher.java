@@ -0,0 +1,258 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decouples collection from publishing. Forwarders hand events to a bounded
+ * queue and return immediately; one or more publisher threads take events
+ * off the queue in batches of up to {@code publisher.batch.size}, waiting at
+ * most {@code publisher.flush.interval} milliseconds for a batch to fill, and
+ * hand them to the configured {@link EventSink}. When the queue is full
+ * events are either dropped or the forwarder blocks until there is room,
+ * depending on {@code publisher.overflow}.
+ * <p>
+ * A {@link FanOutSink} already queues events for each of its sinks, so a
+ * publisher given one hands events straight to those queues instead of
+ * queueing them itself. An event is then dropped when no sink has room for
+ * it, and the published and failed counts and queue depth are the totals
+ * over the sinks.
+ */
+@Component
+public class EventPublisher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventPublisher.class);
+
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    public enum OverflowPolicy {
+        DROP, BLOCK
+    }
+
+    private final EventSink sink;
+    private final FanOutSink fanOut;
+    private final BlockingQueue<Event> queue;
+    private final int batchSize;
+    private final long flushInterval;
+    private final OverflowPolicy overflowPolicy;
+    private final List<Thread> publishers = new ArrayList<Thread>();
+    private volatile boolean running = true;
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong publishNanos = new AtomicLong();
+    private final AtomicLong maxPublishNanos = new AtomicLong();
+
+    @Autowired
+    public EventPublisher(EventSink sink,
+            @Value("${publisher.queue.capacity:10000}") int queueCapacity,
+            @Value("${publisher.batch.size:500}") int batchSize,
+            @Value("${publisher.flush.interval:1000}") long flushInterval,
+            @Value("${publisher.threads:1}") int threads,
+            @Value("${publisher.overflow:drop}") String overflowPolicy) {
+        this(sink, queueCapacity, batchSize, flushInterval, threads, overflowPolicy, "event-publisher");
+    }
+
+    /**
+     * A publisher whose threads are named after {@code name}, for when
+     * several publishers feed different sinks.
+     */
+    public EventPublisher(EventSink sink, int queueCapacity, int batchSize, long flushInterval, int threads,
+            String overflowPolicy, String name) {
+        this.sink = sink;
+        this.fanOut = sink instanceof FanOutSink ? (FanOutSink) sink : null;
+        this.queue = new ArrayBlockingQueue<Event>(fanOut == null ? queueCapacity : 1);
+        this.batchSize = Math.max(1, batchSize);
+        this.flushInterval = flushInterval;
+        this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+        for (int i = 0; fanOut == null && i < Math.max(1, threads); i++) {
+            Thread publisher = new Thread(this::run, name + "-" + (i + 1));
+            publisher.setDaemon(true);
+            publishers.add(publisher);
+            publisher.start();
+        }
+    }
+
+    /**
+     * Queues an event for publishing. Returns {@code false} if the event was
+     * dropped because the queue is full.
+     */
+    public boolean publish(String eventType, Map<String, Object> attributes) {
+        return publish(new Event(eventType, attributes));
+    }
+
+    /**
+     * Queues an event that was already collected, keeping its timestamp.
+     */
+    public boolean publish(Event event) {
+        if (fanOut != null) {
+            if (fanOut.offer(event)) {
+                return true;
+            }
+        } else if (overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                queue.put(event);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (queue.offer(event)) {
+            return true;
+        }
+        if (dropped.incrementAndGet() % 1000 == 1) {
+            LOG.warn("Publish queue is full. {} events dropped so far.", dropped.get());
+        }
+        return false;
+    }
+
+    private void run() {
+        List<Event> batch = new ArrayList<Event>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                fill(batch);
+            } catch (InterruptedException e) {
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                deliver(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Fills the batch until it is full or the flush interval has passed since
+     * its first event. Waits in short slices so shutdown is noticed promptly.
+     */
+    private void fill(List<Event> batch) throws InterruptedException {
+        long deadline = 0;
+        while (running && batch.size() < batchSize) {
+            long wait = IDLE_POLL_NANOS;
+            if (!batch.isEmpty()) {
+                wait = Math.min(wait, deadline - System.nanoTime());
+                if (wait <= 0) {
+                    return;
+                }
+            }
+            Event next = queue.poll(wait, TimeUnit.NANOSECONDS);
+            if (next != null) {
+                if (batch.isEmpty()) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                }
+                batch.add(next);
+                queue.drainTo(batch, batchSize - batch.size());
+            } else if (batch.isEmpty()) {
+                return;
+            }
+        }
+        if (!running) {
+            queue.drainTo(batch, batchSize - batch.size());
+        }
+    }
+
+    private void deliver(List<Event> batch) {
+        long start = System.nanoTime();
+        try {
+            sink.publish(batch);
+            published.addAndGet(batch.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.addAndGet(batch.size());
+            LOG.error("Interrupted while publishing {} events", batch.size());
+        } catch (PartialPublishException e) {
+            int unsent = e.getUnsent().size();
+            published.addAndGet(batch.size() - unsent);
+            failed.addAndGet(unsent);
+            LOG.error("Unable to publish {} of {} events", unsent, batch.size(), e.getCause());
+        } catch (Exception e) {
+            failed.addAndGet(batch.size());
+            LOG.error("Unable to publish {} events", batch.size(), e);
+        }
+        long elapsed = System.nanoTime() - start;
+        batches.incrementAndGet();
+        publishNanos.addAndGet(elapsed);
+        maxPublishNanos.accumulateAndGet(elapsed, Math::max);
+        LOG.debug("Published {} events in {} ms. Queue depth {}, {} dropped so far.", batch.size(),
+                TimeUnit.NANOSECONDS.toMillis(elapsed), queue.size(), dropped.get());
+    }
+
+    /**
+     * Stops accepting new batches and publishes whatever is still queued,
+     * waiting up to the flush interval plus five seconds.
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        long deadline = System.currentTimeMillis() + flushInterval + TimeUnit.SECONDS.toMillis(5);
+        for (Thread publisher : publishers) {
+            publisher.join(Math.max(1, deadline - System.currentTimeMillis()));
+            publisher.interrupt();
+        }
+        if (!queue.isEmpty()) {
+            LOG.warn("{} events were not published before shutdown", queue.size());
+        }
+    }
+
+    EventSink getSink() {
+        return sink;
+    }
+
+    public int getQueueDepth() {
+        return fanOut == null ? queue.size() : fanOut.getQueueDepth();
+    }
+
+    public long getPublished() {
+        return fanOut == null ? published.get() : fanOut.getPublished();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return fanOut == null ? failed.get() : fanOut.getFailed();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public double getAveragePublishMillis() {
+        long count = batches.get();
+        return count == 0 ? 0 : publishNanos.get() / (count * 1e6);
+    }
+
+    public double getMaxPublishMillis() {
+        return maxPublishNanos.get() / 1e6;
+    }
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.util.List;
+
+/**
+ * A destination for batches of events taken off the {@link EventPublisher}
+ * queue. Implementations are only called from publisher threads; a batch is
+ * considered failed as a whole when an exception is thrown, unless it is a
+ * {@link PartialPublishException} naming the events that were not sent.
+ */
+public interface EventSink {
+
+    void publish(List<Event> events) throws Exception;
+}
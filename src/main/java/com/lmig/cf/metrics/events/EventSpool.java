@@ -0,0 +1,516 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only queue of events on disk. Events are appended to numbered
+ * segment files, a new segment being started when the current one reaches
+ * {@code segmentBytes}. Each event is one record: its length, a CRC32 of
+ * its contents and the event itself in a compact binary form. Events are
+ * read from the oldest segment and only removed when {@link #commit()}
+ * confirms they were delivered; the read position is saved in a
+ * {@code position} file so that a restarted drain carries on where it left
+ * off. Delivery is therefore at least once: the events of a batch being
+ * delivered when the process died are read again.
+ * <p>
+ * When the segments would grow beyond {@code maxBytes} the oldest segment
+ * is deleted with whatever events it still holds. A record cut short by a
+ * crash fails its checksum and is truncated when the spool is opened.
+ * <p>
+ * All methods are synchronized; the spool is written by the publisher
+ * threads and read by a single replay thread.
+ */
+public class EventSpool implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventSpool.class);
+
+    private static final String SUFFIX = ".spool";
+    private static final String POSITION = "position";
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte FLOAT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    private FileChannel writer;
+    private FileChannel reader;
+    private long headOffset;
+    private long peekOffset = -1;
+    private int peekEvents;
+    private long[] peekEnds = new long[16];
+    private long bytes;
+    private long events;
+    private long evicted;
+
+    public EventSpool(Path directory, long maxBytes, long segmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.min(segmentBytes, maxBytes);
+        recover();
+    }
+
+    /**
+     * Appends {@code batch} to the last segment, starting a new segment or
+     * evicting the oldest ones first as needed.
+     */
+    public synchronized void append(List<Event> batch) throws IOException {
+        buffer.clear();
+        for (Event event : batch) {
+            int start = buffer.position();
+            buffer = ensure(buffer, HEADER_BYTES);
+            buffer.position(start + HEADER_BYTES);
+            encode(event);
+            int length = buffer.position() - start - HEADER_BYTES;
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER_BYTES, length);
+            buffer.putInt(start, length);
+            buffer.putInt(start + 4, (int) crc.getValue());
+        }
+        buffer.flip();
+        int incoming = buffer.remaining();
+        Segment tail = segments.getLast();
+        if (tail.bytes > 0 && tail.bytes + incoming > segmentBytes) {
+            tail = roll();
+        }
+        while (bytes + incoming > maxBytes && segments.size() > 1) {
+            evict();
+        }
+        try {
+            while (buffer.hasRemaining()) {
+                writer.write(buffer);
+            }
+            writer.force(false);
+        } catch (IOException e) {
+            writer.truncate(tail.bytes);
+            throw e;
+        }
+        tail.bytes += incoming;
+        tail.events += batch.size();
+        bytes += incoming;
+        events += batch.size();
+    }
+
+    /**
+     * Reads up to {@code max} of the oldest events without removing them.
+     * The same events are returned again until they are committed. A batch
+     * never spans segments, so it may hold fewer events than there are.
+     */
+    public synchronized List<Event> peek(int max) throws IOException {
+        List<Event> batch = new ArrayList<Event>();
+        Segment head = segments.getFirst();
+        while (headOffset == head.bytes && head != segments.getLast()) {
+            remove(head);
+            head = segments.getFirst();
+        }
+        long offset = headOffset;
+        while (batch.size() < max && offset < head.bytes) {
+            Event event = read(reader(head), offset);
+            offset += HEADER_BYTES + buffer.limit();
+            if (batch.size() == peekEnds.length) {
+                peekEnds = Arrays.copyOf(peekEnds, peekEnds.length * 2);
+            }
+            peekEnds[batch.size()] = offset;
+            batch.add(event);
+        }
+        peekOffset = offset;
+        peekEvents = batch.size();
+        return batch;
+    }
+
+    /**
+     * Removes the events returned by the last {@link #peek(int)}, unless
+     * they were evicted in the meantime.
+     */
+    public synchronized void commit() throws IOException {
+        commit(peekEvents);
+    }
+
+    /**
+     * Removes the first {@code delivered} events returned by the last
+     * {@link #peek(int)}, unless they were evicted in the meantime. The rest
+     * are returned again by the next peek.
+     */
+    public synchronized void commit(int delivered) throws IOException {
+        delivered = Math.min(delivered, peekEvents);
+        if (peekOffset < 0 || delivered <= 0) {
+            peekOffset = -1;
+            return;
+        }
+        Segment head = segments.getFirst();
+        headOffset = peekEnds[delivered - 1];
+        head.events -= delivered;
+        events -= delivered;
+        peekOffset = -1;
+        if (headOffset == head.bytes && head != segments.getLast()) {
+            remove(head);
+        }
+        savePosition();
+    }
+
+    public synchronized boolean isEmpty() {
+        return events == 0;
+    }
+
+    /**
+     * The number of events waiting to be delivered.
+     */
+    public synchronized long getEvents() {
+        return events;
+    }
+
+    /**
+     * The size of the segments on disk, including delivered events that are
+     * still in the oldest segment.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * The number of events deleted undelivered to keep the spool within its
+     * size cap.
+     */
+    public synchronized long getEvicted() {
+        return evicted;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeReader();
+        writer.close();
+    }
+
+    private void recover() throws IOException {
+        List<Long> sequences = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                sequences.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        sequences.sort(null);
+        long[] position = readPosition();
+        for (long sequence : sequences) {
+            Segment segment = new Segment(sequence, directory.resolve(sequence + SUFFIX));
+            if (sequence < position[0]) {
+                Files.delete(segment.path);
+                continue;
+            }
+            long from = sequence == position[0] ? position[1] : 0;
+            scan(segment, from);
+            if (segments.isEmpty()) {
+                headOffset = Math.min(from, segment.bytes);
+            }
+            segments.add(segment);
+            bytes += segment.bytes;
+            events += segment.events;
+        }
+        if (events > 0) {
+            LOG.info("Found {} undelivered events in {} spool segments in {}", events, segments.size(), directory);
+        }
+        long next = segments.isEmpty() ? 0 : segments.getLast().sequence + 1;
+        Segment tail = new Segment(next, directory.resolve(next + SUFFIX));
+        open(tail);
+    }
+
+    /**
+     * Counts the events of {@code segment} from {@code from} on and cuts off
+     * any incomplete or corrupt record at its end.
+     */
+    private void scan(Segment segment, long from) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            long offset = 0;
+            while (offset < size) {
+                try {
+                    read(channel, offset);
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Truncating spool segment {} at {} of {} bytes", segment.path, offset, size);
+                    channel.truncate(offset);
+                    break;
+                }
+                if (offset >= from) {
+                    segment.events++;
+                }
+                offset += HEADER_BYTES + buffer.limit();
+            }
+            segment.bytes = offset;
+        }
+    }
+
+    private Segment roll() throws IOException {
+        writer.close();
+        long next = segments.getLast().sequence + 1;
+        Segment tail = new Segment(next, directory.resolve(next + SUFFIX));
+        open(tail);
+        return tail;
+    }
+
+    private void open(Segment tail) throws IOException {
+        writer = FileChannel.open(tail.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        segments.add(tail);
+    }
+
+    private void evict() throws IOException {
+        Segment oldest = segments.getFirst();
+        evicted += oldest.events;
+        events -= oldest.events;
+        LOG.warn("Spool is full. Deleted {} undelivered events, {} so far.", oldest.events, evicted);
+        peekOffset = -1;
+        remove(oldest);
+    }
+
+    private void remove(Segment head) throws IOException {
+        closeReader();
+        segments.removeFirst();
+        bytes -= head.bytes;
+        headOffset = 0;
+        Files.deleteIfExists(head.path);
+        savePosition();
+    }
+
+    private FileChannel reader(Segment head) throws IOException {
+        if (reader == null) {
+            reader = FileChannel.open(head.path, StandardOpenOption.READ);
+        }
+        return reader;
+    }
+
+    private void closeReader() throws IOException {
+        if (reader != null) {
+            reader.close();
+            reader = null;
+        }
+    }
+
+    /**
+     * Reads the record at {@code offset}, leaving its contents between zero
+     * and the limit of the buffer.
+     */
+    private Event read(FileChannel channel, long offset) throws IOException {
+        buffer.clear().limit(HEADER_BYTES);
+        fill(channel, offset);
+        int length = buffer.getInt(0);
+        int checksum = buffer.getInt(4);
+        if (length < 0 || offset + HEADER_BYTES + length > channel.size()) {
+            throw new IOException("Incomplete record at " + offset);
+        }
+        buffer.clear();
+        buffer = ensure(buffer, length);
+        buffer.limit(length);
+        fill(channel, offset + HEADER_BYTES);
+        crc.reset();
+        crc.update(buffer.array(), 0, length);
+        if ((int) crc.getValue() != checksum) {
+            throw new IOException("Corrupt record at " + offset);
+        }
+        buffer.flip();
+        return decode();
+    }
+
+    private void fill(FileChannel channel, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment at " + position);
+            }
+            position += read;
+        }
+    }
+
+    private long[] readPosition() throws IOException {
+        Path file = directory.resolve(POSITION);
+        if (!Files.exists(file)) {
+            return new long[] { 0, 0 };
+        }
+        ByteBuffer position = ByteBuffer.wrap(Files.readAllBytes(file));
+        return new long[] { position.getLong(), position.getLong() };
+    }
+
+    private void savePosition() throws IOException {
+        Path temporary = directory.resolve(POSITION + ".tmp");
+        ByteBuffer position = ByteBuffer.allocate(16);
+        position.putLong(segments.getFirst().sequence).putLong(headOffset).flip();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (position.hasRemaining()) {
+                channel.write(position);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, directory.resolve(POSITION), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void encode(Event event) {
+        putString(event.getType());
+        buffer = ensure(buffer, 8);
+        buffer.putLong(event.getTimestamp());
+        putVarint(event.getAttributes().size());
+        for (Map.Entry<String, Object> attribute : event.getAttributes().entrySet()) {
+            putString(attribute.getKey());
+            Object value = attribute.getValue();
+            buffer = ensure(buffer, 9);
+            if (value == null) {
+                buffer.put(NULL);
+            } else if (value instanceof Integer || value instanceof Long || value instanceof Short
+                    || value instanceof Byte) {
+                buffer.put(LONG);
+                long number = ((Number) value).longValue();
+                putVarint((number << 1) ^ (number >> 63));
+            } else if (value instanceof Float) {
+                buffer.put(FLOAT).putFloat((Float) value);
+            } else if (value instanceof Number) {
+                buffer.put(DOUBLE).putDouble(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                buffer.put(BOOLEAN).put((byte) ((Boolean) value ? 1 : 0));
+            } else {
+                buffer.put(STRING);
+                putString(value.toString());
+            }
+        }
+    }
+
+    private Event decode() {
+        try {
+            String type = getString();
+            long timestamp = buffer.getLong();
+            int count = (int) getVarint();
+            Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < count; i++) {
+                String name = getString();
+                byte tag = buffer.get();
+                switch (tag) {
+                case NULL:
+                    attributes.put(name, null);
+                    break;
+                case LONG:
+                    long number = getVarint();
+                    attributes.put(name, (number >>> 1) ^ -(number & 1));
+                    break;
+                case FLOAT:
+                    attributes.put(name, buffer.getFloat());
+                    break;
+                case DOUBLE:
+                    attributes.put(name, buffer.getDouble());
+                    break;
+                case BOOLEAN:
+                    attributes.put(name, buffer.get() != 0);
+                    break;
+                case STRING:
+                    attributes.put(name, getString());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown attribute type " + tag);
+                }
+            }
+            return new Event(type, attributes, timestamp);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalStateException("Truncated event", e);
+        }
+    }
+
+    private void putString(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        putVarint(utf8.length);
+        buffer = ensure(buffer, utf8.length);
+        buffer.put(utf8);
+    }
+
+    private String getString() {
+        int length = (int) getVarint();
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private void putVarint(long value) {
+        buffer = ensure(buffer, 10);
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private long getVarint() {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte next = buffer.get();
+            value |= (long) (next & 0x7F) << shift;
+            if (next >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static ByteBuffer ensure(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private static class Segment {
+
+        private final long sequence;
+        private final Path path;
+        private long bytes;
+        private long events;
+
+        Segment(long sequence, Path path) {
+            this.sequence = sequence;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+/**
+ * Hands every event to several sinks, each behind an {@link EventPublisher}
+ * of its own with its own queue, batch size and threads. Sink publishers
+ * should drop events when their queue is full rather than block.
+ * Handing an event over only queues it, so a slow or failing sink fills its
+ * own queue and drops its own events without holding up the others or
+ * collection. An {@link EventPublisher} given a fan-out hands events
+ * straight to {@link #offer(Event)} rather than queueing them twice. The
+ * queue depth and delivery counts of each sink are reported as
+ * {@code sinks.<name>.*} gauges, and their totals by the publisher.
+ */
+public class FanOutSink implements EventSink, Closeable {
+
+    private final Map<String, EventPublisher> publishers;
+
+    public FanOutSink(Map<String, EventPublisher> publishers, Instrumentation instrumentation) {
+        this.publishers = new LinkedHashMap<String, EventPublisher>(publishers);
+        publishers.forEach((name, publisher) -> {
+            String prefix = "sinks." + name + ".";
+            instrumentation.gauge(prefix + "queue_depth", publisher::getQueueDepth);
+            instrumentation.gauge(prefix + "published", publisher::getPublished);
+            instrumentation.gauge(prefix + "dropped", publisher::getDropped);
+            instrumentation.gauge(prefix + "failed", publisher::getFailed);
+        });
+    }
+
+    /**
+     * Queues {@code event} for every sink. Returns whether any sink had room
+     * for it.
+     */
+    public boolean offer(Event event) {
+        boolean queued = false;
+        for (EventPublisher publisher : publishers.values()) {
+            queued |= publisher.publish(event);
+        }
+        return queued;
+    }
+
+    /**
+     * Queues every event for every sink, failing when none of them reached
+     * any sink.
+     */
+    @Override
+    public void publish(List<Event> events) throws IOException {
+        boolean queued = false;
+        for (Event event : events) {
+            queued |= offer(event);
+        }
+        if (!queued && !events.isEmpty()) {
+            throw new IOException("No sink had room for " + events.size() + " events");
+        }
+    }
+
+    public int getQueueDepth() {
+        return publishers.values().stream().mapToInt(EventPublisher::getQueueDepth).sum();
+    }
+
+    public long getPublished() {
+        return publishers.values().stream().mapToLong(EventPublisher::getPublished).sum();
+    }
+
+    public long getFailed() {
+        return publishers.values().stream().mapToLong(EventPublisher::getFailed).sum();
+    }
+
+    /**
+     * Publishes what is still queued for each sink and then closes the sink.
+     */
+    @Override
+    public void close() throws IOException {
+        for (EventPublisher publisher : publishers.values()) {
+            try {
+                publisher.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (publisher.getSink() instanceof Closeable) {
+                ((Closeable) publisher.getSink()).close();
+            }
+        }
+    }
+}
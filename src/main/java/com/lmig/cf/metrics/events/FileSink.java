@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * Appends events to a local file, one JSON object per line in the same
+ * shape as posted to the Insights Insert API. When the file grows beyond
+ * {@code maxBytes} it is renamed with a {@code .1} suffix, replacing the
+ * previous one, and a new file is started. Batches are written one at a
+ * time through an {@link EventEncoder} that is reused between them.
+ */
+public class FileSink implements EventSink {
+
+    private final Path path;
+    private final Path rolled;
+    private final long maxBytes;
+    private final EventEncoder encoder = new EventEncoder();
+
+    public FileSink(Path path, long maxBytes) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.rolled = Paths.get(this.path + ".1");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.path.getParent());
+    }
+
+    @Override
+    public synchronized void publish(List<Event> events) throws IOException {
+        if (maxBytes > 0 && Files.exists(path) && Files.size(path) >= maxBytes) {
+            Files.move(path, rolled, StandardCopyOption.REPLACE_EXISTING);
+        }
+        encoder.lines(events);
+        try (OutputStream out = Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            encoder.writeTo(out);
+        }
+    }
+}
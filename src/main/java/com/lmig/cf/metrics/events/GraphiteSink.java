@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes every numeric attribute of each event to Graphite over its
+ * plaintext protocol ({@code path value timestamp}), with paths built by
+ * {@link MetricLines} and the collection time of the event in seconds. The
+ * connection is kept open between batches and opened again after a failed
+ * write, which fails the batch.
+ */
+public class GraphiteSink implements EventSink, Closeable {
+
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final int timeout;
+    private Socket socket;
+    private OutputStream out;
+
+    public GraphiteSink(String host, int port, String prefix, int timeout) {
+        this.address = new InetSocketAddress(host, port);
+        this.prefix = prefix;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized void publish(List<Event> events) throws IOException {
+        try {
+            OutputStream out = connection();
+            for (Event event : events) {
+                String timestamp = " " + event.getTimestamp() / 1000 + "\n";
+                MetricLines.forEach(event, prefix,
+                        (path, value) -> out.write((path + " " + value + timestamp).getBytes(StandardCharsets.UTF_8)));
+            }
+            out.flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private OutputStream connection() throws IOException {
+        if (socket == null) {
+            Socket connecting = new Socket();
+            try {
+                connecting.connect(address, timeout);
+                connecting.setSoTimeout(timeout);
+                out = new BufferedOutputStream(connecting.getOutputStream(), 16 * 1024);
+            } catch (IOException e) {
+                connecting.close();
+                throw e;
+            }
+            socket = connecting;
+        }
+        return out;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (socket != null) {
+            try {
+                socket.close();
+            } finally {
+                socket = null;
+                out = null;
+            }
+        }
+    }
+}
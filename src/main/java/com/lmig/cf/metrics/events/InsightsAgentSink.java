@@ -0,0 +1,40 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.util.List;
+
+import com.newrelic.api.agent.Insights;
+
+/**
+ * Records events through the New Relic Java agent. The agent buffers the
+ * events and sends them on its own harvest cycle.
+ */
+public class InsightsAgentSink implements EventSink {
+
+    private final Insights insights;
+
+    public InsightsAgentSink(Insights insights) {
+        this.insights = insights;
+    }
+
+    @Override
+    public void publish(List<Event> events) {
+        for (Event event : events) {
+            insights.recordCustomEvent(event.getType(), event.getAttributes());
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Posts events straight to the Insights Insert API as gzip compressed JSON
+ * arrays, without going through the New Relic agent. Batches larger than
+ * the API accepts in one request are split. Connections are kept alive
+ * between posts by fully consuming every response. Failed posts are retried
+ * with an exponential backoff when the failure is a network error, a server
+ * error or a 429; other client errors fail the batch straight away. When a
+ * chunk of a split batch fails, the chunks posted before it are not sent
+ * again: a {@link PartialPublishException} names the failed chunk and the
+ * ones after it.
+ * <p>
+ * Batches are encoded by {@link EventEncoder}s pooled between posts, one for
+ * each publisher thread, so their buffers are reused.
+ */
+public class InsightsInsertSink implements EventSink {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InsightsInsertSink.class);
+
+    static final int MAX_EVENTS_PER_POST = 1000;
+
+    private final URL url;
+    private final String insertKey;
+    private final int attempts;
+    private final long initialBackoff;
+    private final int timeout;
+    private final Queue<EventEncoder> encoders = new ConcurrentLinkedQueue<EventEncoder>();
+
+    public InsightsInsertSink(URL url, String insertKey, int attempts, long initialBackoff, int timeout) {
+        this.url = url;
+        this.insertKey = insertKey;
+        this.attempts = Math.max(1, attempts);
+        this.initialBackoff = initialBackoff;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void publish(List<Event> events) throws IOException {
+        EventEncoder encoder = encoders.poll();
+        if (encoder == null) {
+            encoder = new EventEncoder();
+        }
+        try {
+            for (int start = 0; start < events.size(); start += MAX_EVENTS_PER_POST) {
+                List<Event> chunk = events.subList(start, Math.min(events.size(), start + MAX_EVENTS_PER_POST));
+                try {
+                    post(encoder.array(chunk).gzip(), chunk.size());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PartialPublishException(events.subList(start, events.size()), e);
+                } catch (IOException e) {
+                    throw new PartialPublishException(events.subList(start, events.size()), e);
+                }
+            }
+        } finally {
+            encoders.offer(encoder);
+        }
+    }
+
+    static void writeAttribute(JsonGenerator json, String name, Object value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        json.writeFieldName(name);
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            json.writeNumber(((Number) value).longValue());
+        } else if (value instanceof Float) {
+            json.writeNumber((Float) value);
+        } else if (value instanceof Number) {
+            json.writeNumber(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            json.writeBoolean((Boolean) value);
+        } else {
+            json.writeString(value.toString());
+        }
+    }
+
+    private void post(EventEncoder payload, int events) throws IOException, InterruptedException {
+        long backoff = initialBackoff;
+        for (int attempt = 1;; attempt++) {
+            int status;
+            try {
+                status = send(payload);
+            } catch (IOException e) {
+                if (attempt >= attempts) {
+                    throw e;
+                }
+                LOG.warn("Unable to post events to Insights. Retrying in {} ms.", backoff, e);
+                Thread.sleep(backoff);
+                backoff *= 2;
+                continue;
+            }
+            if (status / 100 == 2) {
+                LOG.debug("Posted {} events ({} bytes) to Insights", events, payload.getLength());
+                return;
+            }
+            if (status != 429 && status / 100 != 5) {
+                throw new IOException("Insights rejected " + events + " events with status " + status);
+            }
+            if (attempt >= attempts) {
+                throw new IOException("Insights returned status " + status + " after " + attempt + " attempts");
+            }
+            LOG.warn("Insights returned status {}. Retrying in {} ms.", status, backoff);
+            Thread.sleep(backoff);
+            backoff *= 2;
+        }
+    }
+
+    private int send(EventEncoder payload) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setRequestProperty("Content-Encoding", "gzip");
+        connection.setRequestProperty("X-Insert-Key", insertKey);
+        connection.setFixedLengthStreamingMode(payload.getLength());
+        try (OutputStream out = connection.getOutputStream()) {
+            payload.writeTo(out);
+        }
+        int status = connection.getResponseCode();
+        drain(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+        return status;
+    }
+
+    /**
+     * Reads and closes the response so the connection goes back to the
+     * keep-alive cache.
+     */
+    private static void drain(InputStream response) throws IOException {
+        if (response == null) {
+            return;
+        }
+        try (InputStream in = response) {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns events into the dotted metric paths of line based protocols such as
+ * StatsD and Graphite. The path of an event is the prefix, the event type
+ * and the name and value of each of its string attributes in the order of
+ * their names; each numeric or boolean attribute then becomes one metric
+ * under that path. So the {@code value} of a {@code cf_vm_metrics} event
+ * for the {@code Router} job of {@code prod} becomes
+ * {@code cf.cf_vm_metrics.job.Router.platform_instance.prod.value}.
+ * Naming every value keeps an attribute that one event lacks from shifting
+ * the others into the wrong place. Characters other than letters, digits,
+ * {@code _} and {@code -} in the type and attributes are replaced with
+ * {@code _}.
+ */
+final class MetricLines {
+
+    interface Metric {
+        void accept(String path, String value) throws IOException;
+    }
+
+    private MetricLines() {
+    }
+
+    static void forEach(Event event, String prefix, Metric metric) throws IOException {
+        StringBuilder path = new StringBuilder(128);
+        path.append(prefix);
+        append(path, event.getType());
+        Map<String, Object> sorted = new TreeMap<String, Object>(event.getAttributes());
+        for (Map.Entry<String, Object> attribute : sorted.entrySet()) {
+            if (attribute.getValue() instanceof String) {
+                append(path, attribute.getKey());
+                append(path, (String) attribute.getValue());
+            }
+        }
+        int length = path.length();
+        for (Map.Entry<String, Object> attribute : sorted.entrySet()) {
+            String value = format(attribute.getValue());
+            if (value != null) {
+                path.setLength(length);
+                append(path, attribute.getKey());
+                metric.accept(path.toString(), value);
+            }
+        }
+    }
+
+    /**
+     * The value of a numeric or boolean attribute in plain notation, or
+     * {@code null} for any other attribute.
+     */
+    static String format(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value ? "1" : "0";
+        }
+        if (!(value instanceof Number)) {
+            return null;
+        }
+        double number = ((Number) value).doubleValue();
+        if (Double.isNaN(number) || Double.isInfinite(number)) {
+            return null;
+        }
+        if (number == Math.rint(number) && Math.abs(number) < 1e15) {
+            return Long.toString((long) number);
+        }
+        return value instanceof Float ? new BigDecimal(value.toString()).toPlainString()
+                : BigDecimal.valueOf(number).toPlainString();
+    }
+
+    private static void append(StringBuilder path, String part) {
+        if (path.length() > 0) {
+            path.append('.');
+        }
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            boolean safe = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_'
+                    || c == '-';
+            path.append(safe ? c : '_');
+        }
+    }
+}
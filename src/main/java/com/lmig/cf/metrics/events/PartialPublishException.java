@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Thrown by an {@link EventSink} that sent the start of a batch before
+ * failing, naming the events that were not sent so only those are counted
+ * as failed or sent again. The unsent events are the tail of the batch.
+ */
+public class PartialPublishException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<Event> unsent;
+
+    public PartialPublishException(List<Event> unsent, Throwable cause) {
+        super(unsent.size() + " events were not published", cause);
+        this.unsent = new ArrayList<Event>(unsent);
+    }
+
+    public List<Event> getUnsent() {
+        return unsent;
+    }
+}
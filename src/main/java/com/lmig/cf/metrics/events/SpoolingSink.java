@@ -0,0 +1,194 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+/**
+ * Keeps events that could not be delivered in an {@link EventSpool} instead
+ * of losing them. Batches go straight to the wrapped sink while it is
+ * healthy. When a batch fails, the events it did not deliver are spooled and
+ * the sink is marked unhealthy, so later batches are spooled too rather
+ * than each waiting on a failing sink. A replay thread, started by
+ * {@link #start()}, retries the oldest spooled events in batches of
+ * {@code batchSize}, waiting {@code retryInterval} milliseconds after a
+ * failure, doubling up to a minute. The first batch it delivers marks the
+ * sink healthy again: new batches then go straight to it while the backlog
+ * is replayed alongside at no more than {@code rate} events per second, so
+ * that a long outage does not flood the sink and the backlog drains however
+ * busy the live traffic is. Events from the backlog therefore arrive after
+ * newer ones; each carries its own timestamp.
+ */
+public class SpoolingSink implements EventSink, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SpoolingSink.class);
+
+    private static final long MAX_RETRY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final EventSink sink;
+    private final EventSpool spool;
+    private final int batchSize;
+    private final double rate;
+    private final long retryInterval;
+    private final Thread replayer;
+    private final Object spooling = new Object();
+    private final Object stopping = new Object();
+    private final LongAdder spooled;
+    private final LongAdder replayed;
+    private volatile boolean running = true;
+    private volatile boolean healthy = true;
+
+    public SpoolingSink(EventSink sink, EventSpool spool, int batchSize, double rate, long retryInterval,
+            Instrumentation instrumentation) {
+        this.sink = sink;
+        this.spool = spool;
+        this.batchSize = Math.max(1, batchSize);
+        this.rate = rate;
+        this.retryInterval = Math.max(1, retryInterval);
+        this.spooled = instrumentation.counter("spool.spooled");
+        this.replayed = instrumentation.counter("spool.replayed");
+        instrumentation.gauge("spool.events", spool::getEvents);
+        instrumentation.gauge("spool.bytes", spool::getBytes);
+        instrumentation.gauge("spool.evicted", spool::getEvicted);
+        this.replayer = new Thread(this::replay, "event-spool-replay");
+        replayer.setDaemon(true);
+    }
+
+    /**
+     * Starts replaying whatever is in the spool.
+     */
+    public void start() {
+        replayer.start();
+    }
+
+    @Override
+    public void publish(List<Event> events) throws Exception {
+        if (healthy) {
+            try {
+                sink.publish(events);
+                return;
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (PartialPublishException e) {
+                healthy = false;
+                events = e.getUnsent();
+                LOG.warn("Unable to publish {} events. Spooling them until the sink recovers.", events.size(), e);
+            } catch (Exception e) {
+                healthy = false;
+                LOG.warn("Unable to publish {} events. Spooling them until the sink recovers.", events.size(), e);
+            }
+        }
+        spool.append(events);
+        spooled.add(events.size());
+        synchronized (spooling) {
+            spooling.notify();
+        }
+    }
+
+    private void replay() {
+        long backoff = retryInterval;
+        while (running) {
+            try {
+                List<Event> batch = spool.peek(batchSize);
+                if (batch.isEmpty()) {
+                    healthy = true;
+                    synchronized (spooling) {
+                        if (running && spool.isEmpty()) {
+                            spooling.wait(retryInterval);
+                        }
+                    }
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    sink.publish(batch);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    int delivered = e instanceof PartialPublishException
+                            ? batch.size() - ((PartialPublishException) e).getUnsent().size() : 0;
+                    spool.commit(delivered);
+                    replayed.add(delivered);
+                    LOG.warn("Unable to replay {} spooled events. Retrying in {} ms.", spool.getEvents(), backoff,
+                            e);
+                    sleep(backoff);
+                    backoff = Math.min(backoff * 2, Math.max(retryInterval, MAX_RETRY_INTERVAL));
+                    continue;
+                }
+                spool.commit();
+                replayed.add(batch.size());
+                healthy = true;
+                backoff = retryInterval;
+                if (spool.isEmpty()) {
+                    LOG.info("Replayed all spooled events");
+                }
+                if (rate > 0) {
+                    long pause = (long) (batch.size() / rate * 1e9) - (System.nanoTime() - start);
+                    sleep(TimeUnit.NANOSECONDS.toMillis(pause));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                LOG.error("Unable to read the event spool", e);
+                try {
+                    sleep(backoff);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            synchronized (stopping) {
+                if (running) {
+                    stopping.wait(millis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops replaying and closes the spool. Whatever is left in it is
+     * replayed when the drain starts again.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        synchronized (spooling) {
+            spooling.notify();
+        }
+        synchronized (stopping) {
+            stopping.notify();
+        }
+        try {
+            replayer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        spool.close();
+    }
+}
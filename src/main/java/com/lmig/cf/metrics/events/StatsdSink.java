@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Sends every numeric attribute of each event to a StatsD server as a gauge
+ * ({@code path:value|g}), with paths built by {@link MetricLines}. Lines
+ * are packed into datagrams of at most {@value #MAX_PACKET_BYTES} bytes so
+ * they are not fragmented on a standard Ethernet MTU. UDP gives no delivery
+ * guarantee; a send only fails when the server is known to be unreachable.
+ */
+public class StatsdSink implements EventSink, Closeable {
+
+    static final int MAX_PACKET_BYTES = 1432;
+
+    private final InetSocketAddress address;
+    private final String prefix;
+    private final ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET_BYTES);
+    private DatagramChannel channel;
+
+    public StatsdSink(String host, int port, String prefix) {
+        this.address = new InetSocketAddress(host, port);
+        this.prefix = prefix;
+    }
+
+    @Override
+    public synchronized void publish(List<Event> events) throws IOException {
+        try {
+            packet.clear();
+            for (Event event : events) {
+                MetricLines.forEach(event, prefix, this::add);
+            }
+            flush();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void add(String path, String value) throws IOException {
+        byte[] line = (path + ":" + value + "|g").getBytes(StandardCharsets.UTF_8);
+        if (line.length > MAX_PACKET_BYTES) {
+            return;
+        }
+        int needed = packet.position() == 0 ? line.length : line.length + 1;
+        if (packet.remaining() < needed) {
+            flush();
+        }
+        if (packet.position() > 0) {
+            packet.put((byte) '\n');
+        }
+        packet.put(line);
+    }
+
+    private void flush() throws IOException {
+        if (packet.position() == 0) {
+            return;
+        }
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.connect(address);
+        }
+        packet.flip();
+        channel.write(packet);
+        packet.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.instrumentation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Timers, counters and gauges the drain keeps about its own collection cycles. Each
+ * source, such as {@code opsmetrics.prod} or {@code vsphere.datastores},
+ * times its cycles and stages like {@code opsmetrics.prod.connect} and
+ * counts what it collected. A cycle that takes longer than its interval
+ * counts as an overrun and one that starts while the previous cycle of the
+ * same source is still running counts as an overlap.
+ */
+@Component
+public class Instrumentation {
+
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+    private final Map<String, AtomicInteger> running = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public LatencyHistogram timer(String name) {
+        return timers.computeIfAbsent(name, key -> new LatencyHistogram());
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Reports the current value of {@code gauge} as {@code name}, replacing
+     * any gauge registered before under that name.
+     */
+    public void gauge(String name, LongSupplier gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Marks the start of a cycle of {@code source} and returns the
+     * {@link System#nanoTime()} it started at.
+     */
+    public long startCycle(String source) {
+        if (running(source).incrementAndGet() > 1) {
+            counter(source + ".cycles.overlapped").increment();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Marks the end of a cycle of {@code source} started at
+     * {@code startNanos} that is meant to run every {@code interval}
+     * milliseconds.
+     */
+    public void endCycle(String source, long startNanos, long interval) {
+        long elapsed = System.nanoTime() - startNanos;
+        running(source).decrementAndGet();
+        timer(source + ".cycle").record(elapsed);
+        counter(source + ".cycles").increment();
+        if (interval > 0 && elapsed > TimeUnit.MILLISECONDS.toNanos(interval)) {
+            counter(source + ".cycles.overrun").increment();
+        }
+    }
+
+    public int getRunning(String source) {
+        return running(source).get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> timerSnapshots = new TreeMap<String, Object>();
+        timers.forEach((name, timer) -> timerSnapshots.put(name, timer.snapshot()));
+        Map<String, Object> counterValues = new TreeMap<String, Object>();
+        counters.forEach((name, counter) -> counterValues.put(name, counter.sum()));
+        Map<String, Object> gaugeValues = new TreeMap<String, Object>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.getAsLong()));
+        running.forEach((source, cycles) -> gaugeValues.put(source + ".cycles.running", cycles.get()));
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("timers", timerSnapshots);
+        snapshot.put("counters", counterValues);
+        snapshot.put("gauges", gaugeValues);
+        return snapshot;
+    }
+
+    private AtomicInteger running(String source) {
+        return running.computeIfAbsent(source, key -> new AtomicInteger());
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.instrumentation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram laid out like an HdrHistogram. Durations are counted
+ * in microseconds in buckets that double in width with each power of two,
+ * each split into 64 sub-buckets, so a percentile is reported within 1.6%
+ * of the recorded value. Buckets are atomic counters, so any number of
+ * threads can record into the same histogram.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final long HIGHEST_MICROS = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(index(HIGHEST_MICROS) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.min(HIGHEST_MICROS, Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        counts.incrementAndGet(index(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        maxMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Records the time passed since {@code startNanos}, a
+     * {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : totalMicros.get() / (recorded * 1e3);
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1e3;
+    }
+
+    /**
+     * The duration at or below which {@code percentile} percent of the
+     * recorded durations fall, rounded up to the end of its bucket.
+     */
+    public double getPercentileMillis(double percentile) {
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * recorded));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestInBucket(i), maxMicros.get()) / 1e3;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+        snapshot.put("count", getCount());
+        snapshot.put("mean_ms", getMeanMillis());
+        snapshot.put("p50_ms", getPercentileMillis(50));
+        snapshot.put("p90_ms", getPercentileMillis(90));
+        snapshot.put("p99_ms", getPercentileMillis(99));
+        snapshot.put("p999_ms", getPercentileMillis(99.9));
+        snapshot.put("max_ms", getMaxMillis());
+        return snapshot;
+    }
+
+    /**
+     * Values below 128 get a bucket each. Above that the top seven bits of
+     * the value pick the sub-bucket and the position of the highest bit
+     * picks the bucket.
+     */
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+    }
+
+    static long highestInBucket(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) ((index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
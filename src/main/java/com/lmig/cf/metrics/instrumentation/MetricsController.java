@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.instrumentation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.lmig.cf.metrics.events.EventPublisher;
+
+/**
+ * Serves the drain's own {@link Instrumentation} and {@link EventPublisher}
+ * statistics as JSON on {@code /metrics}.
+ */
+@RestController
+public class MetricsController {
+
+    private final Instrumentation instrumentation;
+    private final EventPublisher publisher;
+
+    @Autowired
+    public MetricsController(Instrumentation instrumentation, EventPublisher publisher) {
+        this.instrumentation = instrumentation;
+        this.publisher = publisher;
+    }
+
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET)
+    public Map<String, Object> metrics() {
+        Map<String, Object> metrics = instrumentation.snapshot();
+        Map<String, Object> publishing = new LinkedHashMap<String, Object>();
+        publishing.put("queue_depth", publisher.getQueueDepth());
+        publishing.put("published", publisher.getPublished());
+        publishing.put("dropped", publisher.getDropped());
+        publishing.put("failed", publisher.getFailed());
+        publishing.put("batches", publisher.getBatches());
+        publishing.put("average_batch_ms", publisher.getAveragePublishMillis());
+        publishing.put("max_batch_ms", publisher.getMaxPublishMillis());
+        metrics.put("publisher", publishing);
+        return metrics;
+    }
+}
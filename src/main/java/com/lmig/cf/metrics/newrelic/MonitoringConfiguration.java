@@ -15,16 +15,37 @@
  */
 package com.lmig.cf.metrics.newrelic;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.rmi.RemoteException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
-import com.vmware.vim25.mo.InventoryNavigator;
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.events.EventSink;
+import com.lmig.cf.metrics.events.EventSpool;
+import com.lmig.cf.metrics.events.FanOutSink;
+import com.lmig.cf.metrics.events.FileSink;
+import com.lmig.cf.metrics.events.GraphiteSink;
+import com.lmig.cf.metrics.events.InsightsAgentSink;
+import com.lmig.cf.metrics.events.InsightsInsertSink;
+import com.lmig.cf.metrics.events.SpoolingSink;
+import com.lmig.cf.metrics.events.StatsdSink;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.sharding.Shard;
+import com.lmig.cf.metrics.vsphere.DatastoreCollector;
+import com.lmig.cf.metrics.vsphere.DatastoreWatcher;
+import com.lmig.cf.metrics.vsphere.PerformanceCollector;
+import com.lmig.cf.metrics.vsphere.VSphereSession;
+import com.newrelic.api.agent.NewRelic;
 import com.vmware.vim25.mo.ServiceInstance;
 
 /**
@@ -33,14 +54,125 @@ import com.vmware.vim25.mo.ServiceInstance;
 @Configuration
 public class MonitoringConfiguration {
 
+    /**
+     * Events are posted straight to the Insights Insert API when an insert
+     * key is configured and recorded through the New Relic agent otherwise.
+     * When a spool directory is configured, events that cannot be delivered
+     * to Insights are kept there and replayed once it recovers. When more
+     * sinks than Insights are listed in {@code sinks}, events fan out to each
+     * of them through a queue of its own.
+     */
+    @Bean
+    EventSink eventSink(Environment environment, Instrumentation instrumentation,
+            @Value("${sinks:insights}") String[] sinks,
+            @Value("${insights.insert.key:}") String insertKey,
+            @Value("${insights.account.id:}") String accountId,
+            @Value("${insights.insert.url:https://insights-collector.newrelic.com/v1/accounts/%s/events}") String url,
+            @Value("${insights.insert.attempts:3}") int attempts,
+            @Value("${insights.insert.backoff:500}") long backoff,
+            @Value("${insights.insert.timeout:10000}") int timeout,
+            @Value("${spool.directory:}") String spoolDirectory,
+            @Value("${spool.max.bytes:268435456}") long spoolMaxBytes,
+            @Value("${spool.segment.bytes:16777216}") long spoolSegmentBytes,
+            @Value("${spool.replay.batch.size:500}") int replayBatchSize,
+            @Value("${spool.replay.rate:1000}") double replayRate,
+            @Value("${spool.retry.interval:5000}") long retryInterval) throws IOException {
+        Map<String, EventSink> destinations = new LinkedHashMap<String, EventSink>();
+        for (String name : sinks) {
+            name = name.trim();
+            EventSink sink;
+            switch (name) {
+            case "insights":
+                if (insertKey.isEmpty()) {
+                    sink = new InsightsAgentSink(NewRelic.getAgent().getInsights());
+                } else {
+                    sink = new InsightsInsertSink(new URL(String.format(url, accountId)), insertKey, attempts,
+                            backoff, timeout);
+                }
+                if (!spoolDirectory.isEmpty()) {
+                    EventSpool spool = new EventSpool(Paths.get(spoolDirectory), spoolMaxBytes, spoolSegmentBytes);
+                    SpoolingSink spooling = new SpoolingSink(sink, spool, replayBatchSize, replayRate,
+                            retryInterval, instrumentation);
+                    spooling.start();
+                    sink = spooling;
+                }
+                break;
+            case "statsd":
+                sink = new StatsdSink(environment.getRequiredProperty("sinks.statsd.host"),
+                        environment.getProperty("sinks.statsd.port", Integer.class, 8125),
+                        environment.getProperty("sinks.statsd.prefix", "cf"));
+                break;
+            case "graphite":
+                sink = new GraphiteSink(environment.getRequiredProperty("sinks.graphite.host"),
+                        environment.getProperty("sinks.graphite.port", Integer.class, 2003),
+                        environment.getProperty("sinks.graphite.prefix", "cf"),
+                        environment.getProperty("sinks.graphite.timeout", Integer.class, 10000));
+                break;
+            case "file":
+                sink = new FileSink(Paths.get(environment.getRequiredProperty("sinks.file.path")),
+                        environment.getProperty("sinks.file.max.bytes", Long.class, 104857600L));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sink '" + name
+                        + "'. Expected insights, statsd, graphite or file.");
+            }
+            destinations.put(name, sink);
+        }
+        if (destinations.size() == 1 && destinations.containsKey("insights")) {
+            return destinations.get("insights");
+        }
+        Map<String, EventPublisher> publishers = new LinkedHashMap<String, EventPublisher>();
+        destinations.forEach((name, sink) -> publishers.put(name, new EventPublisher(sink,
+                property(environment, name, "queue.capacity", Integer.class, 10000),
+                property(environment, name, "batch.size", Integer.class, 500),
+                property(environment, name, "flush.interval", Long.class, 1000L),
+                property(environment, name, "threads", Integer.class, 1),
+                environment.getProperty("sinks." + name + ".overflow", "drop"), "sink-" + name)));
+        return new FanOutSink(publishers, instrumentation);
+    }
+
+    /**
+     * The {@code sinks.<name>.<key>} setting of a sink, defaulting to the
+     * {@code publisher.<key>} setting.
+     */
+    private static <T> T property(Environment environment, String name, String key, Class<T> type, T defaultValue) {
+        return environment.getProperty("sinks." + name + "." + key, type,
+                environment.getProperty("publisher." + key, type, defaultValue));
+    }
+
     @Bean
     @ConditionalOnProperty("vsphere.host")
-    InventoryNavigator inventoryNavigator(@Value("${vsphere.host}") String host,
+    VSphereSession vSphereSession(@Value("${vsphere.host}") String host,
             @Value("${vsphere.username}") String username,
-            @Value("${vsphere.password}") String password) throws MalformedURLException,
-            RemoteException {
+            @Value("${vsphere.password}") String password) throws MalformedURLException {
         URL url = new URL(String.format("https://%s/sdk", host));
-        ServiceInstance serviceInstance = new ServiceInstance(url, username, password, true);
-        return new InventoryNavigator(serviceInstance.getRootFolder());
+        return new VSphereSession(host, () -> new ServiceInstance(url, username, password, true));
+    }
+
+    @Bean
+    @ConditionalOnProperty("vsphere.host")
+    DatastoreCollector datastoreCollector(VSphereSession session, Shard shard,
+            @Value("${datastores:}") String[] datastores) {
+        return new DatastoreCollector(session, Arrays.stream(datastores)
+            .filter(datastore -> shard.owns("datastore/" + datastore))
+            .toArray(String[]::new));
+    }
+
+    @Bean
+    @ConditionalOnProperty("vsphere.host")
+    DatastoreWatcher datastoreWatcher(VSphereSession session, DatastoreCollector datastores,
+            @Value("${vsphere.streaming.max.wait:60}") int maxWaitSeconds) {
+        return new DatastoreWatcher(session, datastores, maxWaitSeconds);
+    }
+
+    @Bean
+    @ConditionalOnProperty({ "vsphere.host", "vsphere.performance.enabled" })
+    PerformanceCollector performanceCollector(VSphereSession session, Shard shard,
+            @Value("${vsphere.performance.counters:cpu.ready.summation,mem.vmmemctl.average,"
+                    + "disk.maxTotalLatency.latest,net.usage.average}") String[] counters,
+            @Value("${vsphere.performance.vms:vm-}") String[] vmPrefixes,
+            @Value("${vsphere.performance.batch.size:50}") int batchSize,
+            @Value("${vsphere.performance.threads:4}") int threads) {
+        return new PerformanceCollector(session, shard, counters, vmPrefixes, batchSize, threads);
     }
 }
@@ -15,65 +15,228 @@
  */
 package com.lmig.cf.metrics.newrelic;
 
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.stereotype.Component;
 
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.instrumentation.LatencyHistogram;
+import com.lmig.cf.metrics.opsmetrics.CardinalityGuard;
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
 import com.lmig.cf.metrics.opsmetrics.JmxMetric;
 import com.lmig.cf.metrics.opsmetrics.OpsMetrics;
 import com.lmig.cf.metrics.opsmetrics.OpsMetricsException;
 import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
-import com.newrelic.api.agent.Insights;
-import com.newrelic.api.agent.NewRelic;
+import com.lmig.cf.metrics.opsmetrics.Rollup;
+import com.lmig.cf.metrics.snapshot.Dictionary;
+import com.lmig.cf.metrics.snapshot.SnapshotStore;
 
 /**
+ * Forwards the Ops Metrics of one foundation to Insights each time it is
+ * run. Scheduled by {@link OpsMetricsFoundations}. Turning the metrics into
+ * events and queueing them are timed as the {@code parse} and
+ * {@code publish} stages, alongside counts of the metrics collected, left
+ * unchanged and with names that could not be parsed. Every metric collected,
+ * changed or not, is also written to the foundation's {@link SnapshotStore}.
+ * Nested attribute values beyond the limits of the {@link CardinalityGuard}
+ * are collapsed first, and the series of an object that collapse into the
+ * same attribute are reported as one with the sum of their values. Metrics
+ * with attributes that are rolled up by the {@link Rollup} are then added to
+ * their group instead of being published on their own.
+ *
  * @author David Ehringer
  */
-@Component
 public class OpsMetricsForwarder {
 
     private static final Logger LOG = LoggerFactory.getLogger(OpsMetricsForwarder.class);
 
     private final OpsMetrics opsMetrics;
-    private final Insights insights;
+    private final EventPublisher publisher;
+    private final ChangeTracker changes;
     private final String cfInstanceName;
+    private final LatencyHistogram parseTimer;
+    private final LatencyHistogram publishTimer;
+    private final LongAdder collected;
+    private final LongAdder unchanged;
+    private final LongAdder parseFailures;
+    private final LongAdder rolledUp;
+    private final LongAdder rollups;
+    private final SnapshotStore snapshots;
+    private final Rollup rollup;
+    private final CardinalityGuard guard;
+    private volatile double changeRatio = 1;
+
+    public OpsMetricsForwarder(OpsMetrics opsMetrics, EventPublisher publisher, ChangeTracker changes,
+            String cfInstanceName) {
+        this(opsMetrics, publisher, changes, cfInstanceName, new Instrumentation(),
+                new SnapshotStore(cfInstanceName, new Dictionary()), Rollup.NONE, CardinalityGuard.NONE);
+    }
 
-    @Autowired
-    public OpsMetricsForwarder(OpsMetrics opsMetrics,
-            @Value("${cf.instance.Name:default}") String cfInstanceName) {
+    public OpsMetricsForwarder(OpsMetrics opsMetrics, EventPublisher publisher, ChangeTracker changes,
+            String cfInstanceName, Instrumentation instrumentation, SnapshotStore snapshots, Rollup rollup,
+            CardinalityGuard guard) {
         this.opsMetrics = opsMetrics;
+        this.snapshots = snapshots;
+        this.rollup = rollup;
+        this.guard = guard;
+        this.publisher = publisher;
+        this.changes = changes;
         this.cfInstanceName = cfInstanceName;
-        this.insights = NewRelic.getAgent().getInsights();
+        String source = OpsMetrics.source(cfInstanceName);
+        this.parseTimer = instrumentation.timer(source + ".parse");
+        this.publishTimer = instrumentation.timer(source + ".publish");
+        this.collected = instrumentation.counter(source + ".collected");
+        this.unchanged = instrumentation.counter(source + ".unchanged");
+        this.parseFailures = instrumentation.counter(source + ".parse.failures");
+        this.rolledUp = instrumentation.counter(source + ".rolled.up");
+        this.rollups = instrumentation.counter(source + ".rollups");
     }
 
-    @Scheduled(fixedRateString = "${collection.interval:30000}")
     public void forwardOpsMetricsToInsights() {
         long start = startTiming();
         try {
             List<JmxMetric> jmxMetrics = opsMetrics.getMetrics();
+            changes.startCycle(start);
+            Cycle cycle = new Cycle(snapshots.begin(start));
+            Map<List<String>, Collapsed> collapsed = new LinkedHashMap<List<String>, Collapsed>();
+            int failures = 0;
             for (JmxMetric jmxMetric : jmxMetrics) {
-                OpsMetricsMetric opsMetric = OpsMetricsMetric.from(jmxMetric, cfInstanceName);
-                LOG.debug("Recording {}", opsMetric);
-                insights.recordCustomEvent(opsMetric.getType(), opsMetric.getAttributes());
+                double raw = jmxMetric.getValue().doubleValue();
+                long parsing = System.nanoTime();
+                OpsMetricsMetric opsMetric = OpsMetricsMetric.from(jmxMetric.getName(), jmxMetric.getValue(),
+                        jmxMetric.getValueType(), cfInstanceName);
+                if (!opsMetric.isKnown()) {
+                    failures++;
+                } else if (opsMetric.limitCardinality(guard)) {
+                    collapsed.computeIfAbsent(Arrays.asList(jmxMetric.getName(), opsMetric.getFullAttribute()),
+                            series -> new Collapsed(opsMetric)).raw += raw;
+                    cycle.parseNanos += System.nanoTime() - parsing;
+                    continue;
+                }
+                record(cycle, jmxMetric.getName(), jmxMetric.getValueType(), raw, opsMetric, parsing);
             }
-            endTiming(start, jmxMetrics);
+            collapsed.forEach((series, bucket) -> {
+                long parsing = System.nanoTime();
+                bucket.metric.setValue((float) bucket.raw);
+                record(cycle, series.get(0), series.get(1), bucket.raw, bucket.metric, parsing);
+            });
+            changes.endCycle();
+            cycle.snapshot.publish();
+            long publishing = System.nanoTime();
+            int published = rollup.endCycle(cfInstanceName, publisher);
+            cycle.publishNanos += System.nanoTime() - publishing;
+            parseTimer.record(cycle.parseNanos);
+            publishTimer.record(cycle.publishNanos);
+            int merged = jmxMetrics.size() - cycle.series;
+            collected.add(jmxMetrics.size());
+            unchanged.add(jmxMetrics.size() - cycle.reported - cycle.grouped - merged);
+            parseFailures.add(failures);
+            rolledUp.add(cycle.grouped);
+            rollups.add(published);
+            changeRatio = jmxMetrics.isEmpty() ? 1
+                    : (double) (cycle.reported + cycle.grouped + merged) / jmxMetrics.size();
+            endTiming(start, jmxMetrics.size(), cycle.reported);
         } catch (OpsMetricsException e) {
-            LOG.error("Unable to forward Ops Metrics metrics to New Relic Insights", e);
+            LOG.error("Unable to forward Ops Metrics metrics of {} to New Relic Insights", cfInstanceName, e);
+        }
+    }
+
+    /**
+     * Snapshots, rolls up or publishes the value of one series, named by its
+     * object name and attribute.
+     */
+    private void record(Cycle cycle, String name, String attribute, double raw, OpsMetricsMetric opsMetric,
+            long parsing) {
+        cycle.series++;
+        long series = ChangeTracker.seriesId(name, attribute);
+        if (opsMetric.isKnown()) {
+            cycle.snapshot.add(series, raw, opsMetric);
         }
+        if (!rollup.add(series, opsMetric, raw)) {
+            cycle.parseNanos += System.nanoTime() - parsing;
+            cycle.grouped++;
+            return;
+        }
+        if (!changes.track(name, attribute, raw)) {
+            cycle.parseNanos += System.nanoTime() - parsing;
+            return;
+        }
+        LOG.debug("Recording {}", opsMetric);
+        Map<String, Object> attributes = opsMetric.getAttributes();
+        if (changes.isCounter()) {
+            attributes.put("value", changes.value());
+            attributes.put("total", raw);
+        }
+        long publishing = System.nanoTime();
+        publisher.publish(opsMetric.getType(), attributes);
+        cycle.parseNanos += publishing - parsing;
+        cycle.publishNanos += System.nanoTime() - publishing;
+        cycle.reported++;
+    }
+
+    /**
+     * The fraction of the metrics of the last cycle that were reported or
+     * rolled up, which is less than {@code 1} only when unchanged metrics are
+     * left out.
+     */
+    public double getChangeRatio() {
+        return changeRatio;
+    }
+
+    public void close() {
+        opsMetrics.close();
     }
 
     private long startTiming() {
-        LOG.info("Starting Ops Metrics metrics collection");
+        LOG.info("Starting Ops Metrics metrics collection for {}", cfInstanceName);
         return System.currentTimeMillis();
     }
 
-    private void endTiming(long start, List<JmxMetric> jmxMetrics) {
-        LOG.info("Ops Metrics metrics collection completed in {} ms. {} metrics reported.",
-                (System.currentTimeMillis() - start), jmxMetrics.size());
+    private void endTiming(long start, int collected, int reported) {
+        if (changes.isEnabled()) {
+            LOG.info("Ops Metrics metrics collection for {} completed in {} ms. {} metrics reported, {} unchanged.",
+                    cfInstanceName, (System.currentTimeMillis() - start), reported, collected - reported);
+        } else {
+            LOG.info("Ops Metrics metrics collection for {} completed in {} ms. {} metrics reported.",
+                    cfInstanceName, (System.currentTimeMillis() - start), reported);
+        }
+    }
+
+    /**
+     * The tallies of one collection cycle.
+     */
+    private static final class Cycle {
+
+        private final SnapshotStore.Writer snapshot;
+        private int series;
+        private int reported;
+        private int grouped;
+        private long parseNanos;
+        private long publishNanos;
+
+        Cycle(SnapshotStore.Writer snapshot) {
+            this.snapshot = snapshot;
+        }
+    }
+
+    /**
+     * The series whose nested attribute values were collapsed into the same
+     * {@link CardinalityGuard#OTHER} series, reported once with the sum of
+     * their values.
+     */
+    private static final class Collapsed {
+
+        private final OpsMetricsMetric metric;
+        private double raw;
+
+        Collapsed(OpsMetricsMetric metric) {
+            this.metric = metric;
+        }
     }
 }
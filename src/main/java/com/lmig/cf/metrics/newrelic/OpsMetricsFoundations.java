@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.newrelic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.opsmetrics.CardinalityGuard;
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
+import com.lmig.cf.metrics.opsmetrics.Foundation;
+import com.lmig.cf.metrics.opsmetrics.MBeanCollector;
+import com.lmig.cf.metrics.opsmetrics.MBeanFilter;
+import com.lmig.cf.metrics.opsmetrics.OpsMetrics;
+import com.lmig.cf.metrics.opsmetrics.Rollup;
+import com.lmig.cf.metrics.scheduling.CollectionScheduler;
+import com.lmig.cf.metrics.snapshot.MetricSnapshots;
+
+/**
+ * Collects the Ops Metrics of every configured {@link Foundation}. Each
+ * foundation gets its own JMX connection, MBean collector, change tracker,
+ * rollup, cardinality guard and {@link CollectionScheduler} thread, so an
+ * unreachable or slow foundation only delays its own collection. Collection
+ * starts once the bean is fully constructed.
+ */
+@Component
+public class OpsMetricsFoundations {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OpsMetricsFoundations.class);
+
+    private final EventPublisher publisher;
+    private final Instrumentation instrumentation;
+    private final CollectionScheduler scheduler;
+    private final MetricSnapshots snapshots;
+    private final MBeanFilter filter;
+    private final ObjectFactory<CardinalityGuard> guards;
+    private final ObjectFactory<MBeanCollector> collectors;
+    private final ObjectFactory<ChangeTracker> changeTrackers;
+    private final ObjectFactory<Rollup> rollups;
+    private final boolean includeAppSpecificMetrics;
+    private final boolean bulkAttributeFetch;
+    private final long schemaCacheTtl;
+    private final boolean notifications;
+    private final int resyncCycles;
+    private final List<Foundation> foundations;
+    private final long interval;
+    private final List<FoundationCollection> collections = new ArrayList<FoundationCollection>();
+
+    @Autowired
+    public OpsMetricsFoundations(Environment environment, EventPublisher publisher, Instrumentation instrumentation,
+            CollectionScheduler scheduler, MetricSnapshots snapshots, MBeanFilter filter,
+            ObjectFactory<CardinalityGuard> guards, ObjectFactory<MBeanCollector> collectors,
+            ObjectFactory<ChangeTracker> changeTrackers, ObjectFactory<Rollup> rollups,
+            @Value("${opsmetrics.includeAppSpecificMetrics:false}") boolean includeAppSpecificMetrics,
+            @Value("${opsmetrics.bulk.attribute.fetch:true}") boolean bulkAttributeFetch,
+            @Value("${opsmetrics.schema.cache.ttl:600000}") long schemaCacheTtl,
+            @Value("${opsmetrics.notifications:false}") boolean notifications,
+            @Value("${opsmetrics.notifications.resync:10}") int resyncCycles,
+            @Value("${collection.interval:30000}") long interval) {
+        this.publisher = publisher;
+        this.instrumentation = instrumentation;
+        this.scheduler = scheduler;
+        this.snapshots = snapshots;
+        this.filter = filter;
+        this.guards = guards;
+        this.collectors = collectors;
+        this.changeTrackers = changeTrackers;
+        this.rollups = rollups;
+        this.includeAppSpecificMetrics = includeAppSpecificMetrics;
+        this.bulkAttributeFetch = bulkAttributeFetch;
+        this.schemaCacheTtl = schemaCacheTtl;
+        this.notifications = notifications;
+        this.resyncCycles = resyncCycles;
+        this.foundations = Foundation.fromEnvironment(environment);
+        this.interval = interval;
+    }
+
+    /**
+     * Starts collecting each foundation every {@code interval} milliseconds
+     * on a thread of its own.
+     */
+    @PostConstruct
+    public void start() {
+        for (Foundation foundation : foundations) {
+            start(foundation);
+        }
+    }
+
+    private void start(Foundation foundation) {
+        FoundationCollection collection = new FoundationCollection(foundation);
+        collections.add(collection);
+        collection.schedule = scheduler.schedule(OpsMetrics.source(foundation.getName()), interval, collection::run);
+        LOG.info("Collecting Ops Metrics of {}", foundation);
+    }
+
+    OpsMetricsForwarder forwarder(Foundation foundation, MBeanCollector collector) {
+        OpsMetrics opsMetrics = new OpsMetrics(foundation, includeAppSpecificMetrics, bulkAttributeFetch,
+                schemaCacheTtl, collector, filter, instrumentation);
+        if (notifications) {
+            opsMetrics.listenForNotifications(resyncCycles);
+        }
+        return new OpsMetricsForwarder(opsMetrics, publisher, changeTrackers.getObject(), foundation.getName(),
+                instrumentation, snapshots.store(foundation.getName()), rollups.getObject(),
+                guards.getObject().reportAs(OpsMetrics.source(foundation.getName())));
+    }
+
+    public int size() {
+        return collections.size();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (FoundationCollection collection : collections) {
+            collection.close();
+        }
+    }
+
+    private class FoundationCollection {
+
+        private final MBeanCollector collector;
+        private final OpsMetricsForwarder forwarder;
+        private CollectionScheduler.Schedule schedule;
+
+        FoundationCollection(Foundation foundation) {
+            this.collector = collectors.getObject();
+            this.forwarder = forwarder(foundation, collector);
+        }
+
+        /**
+         * Runs one collection and returns the fraction of the metrics that
+         * changed.
+         */
+        double run() {
+            forwarder.forwardOpsMetricsToInsights();
+            return forwarder.getChangeRatio();
+        }
+
+        void close() {
+            schedule.cancel();
+            forwarder.close();
+            collector.shutdown();
+        }
+    }
+}
@@ -15,73 +15,104 @@
  */
 package com.lmig.cf.metrics.newrelic;
 
-import java.rmi.RemoteException;
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.PostConstruct;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
-import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 
-import com.newrelic.agent.deps.com.google.common.collect.Lists;
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.scheduling.CollectionScheduler;
+import com.lmig.cf.metrics.vsphere.DatastoreCollector;
+import com.lmig.cf.metrics.vsphere.DatastoreWatcher;
 import com.newrelic.agent.deps.com.google.common.collect.Maps;
-import com.newrelic.api.agent.Insights;
-import com.newrelic.api.agent.NewRelic;
-import com.vmware.vim25.InvalidProperty;
-import com.vmware.vim25.RuntimeFault;
-import com.vmware.vim25.mo.Datastore;
-import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.DatastoreSummary;
 
 /**
  * @author David Ehringer (n0119737)
  */
 @Component
-@ConditionalOnBean(InventoryNavigator.class)
+@ConditionalOnProperty("vsphere.host")
 public class VSphereMetricsForwarder {
 
     private static final Logger LOG = LoggerFactory.getLogger(VSphereMetricsForwarder.class);
 
-    private final InventoryNavigator inventoryNavigator;
-    private final Insights insights;
+    private static final String SOURCE = "vsphere.datastores";
+
+    private final DatastoreCollector datastores;
+    private final DatastoreWatcher watcher;
+    private final EventPublisher publisher;
     private final String cfInstanceName;
-    private final List<String> datastores;
+    private final boolean streaming;
+    private final int heartbeatCycles;
+    private final Instrumentation instrumentation;
+    private final CollectionScheduler scheduler;
+    private final long interval;
 
     @Autowired
-    public VSphereMetricsForwarder(InventoryNavigator inventoryNavigator,
+    public VSphereMetricsForwarder(DatastoreCollector datastores, DatastoreWatcher watcher, EventPublisher publisher,
             @Value("${cf.instance.Name:default}") String cfInstanceName,
-            @Value("${datastores:}") String[] datastores) {
-        this.inventoryNavigator = inventoryNavigator;
+            @Value("${vsphere.streaming:false}") boolean streaming,
+            @Value("${vsphere.streaming.heartbeat:10}") int heartbeatCycles, Instrumentation instrumentation,
+            CollectionScheduler scheduler, @Value("${collection.interval:30000}") long interval) {
+        this.instrumentation = instrumentation;
+        this.datastores = datastores;
+        this.watcher = watcher;
         this.cfInstanceName = cfInstanceName;
-        this.insights = NewRelic.getAgent().getInsights();
-        this.datastores = Lists.newArrayList(datastores);
+        this.publisher = publisher;
+        this.streaming = streaming;
+        this.heartbeatCycles = Math.max(1, heartbeatCycles);
+        this.scheduler = scheduler;
+        this.interval = interval;
     }
 
-    @Scheduled(fixedRateString = "${collection.interval:30000}")
-    public void forwardMetricsToInsights() throws InvalidProperty, RuntimeFault, RemoteException {
+    /**
+     * Starts polling the datastores every {@code interval} or, when
+     * streaming, watching them and reporting the last known state of every
+     * datastore every {@code heartbeatCycles} intervals. Changes are
+     * reported as they stream in between heartbeats.
+     */
+    @PostConstruct
+    public void start() {
+        if (streaming) {
+            watcher.start(this::publish);
+        }
+        scheduler.schedule(SOURCE, streaming ? interval * heartbeatCycles : interval, () -> {
+            forwardMetricsToInsights();
+            return 1;
+        });
+    }
+
+    public void forwardMetricsToInsights() throws IOException {
         long start = startTiming();
-        int datastoreCount = 0;
-        for (String name : datastores) {
-            Datastore datastore = (Datastore) inventoryNavigator.searchManagedEntity("Datastore",
-                    name);
-            if (datastore != null) {
-                Map<String, Object> attributes = Maps.newHashMap();
-                attributes.put("platform_instance", cfInstanceName);
-                attributes.put("type", "datastore");
-                attributes.put("name", name);
-                attributes.put("capacity", bytesToGb(datastore.getSummary().getCapacity()));
-                attributes.put("free_space", bytesToGb(datastore.getSummary().getFreeSpace()));
-                attributes.put("uncommitted", bytesToGb(datastore.getSummary().getUncommitted()));
-                insights.recordCustomEvent("cf_iaas_metrics", attributes);
-                datastoreCount++;
-            } else {
-                LOG.error("Unable to find datastore {}", name);
-            }
+        long fetching = System.nanoTime();
+        List<DatastoreSummary> summaries = streaming ? watcher.getSummaries() : datastores.collect();
+        instrumentation.timer(SOURCE + ".fetch").recordSince(fetching);
+        instrumentation.counter(SOURCE + ".collected").add(summaries.size());
+        for (DatastoreSummary summary : summaries) {
+            publish(summary);
         }
-        endTiming(start, datastoreCount);
+        endTiming(start, summaries.size());
+    }
+
+    private void publish(DatastoreSummary summary) {
+        Map<String, Object> attributes = Maps.newHashMap();
+        attributes.put("platform_instance", cfInstanceName);
+        attributes.put("type", "datastore");
+        attributes.put("name", summary.getName());
+        attributes.put("capacity", bytesToGb(summary.getCapacity()));
+        attributes.put("free_space", bytesToGb(summary.getFreeSpace()));
+        Long uncommitted = summary.getUncommitted();
+        attributes.put("uncommitted", bytesToGb(uncommitted == null ? 0 : uncommitted));
+        publisher.publish("cf_iaas_metrics", attributes);
     }
 
     private Object bytesToGb(long bytes) {
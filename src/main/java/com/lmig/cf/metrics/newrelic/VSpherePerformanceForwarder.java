@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.newrelic;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.scheduling.CollectionScheduler;
+import com.lmig.cf.metrics.vsphere.PerformanceCollector;
+import com.lmig.cf.metrics.vsphere.PerformanceCollector.EntityPerformance;
+import com.newrelic.agent.deps.com.google.common.collect.Maps;
+
+/**
+ * Reports performance counters of the ESXi hosts and BOSH VMs, one event per
+ * host or VM with a {@code cpu_ready_summation} style attribute per counter.
+ */
+@Component
+@ConditionalOnProperty({ "vsphere.host", "vsphere.performance.enabled" })
+public class VSpherePerformanceForwarder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSpherePerformanceForwarder.class);
+
+    private static final String SOURCE = "vsphere.performance";
+
+    private final PerformanceCollector performance;
+    private final EventPublisher publisher;
+    private final String cfInstanceName;
+    private final Instrumentation instrumentation;
+    private final CollectionScheduler scheduler;
+    private final long interval;
+
+    @Autowired
+    public VSpherePerformanceForwarder(PerformanceCollector performance, EventPublisher publisher,
+            @Value("${cf.instance.Name:default}") String cfInstanceName, Instrumentation instrumentation,
+            CollectionScheduler scheduler, @Value("${vsphere.performance.interval:20000}") long interval) {
+        this.performance = performance;
+        this.publisher = publisher;
+        this.cfInstanceName = cfInstanceName;
+        this.instrumentation = instrumentation;
+        this.scheduler = scheduler;
+        this.interval = interval;
+    }
+
+    @PostConstruct
+    public void start() {
+        scheduler.schedule(SOURCE, interval, () -> {
+            forwardPerformanceToInsights();
+            return 1;
+        });
+    }
+
+    public void forwardPerformanceToInsights() throws IOException {
+        long start = System.currentTimeMillis();
+        long fetching = System.nanoTime();
+        List<EntityPerformance> entities = performance.collect();
+        instrumentation.timer(SOURCE + ".fetch").recordSince(fetching);
+        instrumentation.counter(SOURCE + ".collected").add(entities.size());
+        for (EntityPerformance entity : entities) {
+            Map<String, Object> attributes = Maps.newHashMap();
+            attributes.put("platform_instance", cfInstanceName);
+            attributes.put("type", entity.getType());
+            attributes.put("name", entity.getName());
+            for (Map.Entry<String, Long> value : entity.getValues().entrySet()) {
+                attributes.put(value.getKey().replace('.', '_'), value.getValue());
+            }
+            publisher.publish("cf_iaas_metrics", attributes);
+        }
+        LOG.info("vSphere performance collection completed in {} ms for {} hosts and VMs.",
+                (System.currentTimeMillis() - start), entities.size());
+    }
+}
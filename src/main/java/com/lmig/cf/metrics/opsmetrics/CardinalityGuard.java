@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+/**
+ * Bounds the number of distinct values reported for each nested attribute,
+ * such as {@code dea_index} or the app of app specific metrics. The first
+ * {@code limit} values seen for a key are admitted; any other value is
+ * reported as {@value #OTHER} until an admitted value has not been seen for
+ * {@code expiry} milliseconds and makes room. Limits default to
+ * {@code opsmetrics.cardinality.limit} and can be set per key with
+ * {@code opsmetrics.cardinality.limits} entries such as {@code app:200}. A
+ * limit of {@code 0}, the default, admits every value.
+ * <p>
+ * For each key the number of values admitted and collapsed is reported
+ * alongside a {@link HyperLogLog} estimate of how many distinct values were
+ * seen, so a limit can be sized without keeping every value. Each foundation
+ * gets a guard of its own, so one foundation's values never use up another's
+ * limits, and {@link #reportAs(String)} names its instrumentation after the
+ * foundation.
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class CardinalityGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CardinalityGuard.class);
+
+    public static final String OTHER = "__other__";
+
+    public static final CardinalityGuard NONE = new CardinalityGuard(0, new String[0], 0, new Instrumentation(),
+            System::currentTimeMillis);
+
+    private static final long MAX_SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final int defaultLimit;
+    private final Map<String, Integer> limits = new HashMap<String, Integer>();
+    private final long expiry;
+    private final Instrumentation instrumentation;
+    private final LongSupplier clock;
+    private final Map<String, Dimension> dimensions = new ConcurrentHashMap<String, Dimension>();
+    private String prefix = "cardinality.";
+
+    @Autowired
+    public CardinalityGuard(@Value("${opsmetrics.cardinality.limit:0}") int defaultLimit,
+            @Value("${opsmetrics.cardinality.limits:}") String[] limits,
+            @Value("${opsmetrics.cardinality.expiry:3600000}") long expiry,
+            Instrumentation instrumentation) {
+        this(defaultLimit, limits, expiry, instrumentation, System::currentTimeMillis);
+    }
+
+    CardinalityGuard(int defaultLimit, String[] limits, long expiry, Instrumentation instrumentation,
+            LongSupplier clock) {
+        this.defaultLimit = defaultLimit;
+        for (String limit : limits) {
+            limit = limit.trim();
+            if (limit.isEmpty()) {
+                continue;
+            }
+            int colon = limit.lastIndexOf(':');
+            try {
+                this.limits.put(limit.substring(0, colon).trim(), Integer.parseInt(limit.substring(colon + 1).trim()));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("Invalid cardinality limit '" + limit
+                        + "'. Expected a key and a limit such as app:200.", e);
+            }
+        }
+        this.expiry = expiry;
+        this.instrumentation = instrumentation;
+        this.clock = clock;
+    }
+
+    /**
+     * Reports the instrumentation of this guard under
+     * {@code <source>.cardinality.*} rather than {@code cardinality.*}. Must
+     * be called before the guard admits any value.
+     */
+    public CardinalityGuard reportAs(String source) {
+        this.prefix = source + ".cardinality.";
+        return this;
+    }
+
+    /**
+     * Returns {@code value} when it is admitted for {@code key} and
+     * {@link #OTHER} otherwise.
+     */
+    public String admit(String key, String value) {
+        Dimension dimension = dimensions.get(key);
+        if (dimension == null) {
+            dimension = dimensions.computeIfAbsent(key, this::dimension);
+        }
+        dimension.distinct.add(value);
+        if (dimension.limit <= 0) {
+            return value;
+        }
+        long now = clock.getAsLong();
+        if (dimension.values.replace(value, now) != null) {
+            return value;
+        }
+        if (dimension.size.get() >= dimension.limit && now >= dimension.nextSweep) {
+            sweep(key, dimension, now);
+        }
+        if (dimension.size.incrementAndGet() > dimension.limit) {
+            dimension.size.decrementAndGet();
+            dimension.collapsed.increment();
+            dimension.allCollapsed.increment();
+            return OTHER;
+        }
+        if (dimension.values.putIfAbsent(value, now) != null) {
+            dimension.size.decrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * The number of values currently admitted for {@code key}.
+     */
+    public int size(String key) {
+        Dimension dimension = dimensions.get(key);
+        return dimension == null ? 0 : dimension.size.get();
+    }
+
+    /**
+     * Drops the values of a full key that have not been seen within the
+     * expiry. Runs at most once per sweep interval so a key with more values
+     * than its limit does not scan its values for every one it collapses.
+     */
+    private void sweep(String key, Dimension dimension, long now) {
+        dimension.nextSweep = now + Math.min(MAX_SWEEP_INTERVAL, Math.max(1, expiry / 10));
+        int expired = 0;
+        for (Iterator<Long> seen = dimension.values.values().iterator(); seen.hasNext();) {
+            if (now - seen.next() > expiry) {
+                seen.remove();
+                dimension.size.decrementAndGet();
+                expired++;
+            }
+        }
+        if (expired == 0 && !dimension.warned) {
+            dimension.warned = true;
+            LOG.warn("More than {} distinct values of {}. Further values are reported as {}.", dimension.limit,
+                    key, OTHER);
+        }
+    }
+
+    private Dimension dimension(String key) {
+        Dimension dimension = new Dimension(limits.getOrDefault(key, defaultLimit),
+                instrumentation.counter(prefix + key + ".collapsed"), instrumentation.counter(prefix + "collapsed"));
+        instrumentation.gauge(prefix + key + ".values", dimension.size::get);
+        instrumentation.gauge(prefix + key + ".estimated", dimension.distinct::estimate);
+        return dimension;
+    }
+
+    private static final class Dimension {
+
+        private final int limit;
+        private final Map<String, Long> values = new ConcurrentHashMap<String, Long>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final HyperLogLog distinct = new HyperLogLog();
+        private final LongAdder collapsed;
+        private final LongAdder allCollapsed;
+        private volatile long nextSweep;
+        private volatile boolean warned;
+
+        Dimension(int limit, LongAdder collapsed, LongAdder allCollapsed) {
+            this.limit = limit;
+            this.collapsed = collapsed;
+            this.allCollapsed = allCollapsed;
+        }
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+/**
+ * Remembers the last value emitted for each Ops Metrics series (object name
+ * and attribute) so unchanged values can be suppressed. A value counts as
+ * changed when it differs from the last emitted value by more than the
+ * deadband, a fraction of the last value. Every series is still emitted at
+ * least once every {@code heartbeatCycles} cycles.
+ * <p>
+ * Attributes whose base name is listed as a counter, such as
+ * {@code router.responses}, are monotonic totals and are turned into
+ * per-second rates between consecutive cycles.
+ * <p>
+ * Series live in an open-addressing table keyed by a 64-bit hash of the
+ * object name and attribute, which are kept to tell colliding series apart,
+ * with the values held in primitive arrays. Series not seen for
+ * {@value #EXPIRE_CYCLES} cycles are dropped at the end of a cycle and the
+ * table never holds more than {@code maxSeries} series, so memory stays
+ * bounded as VMs come and go. When it is full, series not seen this cycle
+ * are dropped to make room, and failing that the least recently seen of a
+ * few. Not thread-safe; meant to be driven by a single collection cycle at
+ * a time.
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class ChangeTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChangeTracker.class);
+
+    static final int EXPIRE_CYCLES = 5;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int EVICTION_CANDIDATES = 16;
+
+    private final boolean enabled;
+    private final float deadband;
+    private final int heartbeatCycles;
+    private final Set<String> counters;
+    private final int maxSeries;
+
+    private long[] keys;
+    private String[] names;
+    private String[] attributes;
+    private int[] seenCycle;
+    private int[] emittedCycle;
+    private double[] emitted;
+    private double[] lastTotal;
+    private long[] lastTotalTime;
+    private int size;
+
+    private int cycle;
+    private long cycleTime;
+    private double value;
+    private boolean counter;
+    private boolean warnedFull;
+    private int sweptCycle;
+    private int evictionCursor;
+
+    @Autowired
+    public ChangeTracker(@Value("${opsmetrics.delta.enabled:false}") boolean enabled,
+            @Value("${opsmetrics.delta.deadband:0}") float deadband,
+            @Value("${opsmetrics.delta.heartbeat:10}") int heartbeatCycles,
+            @Value("${opsmetrics.delta.counters:router.responses}") String[] counters,
+            @Value("${opsmetrics.delta.max.series:500000}") int maxSeries) {
+        this.enabled = enabled;
+        this.deadband = deadband;
+        this.heartbeatCycles = Math.max(1, heartbeatCycles);
+        this.counters = new HashSet<String>(Arrays.asList(counters));
+        this.maxSeries = maxSeries;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void startCycle(long timestamp) {
+        cycle++;
+        cycleTime = timestamp;
+    }
+
+    /**
+     * Decides whether a value should be emitted this cycle. When it should,
+     * {@link #value()} and {@link #isCounter()} describe what to emit.
+     */
+    public boolean track(String name, String attribute, double raw) {
+        value = raw;
+        if (!enabled) {
+            counter = false;
+            return true;
+        }
+        counter = counters.contains(baseName(attribute));
+        long key = seriesId(name, attribute);
+        int slot = slot(key, name, attribute);
+        if (seenCycle[slot] == 0) {
+            slot = insert(key, name, attribute);
+            lastTotal[slot] = raw;
+            lastTotalTime[slot] = cycleTime;
+            if (counter) {
+                return false;
+            }
+            return emit(slot);
+        }
+        seenCycle[slot] = cycle;
+        if (counter) {
+            double delta = raw >= lastTotal[slot] ? raw - lastTotal[slot] : raw;
+            long elapsed = cycleTime - lastTotalTime[slot];
+            lastTotal[slot] = raw;
+            lastTotalTime[slot] = cycleTime;
+            if (elapsed <= 0) {
+                return false;
+            }
+            value = delta * 1000 / elapsed;
+        }
+        if (cycle - emittedCycle[slot] >= heartbeatCycles || changed(emitted[slot], value)) {
+            return emit(slot);
+        }
+        return false;
+    }
+
+    /**
+     * The value to emit: the raw value for gauges or the per-second rate for
+     * counters.
+     */
+    public double value() {
+        return value;
+    }
+
+    public boolean isCounter() {
+        return counter;
+    }
+
+    /**
+     * Drops series that have not been seen recently.
+     */
+    public void endCycle() {
+        if (!enabled) {
+            return;
+        }
+        int live = 0;
+        for (int i = 0; i < seenCycle.length; i++) {
+            if (seenCycle[i] != 0 && cycle - seenCycle[i] < EXPIRE_CYCLES) {
+                live++;
+            }
+        }
+        if (live < size) {
+            rehash(capacityFor(live), EXPIRE_CYCLES);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean emit(int slot) {
+        emitted[slot] = value;
+        emittedCycle[slot] = cycle;
+        return true;
+    }
+
+    private boolean changed(double last, double current) {
+        return Math.abs(current - last) > deadband * Math.abs(last) || Double.isNaN(last) != Double.isNaN(current);
+    }
+
+    private int insert(long key, String name, String attribute) {
+        if (size >= maxSeries) {
+            makeRoom();
+        }
+        int slot = slot(key, name, attribute);
+        size++;
+        keys[slot] = key;
+        names[slot] = name;
+        attributes[slot] = attribute;
+        seenCycle[slot] = cycle;
+        emittedCycle[slot] = 0;
+        if (size * 2 > keys.length) {
+            rehash(keys.length * 2, Integer.MAX_VALUE);
+            return slot(key, name, attribute);
+        }
+        return slot;
+    }
+
+    /**
+     * Drops the series not seen this cycle, once a cycle, or else the least
+     * recently seen of a few series.
+     */
+    private void makeRoom() {
+        if (!warnedFull) {
+            LOG.warn("Tracking the maximum of {} series. Least recently seen series are forgotten.", maxSeries);
+            warnedFull = true;
+        }
+        if (sweptCycle != cycle) {
+            sweptCycle = cycle;
+            rehash(keys.length, 1);
+            if (size < maxSeries) {
+                return;
+            }
+        }
+        int mask = keys.length - 1;
+        int victim = -1;
+        for (int seen = 0; seen < Math.min(EVICTION_CANDIDATES, size); evictionCursor = (evictionCursor + 1) & mask) {
+            if (seenCycle[evictionCursor] != 0) {
+                if (victim < 0 || seenCycle[evictionCursor] < seenCycle[victim]) {
+                    victim = evictionCursor;
+                }
+                seen++;
+            }
+        }
+        if (victim >= 0) {
+            remove(victim);
+        }
+    }
+
+    /**
+     * Empties a slot, moving later series of the same probe run back into
+     * it so every series stays reachable from its home slot.
+     */
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int hole = slot;
+        seenCycle[hole] = 0;
+        names[hole] = null;
+        attributes[hole] = null;
+        size--;
+        for (int next = (hole + 1) & mask; seenCycle[next] != 0; next = (next + 1) & mask) {
+            int home = (int) (mix(keys[next]) & mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+    private void move(int from, int to) {
+        keys[to] = keys[from];
+        names[to] = names[from];
+        attributes[to] = attributes[from];
+        seenCycle[to] = seenCycle[from];
+        emittedCycle[to] = emittedCycle[from];
+        emitted[to] = emitted[from];
+        lastTotal[to] = lastTotal[from];
+        lastTotalTime[to] = lastTotalTime[from];
+        seenCycle[from] = 0;
+        names[from] = null;
+        attributes[from] = null;
+    }
+
+    private int slot(long key, String name, String attribute) {
+        int mask = keys.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (seenCycle[slot] != 0
+                && (keys[slot] != key || !names[slot].equals(name) || !attributes[slot].equals(attribute))) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity, int maxAge) {
+        long[] oldKeys = keys;
+        String[] oldNames = names;
+        String[] oldAttributes = attributes;
+        int[] oldSeen = seenCycle;
+        int[] oldEmittedCycle = emittedCycle;
+        double[] oldEmitted = emitted;
+        double[] oldTotal = lastTotal;
+        long[] oldTotalTime = lastTotalTime;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldSeen[i] != 0 && cycle - oldSeen[i] < maxAge) {
+                int slot = slot(oldKeys[i], oldNames[i], oldAttributes[i]);
+                keys[slot] = oldKeys[i];
+                names[slot] = oldNames[i];
+                attributes[slot] = oldAttributes[i];
+                seenCycle[slot] = oldSeen[i];
+                emittedCycle[slot] = oldEmittedCycle[i];
+                emitted[slot] = oldEmitted[i];
+                lastTotal[slot] = oldTotal[i];
+                lastTotalTime[slot] = oldTotalTime[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        names = new String[capacity];
+        attributes = new String[capacity];
+        seenCycle = new int[capacity];
+        emittedCycle = new int[capacity];
+        emitted = new double[capacity];
+        lastTotal = new double[capacity];
+        lastTotalTime = new long[capacity];
+        size = 0;
+    }
+
+    private static int capacityFor(int series) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < series * 2) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * The 64-bit id of the series of an attribute of the MBean with object
+     * name {@code name}, an FNV-1a hash of both.
+     */
+    public static long seriesId(String name, String attribute) {
+        long hash = hash(0xcbf29ce484222325L, name);
+        hash = (hash ^ 0xff) * 0x100000001b3L;
+        return hash(hash, attribute);
+    }
+
+    private static long hash(long hash, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    static String baseName(String attribute) {
+        int bracket = attribute.indexOf('[');
+        return bracket < 0 ? attribute : attribute.substring(0, bracket);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.core.env.PropertyResolver;
+import org.springframework.util.StringUtils;
+
+/**
+ * A Cloud Foundry foundation whose Ops Metrics are collected.
+ * <p>
+ * Foundations are listed by name in {@code opsmetrics.foundations} and each
+ * one is configured with {@code opsmetrics.<name>.host}, {@code .port},
+ * {@code .username}, {@code .password} and {@code .instance.name}, which
+ * defaults to the foundation name. Without a list, a single foundation is
+ * configured with {@code opsmetrics.host} and friends and named after
+ * {@code cf.instance.Name}.
+ */
+public class Foundation {
+
+    private final String name;
+    private final String host;
+    private final String port;
+    private final String username;
+    private final String password;
+
+    public Foundation(String name, String host, String port, String username, String password) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+    }
+
+    public static List<Foundation> fromEnvironment(PropertyResolver environment) {
+        List<Foundation> foundations = new ArrayList<Foundation>();
+        String[] names = StringUtils.commaDelimitedListToStringArray(environment.getProperty(
+                "opsmetrics.foundations", ""));
+        for (String name : names) {
+            name = name.trim();
+            if (!name.isEmpty()) {
+                foundations.add(fromEnvironment(environment, "opsmetrics." + name + ".",
+                        environment.getProperty("opsmetrics." + name + ".instance.name", name)));
+            }
+        }
+        if (foundations.isEmpty()) {
+            foundations.add(fromEnvironment(environment, "opsmetrics.",
+                    environment.getProperty("cf.instance.Name", "default")));
+        }
+        return foundations;
+    }
+
+    private static Foundation fromEnvironment(PropertyResolver environment, String prefix, String name) {
+        return new Foundation(name, environment.getRequiredProperty(prefix + "host"),
+                environment.getProperty(prefix + "port", "44444"),
+                environment.getRequiredProperty(prefix + "username"),
+                environment.getRequiredProperty(prefix + "password"));
+    }
+
+    /**
+     * The name reported as {@code platform_instance}.
+     */
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public String getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + host + ":" + port + ")";
+    }
+}
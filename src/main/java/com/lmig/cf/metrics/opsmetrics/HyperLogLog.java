@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Estimates the number of distinct strings added to it in a fixed 1024
+ * registers, within about 3%. Each string is hashed to 64 bits; the top ten
+ * bits pick a register, which keeps the longest run of leading zeros seen
+ * in the remaining bits. Registers are raised atomically, so collection
+ * threads can add to the same estimate.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+
+    private final AtomicIntegerArray registers = new AtomicIntegerArray(REGISTERS);
+
+    public void add(String value) {
+        long hash = hash(value);
+        int register = (int) (hash >>> (64 - PRECISION));
+        int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+        if (registers.get(register) < rank) {
+            registers.accumulateAndGet(register, rank, Math::max);
+        }
+    }
+
+    public long estimate() {
+        double sum = 0;
+        int empty = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            int rank = registers.get(i);
+            sum += 1.0 / (1L << rank);
+            if (rank == 0) {
+                empty++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && empty > 0) {
+            estimate = REGISTERS * Math.log((double) REGISTERS / empty);
+        }
+        return Math.round(estimate);
+    }
+
+    /**
+     * The hash code of the string spread over 64 bits with the MurmurHash3
+     * finalizer.
+     */
+    private static long hash(String value) {
+        long hash = value.hashCode() * 0x9E3779B97F4A7C15L;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a single {@link JMXConnector} open across collection cycles so the
+ * RMI registry lookup and authentication handshake are only paid once.
+ * Connection failures are detected either through
+ * {@link JMXConnectionNotification}s or by callers reporting an
+ * {@link IOException} through {@link #invalidate(MBeanServerConnection)}.
+ * Reconnect attempts after a failure are spaced out with an exponential
+ * backoff. The {@link MBeanServerConnection} handed out is shared by all
+ * callers and is safe to use from multiple threads.
+ */
+public class JmxConnectionManager implements NotificationListener, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JmxConnectionManager.class);
+
+    static final long DEFAULT_INITIAL_BACKOFF = TimeUnit.SECONDS.toMillis(1);
+    static final long DEFAULT_MAX_BACKOFF = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * Opens a new connection to the JMX server.
+     */
+    public interface ConnectorFactory {
+
+        JMXConnector connect() throws IOException;
+    }
+
+    /**
+     * Notified each time a new connection is established, before it is
+     * handed out.
+     */
+    public interface ConnectListener {
+
+        void connected(MBeanServerConnection connection);
+    }
+
+    /**
+     * Notified when the connection reports that notifications sent by the
+     * server were lost.
+     */
+    public interface NotificationsLostListener {
+
+        void notificationsLost();
+    }
+
+    private final String address;
+    private final ConnectorFactory connectorFactory;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final LongSupplier clock;
+    private final List<ConnectListener> connectListeners = new CopyOnWriteArrayList<ConnectListener>();
+    private final List<NotificationsLostListener> notificationsLostListeners =
+            new CopyOnWriteArrayList<NotificationsLostListener>();
+
+    private volatile MBeanServerConnection connection;
+    private JMXConnector connector;
+    private int consecutiveFailures;
+    private long nextAttempt;
+
+    public JmxConnectionManager(String address, ConnectorFactory connectorFactory) {
+        this(address, connectorFactory, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF,
+                System::currentTimeMillis);
+    }
+
+    JmxConnectionManager(String address, ConnectorFactory connectorFactory, long initialBackoff,
+            long maxBackoff, LongSupplier clock) {
+        this.address = address;
+        this.connectorFactory = connectorFactory;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.clock = clock;
+    }
+
+    public void addConnectListener(ConnectListener listener) {
+        connectListeners.add(listener);
+    }
+
+    public void addNotificationsLostListener(NotificationsLostListener listener) {
+        notificationsLostListeners.add(listener);
+    }
+
+    /**
+     * Returns the shared connection, connecting first if there is no open
+     * connection. While backing off after a failed attempt an
+     * {@link IOException} is thrown without contacting the server.
+     */
+    public MBeanServerConnection getConnection() throws IOException {
+        MBeanServerConnection current = connection;
+        if (current != null) {
+            return current;
+        }
+        return connect();
+    }
+
+    private synchronized MBeanServerConnection connect() throws IOException {
+        if (connection != null) {
+            return connection;
+        }
+        long now = clock.getAsLong();
+        if (now < nextAttempt) {
+            throw new IOException(String.format("Not reconnecting to %s for another %d ms after %d failures",
+                    address, nextAttempt - now, consecutiveFailures));
+        }
+        LOG.debug("Connecting to {}", address);
+        JMXConnector newConnector = null;
+        try {
+            newConnector = connectorFactory.connect();
+            newConnector.addConnectionNotificationListener(this, null, newConnector);
+            MBeanServerConnection newConnection = newConnector.getMBeanServerConnection();
+            for (ConnectListener listener : connectListeners) {
+                listener.connected(newConnection);
+            }
+            connector = newConnector;
+            connection = newConnection;
+            consecutiveFailures = 0;
+            nextAttempt = 0;
+            LOG.info("Connected to {}", address);
+            return newConnection;
+        } catch (IOException | RuntimeException e) {
+            close(newConnector);
+            consecutiveFailures++;
+            long backoff = backoff(consecutiveFailures);
+            nextAttempt = now + backoff;
+            LOG.warn("Unable to connect to {}. Retrying in {} ms.", address, backoff);
+            throw e;
+        }
+    }
+
+    long backoff(int failures) {
+        long backoff = initialBackoff << Math.min(failures - 1, 30);
+        return backoff < 0 || backoff > maxBackoff ? maxBackoff : backoff;
+    }
+
+    /**
+     * Discards the connection after a caller saw it fail. A connection that
+     * has already been replaced is ignored so that concurrent callers
+     * reporting the same failure only cause a single reconnect.
+     */
+    public void invalidate(MBeanServerConnection failed) {
+        JMXConnector stale;
+        synchronized (this) {
+            if (failed == null || failed != connection) {
+                return;
+            }
+            stale = detach();
+        }
+        LOG.warn("Connection to {} failed. Reconnecting on next use.", address);
+        close(stale);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        String type = notification.getType();
+        if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+            JMXConnector stale;
+            synchronized (this) {
+                if (handback != connector) {
+                    return;
+                }
+                stale = detach();
+            }
+            LOG.warn("Connection to {} reported {}", address, type);
+            close(stale);
+        } else if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+            LOG.debug("Connection to {} lost notifications", address);
+            for (NotificationsLostListener listener : notificationsLostListeners) {
+                listener.notificationsLost();
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    @Override
+    public void close() {
+        JMXConnector stale;
+        synchronized (this) {
+            stale = detach();
+        }
+        close(stale);
+    }
+
+    private JMXConnector detach() {
+        JMXConnector stale = connector;
+        connector = null;
+        connection = null;
+        if (stale != null) {
+            try {
+                stale.removeConnectionNotificationListener(this);
+            } catch (Exception e) {
+            }
+        }
+        return stale;
+    }
+
+    private void close(JMXConnector connector) {
+        if (connector != null) {
+            try {
+                connector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
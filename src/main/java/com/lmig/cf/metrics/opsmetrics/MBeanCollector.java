@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectInstance;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+/**
+ * Reads MBeans in parallel on a bounded pool of worker threads. Each MBean
+ * read is cancelled if it runs longer than the per-MBean timeout and the
+ * whole collection gives up on reads still outstanding once the cycle
+ * timeout passes, keeping those that finished, so a single slow or hung job
+ * VM only costs its own metrics. Results
+ * are returned ordered by object name regardless of completion order.
+ * <p>
+ * The workers share one {@link javax.management.MBeanServerConnection}; the
+ * RMI transport already opens a socket per concurrent call. A read blocked
+ * in a socket read cannot be interrupted, so its worker stays busy until the
+ * RMI call returns (see {@code sun.rmi.transport.tcp.responseTimeout}).
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class MBeanCollector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBeanCollector.class);
+
+    /**
+     * Reads the metrics of a single MBean.
+     */
+    public interface MBeanReader {
+
+        List<JmxMetric> read(ObjectInstance object) throws Exception;
+    }
+
+    private final long mbeanTimeout;
+    private final long cycleTimeout;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService watchdog;
+
+    @Autowired
+    public MBeanCollector(@Value("${opsmetrics.collection.threads:4}") int threads,
+            @Value("${opsmetrics.collection.mbean.timeout:10000}") long mbeanTimeout,
+            @Value("${opsmetrics.collection.cycle.timeout:25000}") long cycleTimeout) {
+        this.mbeanTimeout = mbeanTimeout;
+        this.cycleTimeout = cycleTimeout;
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), daemonThreads("opsmetrics-collector"));
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(daemonThreads("opsmetrics-watchdog"));
+    }
+
+    /**
+     * Reads every MBean with the given reader. Failures and timeouts reading
+     * a single MBean are logged and the MBean is left out of the result. An
+     * {@link IOException} means the connection itself is broken, so it stops
+     * the collection and is rethrown.
+     */
+    public List<JmxMetric> collect(Collection<ObjectInstance> objects, MBeanReader reader) throws IOException {
+        List<ObjectInstance> ordered = new ArrayList<ObjectInstance>(objects);
+        ordered.sort((a, b) -> a.getObjectName().compareTo(b.getObjectName()));
+
+        List<FutureTask<List<JmxMetric>>> reads = new ArrayList<FutureTask<List<JmxMetric>>>(ordered.size());
+        for (ObjectInstance object : ordered) {
+            FutureTask<List<JmxMetric>> read = new TimedRead(object, reader);
+            reads.add(read);
+            workers.execute(read);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(cycleTimeout);
+        List<JmxMetric> metrics = new ArrayList<JmxMetric>();
+        int skipped = 0;
+        try {
+            for (int i = 0; i < reads.size(); i++) {
+                ObjectInstance object = ordered.get(i);
+                try {
+                    metrics.addAll(reads.get(i).get(Math.max(0, deadline - System.nanoTime()),
+                            TimeUnit.NANOSECONDS));
+                } catch (CancellationException e) {
+                    LOG.warn("Timed out after {} ms reading {}", mbeanTimeout, object.getObjectName());
+                } catch (TimeoutException e) {
+                    skipped++;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    LOG.error("Unable to read {}", object.getObjectName(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while collecting MBeans", e);
+        } finally {
+            reads.forEach(read -> read.cancel(true));
+        }
+        if (skipped > 0) {
+            LOG.warn("Collection cycle timed out after {} ms. Skipping {} of {} MBeans.", cycleTimeout, skipped,
+                    reads.size());
+        }
+        return metrics;
+    }
+
+    /**
+     * Stops the worker threads. Called by whoever created the collector, as
+     * each foundation gets its own.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+        watchdog.shutdownNow();
+    }
+
+    private class TimedRead extends FutureTask<List<JmxMetric>> {
+
+        TimedRead(ObjectInstance object, MBeanReader reader) {
+            super(() -> reader.read(object));
+        }
+
+        @Override
+        public void run() {
+            if (isDone()) {
+                return;
+            }
+            ScheduledFuture<?> timeout = watchdog.schedule(() -> cancel(true), mbeanTimeout,
+                    TimeUnit.MILLISECONDS);
+            try {
+                super.run();
+            } finally {
+                timeout.cancel(false);
+            }
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.BadAttributeValueExpException;
+import javax.management.BadBinaryOpValueExpException;
+import javax.management.BadStringOperationException;
+import javax.management.InvalidApplicationException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.sharding.Shard;
+
+/**
+ * Include and exclude rules for the Ops Metrics MBeans and attributes that
+ * are collected. Deployment and job rules are compiled into an
+ * {@link ObjectName} pattern and a {@link QueryExp} that the MBean server
+ * evaluates, so excluded MBeans are never returned by the query. Attribute
+ * rules are checked before any attribute is read.
+ * <p>
+ * Each rule is an exact name or a prefix ending in {@code *}. An exact
+ * attribute rule also matches the attribute with any nested attributes, so
+ * {@code router.responses} matches {@code router.responses[status=2xx]}.
+ * <p>
+ * When the drain is sharded, only the MBeans owned by this instance's
+ * {@link Shard} are included, keyed by deployment, job and index so an
+ * MBean stays with its instance when the job VM gets a new address.
+ */
+@Component
+public class MBeanFilter {
+
+    public static final MBeanFilter ALL = new MBeanFilter(new String[0], new String[0], new String[0],
+            new String[0], new String[0], new String[0]);
+
+    private static final String WILDCARD = "*";
+
+    private final ObjectName objectName;
+    private final QueryExp query;
+    private final Rules includedAttributes;
+    private final Rules excludedAttributes;
+    private final Shard shard;
+
+    public MBeanFilter(String[] includedDeployments, String[] excludedDeployments, String[] includedJobs,
+            String[] excludedJobs, String[] includedAttributes, String[] excludedAttributes) {
+        this(includedDeployments, excludedDeployments, includedJobs, excludedJobs, includedAttributes,
+                excludedAttributes, Shard.ALL);
+    }
+
+    @Autowired
+    public MBeanFilter(@Value("${opsmetrics.include.deployments:}") String[] includedDeployments,
+            @Value("${opsmetrics.exclude.deployments:}") String[] excludedDeployments,
+            @Value("${opsmetrics.include.jobs:}") String[] includedJobs,
+            @Value("${opsmetrics.exclude.jobs:}") String[] excludedJobs,
+            @Value("${opsmetrics.include.attributes:}") String[] includedAttributes,
+            @Value("${opsmetrics.exclude.attributes:}") String[] excludedAttributes,
+            Shard shard) {
+        this.shard = shard;
+        includedDeployments = names(includedDeployments);
+        excludedDeployments = names(excludedDeployments);
+        includedJobs = names(includedJobs);
+        excludedJobs = names(excludedJobs);
+        this.objectName = pattern(includedDeployments.length == 1 ? includedDeployments[0] : WILDCARD,
+                includedJobs.length == 1 ? includedJobs[0] : WILDCARD);
+        List<QueryExp> queries = new ArrayList<QueryExp>();
+        if (includedDeployments.length > 1) {
+            queries.add(or(deployments(includedDeployments, new ArrayList<QueryExp>())));
+        }
+        if (includedJobs.length > 1) {
+            queries.add(or(jobs(includedJobs, new ArrayList<QueryExp>())));
+        }
+        List<QueryExp> excluded = jobs(excludedJobs, deployments(excludedDeployments, new ArrayList<QueryExp>()));
+        if (!excluded.isEmpty()) {
+            queries.add(Query.not(or(excluded)));
+        }
+        this.query = queries.isEmpty() ? null : queries.stream().reduce(Query::and).get();
+        this.includedAttributes = new Rules(includedAttributes);
+        this.excludedAttributes = new Rules(excludedAttributes);
+    }
+
+    /**
+     * The pattern the Ops Metrics MBeans are queried with.
+     */
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * The query the MBeans matching {@link #getObjectName()} are narrowed
+     * down with or {@code null} when there is nothing left to narrow down.
+     */
+    public QueryExp getQuery() {
+        return query;
+    }
+
+    /**
+     * Whether an MBean returned by the query is collected by this instance.
+     */
+    public boolean includesMBean(ObjectName name) {
+        return shard.owns(name.getKeyProperty("deployment") + "/" + name.getKeyProperty("job") + "/"
+                + name.getKeyProperty("index"));
+    }
+
+    /**
+     * Whether an MBean that was not returned by the query, such as one
+     * announced by a registration notification, is collected by this
+     * instance.
+     */
+    public boolean matches(ObjectName name) {
+        try {
+            return objectName.apply(name) && (query == null || query.apply(name)) && includesMBean(name);
+        } catch (BadStringOperationException | BadBinaryOpValueExpException | BadAttributeValueExpException
+                | InvalidApplicationException e) {
+            return false;
+        }
+    }
+
+    public boolean includesAttribute(String attribute) {
+        return (includedAttributes.isEmpty() || includedAttributes.matches(attribute))
+                && !excludedAttributes.matches(attribute);
+    }
+
+    @Override
+    public String toString() {
+        return objectName + (query == null ? "" : " where " + query) + (shard.getInstances() == 1 ? ""
+                : " on " + shard);
+    }
+
+    private static String[] names(String[] rules) {
+        return Arrays.stream(rules).map(String::trim).filter(rule -> !rule.isEmpty()).toArray(String[]::new);
+    }
+
+    private static List<QueryExp> deployments(String[] deployments, List<QueryExp> patterns) {
+        for (String deployment : deployments) {
+            patterns.add(pattern(deployment, WILDCARD));
+        }
+        return patterns;
+    }
+
+    private static List<QueryExp> jobs(String[] jobs, List<QueryExp> patterns) {
+        for (String job : jobs) {
+            patterns.add(pattern(WILDCARD, job));
+        }
+        return patterns;
+    }
+
+    private static QueryExp or(List<QueryExp> queries) {
+        return queries.stream().reduce(Query::or).get();
+    }
+
+    private static ObjectName pattern(String deployment, String job) {
+        try {
+            return ObjectName.getInstance("org.cloudfoundry:deployment=" + deployment + ",job=" + job
+                    + ",index=*,ip=*");
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Invalid deployment or job filter: " + deployment + ", " + job, e);
+        }
+    }
+
+    private static class Rules {
+
+        private final Set<String> names = new HashSet<String>();
+        private final List<String> prefixes = new ArrayList<String>();
+
+        Rules(String[] rules) {
+            for (String rule : rules) {
+                rule = rule.trim();
+                if (rule.endsWith(WILDCARD)) {
+                    prefixes.add(rule.substring(0, rule.length() - 1));
+                } else if (!rule.isEmpty()) {
+                    names.add(rule);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return names.isEmpty() && prefixes.isEmpty();
+        }
+
+        boolean matches(String attribute) {
+            if (names.contains(attribute)) {
+                return true;
+            }
+            int bracket = attribute.indexOf('[');
+            if (bracket > 0 && names.contains(attribute.substring(0, bracket))) {
+                return true;
+            }
+            for (String prefix : prefixes) {
+                if (attribute.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A live view of the Ops Metrics MBeans kept up to date with JMX
+ * notifications, so a collection cycle only reads the MBeans that changed
+ * or appeared since the previous one and reports the last values read for
+ * the rest. Registrations and unregistrations come from the
+ * {@link MBeanServerDelegate}. MBeans that broadcast notifications of their
+ * own are read again only after they send one; MBeans that don't are read
+ * every cycle.
+ * <p>
+ * The view is rebuilt with a full query after every connect, whenever the
+ * connection reports lost notifications and every {@code resyncCycles}
+ * cycles. When the server does not accept the registration listener,
+ * {@link #isListening(MBeanServerConnection)} is {@code false} and the
+ * MBeans are queried every cycle instead.
+ */
+class MBeanNotifications implements NotificationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBeanNotifications.class);
+
+    private final MBeanFilter filter;
+    private final int resyncCycles;
+    private final Map<ObjectName, ObjectInstance> mbeans = new ConcurrentHashMap<ObjectName, ObjectInstance>();
+    private final Map<ObjectName, List<JmxMetric>> metrics = new ConcurrentHashMap<ObjectName, List<JmxMetric>>();
+    private final Set<ObjectName> broadcasters = ConcurrentHashMap.newKeySet();
+    private final Set<ObjectName> changed = ConcurrentHashMap.newKeySet();
+    private final Set<ObjectName> registered = ConcurrentHashMap.newKeySet();
+    private volatile MBeanServerConnection connection;
+    private volatile boolean stale = true;
+    private int cycles;
+
+    MBeanNotifications(MBeanFilter filter, int resyncCycles) {
+        this.filter = filter;
+        this.resyncCycles = Math.max(1, resyncCycles);
+    }
+
+    /**
+     * Starts listening for registrations on a new connection. The view is
+     * rebuilt on the next cycle.
+     */
+    void connected(MBeanServerConnection newConnection) {
+        connection = null;
+        stale = true;
+        mbeans.clear();
+        metrics.clear();
+        broadcasters.clear();
+        changed.clear();
+        registered.clear();
+        try {
+            newConnection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, null, null);
+            connection = newConnection;
+        } catch (InstanceNotFoundException | IOException | RuntimeException e) {
+            LOG.warn("Unable to listen for MBean registrations. Querying the MBeans every cycle instead.", e);
+        }
+    }
+
+    void notificationsLost() {
+        stale = true;
+    }
+
+    boolean isListening(MBeanServerConnection current) {
+        return connection == current;
+    }
+
+    /**
+     * The MBeans to read this cycle: every MBean after the view was
+     * rebuilt and otherwise the ones that appeared, sent a notification or
+     * do not send notifications.
+     */
+    List<ObjectInstance> changed(MBeanServerConnection current, ObjectName name, QueryExp query)
+            throws IOException {
+        if (stale || ++cycles % resyncCycles == 0) {
+            resync(current, name, query);
+        }
+        for (ObjectName added : registered) {
+            registered.remove(added);
+            add(current, new ObjectInstance(added, null));
+        }
+        List<ObjectInstance> read = new ArrayList<ObjectInstance>();
+        for (ObjectInstance object : mbeans.values()) {
+            ObjectName objectName = object.getObjectName();
+            if (!broadcasters.contains(objectName) || changed.remove(objectName)) {
+                read.add(object);
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Keeps the metrics just read from an MBean as its latest values.
+     */
+    List<JmxMetric> update(ObjectInstance object, List<JmxMetric> read) {
+        if (mbeans.containsKey(object.getObjectName())) {
+            metrics.put(object.getObjectName(), read);
+        }
+        return read;
+    }
+
+    List<JmxMetric> getMetrics() {
+        List<JmxMetric> all = new ArrayList<JmxMetric>();
+        for (List<JmxMetric> read : metrics.values()) {
+            all.addAll(read);
+        }
+        return all;
+    }
+
+    int size() {
+        return mbeans.size();
+    }
+
+    /**
+     * Registrations are only recorded here and subscribed to on the
+     * collection thread, as calls back to the server from a notification
+     * thread can hold up the delivery of other notifications.
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (handback instanceof ObjectName) {
+            changed.add((ObjectName) handback);
+        } else if (notification instanceof MBeanServerNotification) {
+            ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+            if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                if (filter.matches(name)) {
+                    registered.add(name);
+                }
+            } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+                remove(name);
+            }
+        }
+    }
+
+    private void resync(MBeanServerConnection current, ObjectName name, QueryExp query) throws IOException {
+        stale = false;
+        cycles = 0;
+        registered.clear();
+        Map<ObjectName, ObjectInstance> found = new HashMap<ObjectName, ObjectInstance>();
+        for (ObjectInstance object : current.queryMBeans(name, query)) {
+            if (filter.includesMBean(object.getObjectName())) {
+                found.put(object.getObjectName(), object);
+            }
+        }
+        for (ObjectName gone : new ArrayList<ObjectName>(mbeans.keySet())) {
+            if (!found.containsKey(gone)) {
+                remove(gone);
+            }
+        }
+        for (ObjectInstance object : found.values()) {
+            add(current, object);
+            changed.add(object.getObjectName());
+        }
+        LOG.debug("Listening to {} MBeans, {} of them for changes", mbeans.size(), broadcasters.size());
+    }
+
+    private void add(MBeanServerConnection current, ObjectInstance object) throws IOException {
+        ObjectName name = object.getObjectName();
+        if (mbeans.putIfAbsent(name, object) != null) {
+            return;
+        }
+        changed.add(name);
+        try {
+            current.addNotificationListener(name, this, null, name);
+            broadcasters.add(name);
+        } catch (InstanceNotFoundException e) {
+            remove(name);
+        } catch (RuntimeException e) {
+            LOG.debug("{} does not send notifications and is read every cycle", name);
+        }
+    }
+
+    private void remove(ObjectName name) {
+        mbeans.remove(name);
+        metrics.remove(name);
+        broadcasters.remove(name);
+        changed.remove(name);
+        registered.remove(name);
+    }
+}
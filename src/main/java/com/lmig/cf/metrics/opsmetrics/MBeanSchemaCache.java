@@ -0,0 +1,262 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import javax.management.Attribute;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caches the attribute schema of each Ops Metrics MBean so steady-state
+ * scrapes skip the {@code getMBeanInfo} round-trip. Entries expire after a
+ * TTL and are evicted as soon as the {@link MBeanServerDelegate} reports the
+ * MBean was unregistered. The whole cache is dropped on reconnect since
+ * unregistrations may have been missed while disconnected.
+ */
+public class MBeanSchemaCache implements NotificationListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MBeanSchemaCache.class);
+
+    private static final Set<String> NUMERIC_TYPES = new HashSet<String>(Arrays.asList("byte", "short", "int",
+            "long", "float", "double", Byte.class.getName(), Short.class.getName(), Integer.class.getName(),
+            Long.class.getName(), Float.class.getName(), Double.class.getName(),
+            java.math.BigInteger.class.getName(), java.math.BigDecimal.class.getName()));
+    private static final Set<String> NON_NUMERIC_TYPES = new HashSet<String>(Arrays.asList("boolean",
+            "char", Boolean.class.getName(), Character.class.getName(), String.class.getName()));
+
+    private final Map<ObjectName, Schema> schemas = new ConcurrentHashMap<ObjectName, Schema>();
+    private final long ttl;
+    private final LongSupplier clock;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MBeanSchemaCache(long ttl) {
+        this(ttl, System::currentTimeMillis);
+    }
+
+    MBeanSchemaCache(long ttl, LongSupplier clock) {
+        this.ttl = ttl;
+        this.clock = clock;
+    }
+
+    /**
+     * Returns the cached schema or {@code null} when the MBean has not been
+     * seen yet or its entry has expired.
+     */
+    public Schema get(ObjectName name) {
+        Schema schema = schemas.get(name);
+        if (schema != null && clock.getAsLong() - schema.loadedAt < ttl) {
+            hits.incrementAndGet();
+            return schema;
+        }
+        if (schema != null) {
+            schemas.remove(name, schema);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public Schema put(ObjectName name, MBeanAttributeInfo[] attributes, Predicate<String> blacklisted) {
+        Schema schema = new Schema(attributes, blacklisted, clock.getAsLong());
+        if (ttl > 0) {
+            schemas.put(name, schema);
+        }
+        return schema;
+    }
+
+    /**
+     * Records whether the values read for attributes of unknown type were
+     * numbers, replacing the cached schema with what was learned. Schemas
+     * are shared by collection threads and never change once cached.
+     */
+    public Schema learn(ObjectName name, Schema schema, List<Attribute> values) {
+        Schema learned = schema.learn(values);
+        if (learned != schema) {
+            schemas.replace(name, schema, learned);
+        }
+        return learned;
+    }
+
+    public void evict(ObjectName name) {
+        if (schemas.remove(name) != null) {
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Starts from an empty cache on a new connection and subscribes to
+     * MBean unregistrations. Without the subscription entries still expire
+     * through the TTL.
+     */
+    public void connected(MBeanServerConnection connection) {
+        schemas.clear();
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(MBeanServerNotification.UNREGISTRATION_NOTIFICATION);
+        try {
+            connection.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, filter, null);
+        } catch (InstanceNotFoundException | IOException e) {
+            LOG.warn("Unable to subscribe to MBean unregistrations. Schemas will expire after {} ms.", ttl);
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (notification instanceof MBeanServerNotification
+                && MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+            evict(((MBeanServerNotification) notification).getMBeanName());
+        }
+    }
+
+    public int size() {
+        return schemas.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * The attributes of an MBean that are worth reading: app-specific
+     * attributes are left out unless configured otherwise and attributes are
+     * dropped once they are known not to hold numbers, either from their
+     * declared type or from a value read earlier.
+     */
+    public static class Schema {
+
+        private static final byte UNKNOWN = 0;
+        private static final byte NUMERIC = 1;
+        private static final byte NOT_NUMERIC = 2;
+
+        private final String[] names;
+        private final byte[] kinds;
+        private final long loadedAt;
+        private final int unknown;
+        private final List<String> candidates;
+
+        Schema(MBeanAttributeInfo[] attributes, Predicate<String> blacklisted, long loadedAt) {
+            List<MBeanAttributeInfo> readable = new ArrayList<MBeanAttributeInfo>();
+            for (MBeanAttributeInfo attribute : attributes) {
+                if (!blacklisted.test(attribute.getName())) {
+                    readable.add(attribute);
+                }
+            }
+            String[] names = new String[readable.size()];
+            byte[] kinds = new byte[readable.size()];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = readable.get(i).getName();
+                kinds[i] = kindOf(readable.get(i).getType());
+            }
+            this.names = names;
+            this.kinds = kinds;
+            this.loadedAt = loadedAt;
+            this.unknown = count(kinds, UNKNOWN);
+            this.candidates = candidates(names, kinds);
+        }
+
+        private Schema(Schema schema, byte[] kinds) {
+            this.names = schema.names;
+            this.kinds = kinds;
+            this.loadedAt = schema.loadedAt;
+            this.unknown = count(kinds, UNKNOWN);
+            this.candidates = candidates(names, kinds);
+        }
+
+        public List<String> getCandidates() {
+            return candidates;
+        }
+
+        /**
+         * This schema or, when the values read for attributes of unknown
+         * type tell whether they are numbers, a copy that knows.
+         */
+        Schema learn(List<Attribute> values) {
+            if (unknown == 0) {
+                return this;
+            }
+            byte[] learned = kinds;
+            for (Attribute value : values) {
+                for (int i = 0; i < names.length; i++) {
+                    if (kinds[i] == UNKNOWN && names[i].equals(value.getName())) {
+                        if (learned == kinds) {
+                            learned = kinds.clone();
+                        }
+                        learned[i] = value.getValue() instanceof Number ? NUMERIC : NOT_NUMERIC;
+                    }
+                }
+            }
+            return learned == kinds ? this : new Schema(this, learned);
+        }
+
+        private static int count(byte[] kinds, byte kind) {
+            int count = 0;
+            for (byte k : kinds) {
+                if (k == kind) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private static List<String> candidates(String[] names, byte[] kinds) {
+            List<String> candidates = new ArrayList<String>(names.length);
+            for (int i = 0; i < names.length; i++) {
+                if (kinds[i] != NOT_NUMERIC) {
+                    candidates.add(names[i]);
+                }
+            }
+            return Collections.unmodifiableList(candidates);
+        }
+
+        private static byte kindOf(String type) {
+            if (NUMERIC_TYPES.contains(type)) {
+                return NUMERIC;
+            }
+            return NON_NUMERIC_TYPES.contains(type) ? NOT_NUMERIC : UNKNOWN;
+        }
+    }
+}
@@ -17,92 +17,167 @@ package com.lmig.cf.metrics.opsmetrics;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
+import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
-import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectInstance;
 import javax.management.ObjectName;
+import javax.management.QueryExp;
 import javax.management.ReflectionException;
-import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
-import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.instrumentation.LatencyHistogram;
 
 /**
+ * Collects the Ops Metrics of one foundation. Created for each
+ * {@link Foundation} being collected. Connecting, querying the MBeans and
+ * fetching their attributes are timed separately as the {@code connect},
+ * {@code query} and {@code fetch} stages of {@code opsmetrics.<name>}.
+ *
  * @author David Ehringer
  */
-@Component
 public class OpsMetrics {
 
     private static final Logger LOG = LoggerFactory.getLogger(OpsMetrics.class);
 
-    private static final String WILDCARD_OBJECT_NAME = "org.cloudfoundry:deployment=*,job=*,index=*,ip=*";
     private static final Pattern APP_METRIC_PATTERN = Pattern
             .compile("appId=[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}");
 
     private final boolean includeAppSpecificMetrics;
+    private final boolean bulkAttributeFetch;
     private final String host;
-    private final String port;
-    private final String username;
-    private final String password;
-
-    @Autowired
-    public OpsMetrics(@Value("${opsmetrics.host}") String host,
-            @Value("${opsmetrics.port:44444}") String port,
-            @Value("${opsmetrics.username}") String username,
-            @Value("${opsmetrics.password}") String password,
-            @Value("${opsmetrics.includeAppSpecificMetrics:false}") boolean includeAppSpecificMetrics) {
+    private final JmxConnectionManager connections;
+    private final MBeanCollector collector;
+    private final MBeanSchemaCache schemas;
+    private final MBeanFilter filter;
+    private final LatencyHistogram queryTimer;
+    private final LatencyHistogram fetchTimer;
+    private MBeanNotifications notifications;
+
+    public OpsMetrics(Foundation foundation, boolean includeAppSpecificMetrics, boolean bulkAttributeFetch,
+            long schemaCacheTtl, MBeanCollector collector, MBeanFilter filter, Instrumentation instrumentation) {
+        this(foundation.getName(), foundation.getHost(), foundation.getPort(), foundation.getUsername(),
+                foundation.getPassword(), includeAppSpecificMetrics, bulkAttributeFetch, schemaCacheTtl, collector,
+                filter, instrumentation);
+    }
+
+    public OpsMetrics(String host, String port, String username, String password,
+            boolean includeAppSpecificMetrics, boolean bulkAttributeFetch, long schemaCacheTtl,
+            MBeanCollector collector, MBeanFilter filter) {
+        this(host, host, port, username, password, includeAppSpecificMetrics, bulkAttributeFetch, schemaCacheTtl,
+                collector, filter, new Instrumentation());
+    }
+
+    private OpsMetrics(String name, String host, String port, String username, String password,
+            boolean includeAppSpecificMetrics, boolean bulkAttributeFetch, long schemaCacheTtl,
+            MBeanCollector collector, MBeanFilter filter, Instrumentation instrumentation) {
+        this(host, new JmxConnectionManager(host + ":" + port, timed(instrumentation.timer(source(name) + ".connect"),
+                () -> {
+                    JMXServiceURL address = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + host + ":"
+                            + port + "/jmxrmi");
+                    return JMXConnectorFactory.connect(address, getCredentials(username, password));
+                })), collector, new MBeanSchemaCache(schemaCacheTtl), filter, includeAppSpecificMetrics,
+                bulkAttributeFetch, instrumentation, name);
+    }
+
+    OpsMetrics(String host, JmxConnectionManager connections, MBeanCollector collector, MBeanSchemaCache schemas,
+            MBeanFilter filter, boolean includeAppSpecificMetrics, boolean bulkAttributeFetch) {
+        this(host, connections, collector, schemas, filter, includeAppSpecificMetrics, bulkAttributeFetch,
+                new Instrumentation(), host);
+    }
+
+    OpsMetrics(String host, JmxConnectionManager connections, MBeanCollector collector, MBeanSchemaCache schemas,
+            MBeanFilter filter, boolean includeAppSpecificMetrics, boolean bulkAttributeFetch,
+            Instrumentation instrumentation, String name) {
         this.host = host;
-        this.port = port;
-        this.username = username;
-        this.password = password;
+        this.queryTimer = instrumentation.timer(source(name) + ".query");
+        this.fetchTimer = instrumentation.timer(source(name) + ".fetch");
+        this.connections = connections;
+        this.collector = collector;
+        this.schemas = schemas;
+        this.filter = filter;
+        connections.addConnectListener(schemas::connected);
         this.includeAppSpecificMetrics = includeAppSpecificMetrics;
+        this.bulkAttributeFetch = bulkAttributeFetch;
+    }
+
+    /**
+     * Keeps a live view of the MBeans with JMX notifications instead of
+     * querying and reading every MBean each cycle. Only MBeans that
+     * appeared or sent a notification since the previous cycle are read,
+     * along with the MBeans that do not send notifications. The view is
+     * rebuilt with a full query every {@code resyncCycles} cycles. Must be
+     * called before the first collection.
+     */
+    public void listenForNotifications(int resyncCycles) {
+        notifications = new MBeanNotifications(filter, resyncCycles);
+        connections.addConnectListener(notifications::connected);
+        connections.addNotificationsLostListener(notifications::notificationsLost);
     }
 
     public List<JmxMetric> getMetrics() throws OpsMetricsException {
         return execute(new JmxTemplate<List<JmxMetric>>() {
             @Override
             public List<JmxMetric> execute(MBeanServerConnection connection) throws Exception {
-                ObjectName query = ObjectName.getInstance(WILDCARD_OBJECT_NAME);
-                return searchForMetrics(connection, query);
+                return searchForMetrics(connection, filter.getObjectName(), filter.getQuery());
             }
         });
     }
 
     private <T> T execute(JmxTemplate<T> template) throws OpsMetricsException {
-        LOG.debug("Connecting to {}:{}", host, port);
-        JMXConnector connector = null;
+        MBeanServerConnection connection;
+        try {
+            connection = connections.getConnection();
+        } catch (IOException e) {
+            throw new OpsMetricsException(host, e);
+        }
         try {
-            JMXServiceURL address = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://" + host + ":"
-                    + port + "/jmxrmi");
-            HashMap<String, String[]> env = getCredentials();
-            connector = JMXConnectorFactory.connect(address, env);
-            MBeanServerConnection mbs = connector.getMBeanServerConnection();
-            return template.execute(mbs);
+            return template.execute(connection);
+        } catch (IOException e) {
+            connections.invalidate(connection);
+            LOG.error("Unabled to execute JMX command", e);
+            throw new OpsMetricsException(e);
         } catch (Exception e) {
             LOG.error("Unabled to execute JMX command", e);
             throw new OpsMetricsException(e);
-        } finally {
-            close(connector);
         }
     }
 
-    private HashMap<String, String[]> getCredentials() {
+    /**
+     * The name the timers and counters of a foundation's collection are
+     * kept under.
+     */
+    public static String source(String name) {
+        return "opsmetrics." + name;
+    }
+
+    private static JmxConnectionManager.ConnectorFactory timed(LatencyHistogram timer,
+            JmxConnectionManager.ConnectorFactory factory) {
+        return () -> {
+            long start = System.nanoTime();
+            try {
+                return factory.connect();
+            } finally {
+                timer.recordSince(start);
+            }
+        };
+    }
+
+    private static HashMap<String, String[]> getCredentials(String username, String password) {
         HashMap<String, String[]> env = null;
         if (username != null && password != null) {
             env = new HashMap<String, String[]>();
@@ -111,30 +186,88 @@ public class OpsMetrics {
         return env;
     }
 
-    private void close(JMXConnector connector) {
-        if (connector != null) {
-            try {
-                connector.close();
-            } catch (IOException e) {
-            }
+    public void close() {
+        connections.close();
+    }
+
+    List<JmxMetric> searchForMetrics(MBeanServerConnection connection, ObjectName objectName) throws Exception {
+        return searchForMetrics(connection, objectName, null);
+    }
+
+    List<JmxMetric> searchForMetrics(MBeanServerConnection connection, ObjectName objectName, QueryExp query)
+            throws Exception {
+        if (notifications != null && notifications.isListening(connection)) {
+            return readChangedMetrics(connection, objectName, query);
+        }
+        long start = System.nanoTime();
+        List<ObjectInstance> matchingObjects = connection.queryMBeans(objectName, query)
+            .stream()
+            .filter(object -> filter.includesMBean(object.getObjectName()))
+            .collect(Collectors.toList());
+        queryTimer.recordSince(start);
+        start = System.nanoTime();
+        List<JmxMetric> metrics = collector.collect(matchingObjects, object -> readMetrics(connection, object));
+        fetchTimer.recordSince(start);
+        LOG.debug("MBean schema cache: {} entries, {} hits, {} misses, {} evictions", schemas.size(),
+                schemas.getHits(), schemas.getMisses(), schemas.getEvictions());
+        return metrics;
+    }
+
+    private List<JmxMetric> readChangedMetrics(MBeanServerConnection connection, ObjectName objectName,
+            QueryExp query) throws Exception {
+        long start = System.nanoTime();
+        List<ObjectInstance> changedObjects = notifications.changed(connection, objectName, query);
+        queryTimer.recordSince(start);
+        start = System.nanoTime();
+        collector.collect(changedObjects, object -> notifications.update(object, readMetrics(connection, object)));
+        fetchTimer.recordSince(start);
+        LOG.debug("Read {} of {} MBeans that changed", changedObjects.size(), notifications.size());
+        return notifications.getMetrics();
+    }
+
+    private List<JmxMetric> readMetrics(MBeanServerConnection connection, ObjectInstance object) throws Exception {
+        MBeanSchemaCache.Schema schema = getSchema(connection, object);
+        List<String> attributes = schema.getCandidates();
+        if (bulkAttributeFetch) {
+            return readAttributes(connection, object, schema, attributes);
         }
+        return attributes
+            .stream()
+            .filter(attr -> metricValueIsNumber(connection, object, attr))
+            .map(attr -> new JmxMetric(object, attr, getAttributeValue(connection, object, attr)))
+            .collect(Collectors.toList());
     }
-    
-    private List<JmxMetric> searchForMetrics(MBeanServerConnection connection, ObjectName objectName) throws Exception {
+
+    /**
+     * Reads all of the attributes of an MBean with a single
+     * {@link MBeanServerConnection#getAttributes(ObjectName, String[])} call
+     * and keeps the ones with numeric values. Attributes the server was
+     * unable to read are left out of the result by the server itself.
+     */
+    private List<JmxMetric> readAttributes(MBeanServerConnection connection, ObjectInstance object,
+            MBeanSchemaCache.Schema schema, List<String> attributes) throws IOException {
         List<JmxMetric> metrics = new ArrayList<JmxMetric>();
-        Set<ObjectInstance> matchingObjects = connection.queryMBeans(objectName, null);
-        for (ObjectInstance object : matchingObjects) {
-            List<String> attributes = getAttributeNames(connection, object);
-            attributes
-                .stream()
-                .filter(attr -> !blacklisted(attr))
-                .filter(attr -> metricValueIsNumber(connection, object, attr))
-                .map(attr -> new JmxMetric(object, attr, getAttributeValue(connection, object, attr)))
-                .forEach(metrics::add);
+        if (attributes.isEmpty()) {
+            return metrics;
+        }
+        AttributeList values;
+        try {
+            values = connection.getAttributes(object.getObjectName(),
+                    attributes.toArray(new String[attributes.size()]));
+        } catch (InstanceNotFoundException | ReflectionException e) {
+            LOG.debug("Unable to read attributes of {}", object.getObjectName(), e);
+            schemas.evict(object.getObjectName());
+            return metrics;
+        }
+        schemas.learn(object.getObjectName(), schema, values.asList());
+        for (Attribute attribute : values.asList()) {
+            if (attribute.getValue() instanceof Number) {
+                metrics.add(new JmxMetric(object, attribute.getName(), (Number) attribute.getValue()));
+            }
         }
         return metrics;
     }
-    
+
     private Number getAttributeValue(MBeanServerConnection connection, ObjectInstance object,
             String attribute) {
         try {
@@ -155,6 +288,9 @@ public class OpsMetrics {
     }
 
     private boolean blacklisted(String metricName) {
+        if (!filter.includesAttribute(metricName)) {
+            return true;
+        }
         if(includeAppSpecificMetrics){
             return false;
         }
@@ -165,9 +301,17 @@ public class OpsMetrics {
         return APP_METRIC_PATTERN.matcher(metricName).find();
     }
     
-    private List<String> getAttributeNames(MBeanServerConnection connection, ObjectInstance objectInstance) throws Exception {
-        MBeanInfo mbeanInfo = connection.getMBeanInfo(objectInstance.getObjectName());
-        MBeanAttributeInfo[] attributes = mbeanInfo.getAttributes();
-        return Arrays.asList(attributes).stream().map(attr -> attr.getName()).collect(Collectors.toList());
+    private MBeanSchemaCache.Schema getSchema(MBeanServerConnection connection, ObjectInstance objectInstance)
+            throws Exception {
+        MBeanSchemaCache.Schema schema = schemas.get(objectInstance.getObjectName());
+        if (schema == null) {
+            MBeanInfo mbeanInfo = connection.getMBeanInfo(objectInstance.getObjectName());
+            schema = schemas.put(objectInstance.getObjectName(), mbeanInfo.getAttributes(), this::blacklisted);
+        }
+        return schema;
+    }
+
+    public MBeanSchemaCache getSchemaCache() {
+        return schemas;
     }
 }
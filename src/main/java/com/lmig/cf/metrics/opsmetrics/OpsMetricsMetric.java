@@ -15,14 +15,17 @@
  */
 package com.lmig.cf.metrics.opsmetrics;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.lmig.cf.metrics.events.EventAttributes;
+
 /**
  * @author David Ehringer
  */
@@ -30,93 +33,399 @@ public class OpsMetricsMetric {
 
     private static final Logger LOG = LoggerFactory.getLogger(OpsMetricsMetric.class);
 
-    private static final Pattern METRIC_NAME_PATTERN = Pattern
-            .compile("^org.cloudfoundry/deployment=(.*)/job=(.*)/index=(\\d+)/ip=(.*)$");
+    private static final String PREFIX = "org.cloudfoundry";
+    private static final String DEPLOYMENT = "deployment=";
+    private static final String JOB = "job=";
+    private static final String INDEX = "index=";
+    private static final String IP = "ip=";
+    private static final int MAX_CACHED_NAMES = 10000;
+
+    /**
+     * The attributes of every event, followed by {@code total} which the
+     * forwarder adds to counters.
+     */
+    private static final String[] EVENT_KEYS = { "platform_instance", "deployment", "job", "index", "ip",
+            "attribute", "value", "total" };
+    private static final int VALUE = 6;
+    private static final int NESTED = 7;
 
-    private String deployment;
-    private String job;
-    private String index;
-    private String ip;
-    private String attribute;
+    private static final Map<String, Source> SOURCES = new ConcurrentHashMap<String, Source>();
+    private static final Map<String, Attribute> ATTRIBUTES = new ConcurrentHashMap<String, Attribute>();
+
+    private Source source;
+    private Attribute parsedAttribute;
     private float value;
     private String cfInstanceName;
-    private Map<String, Object> nestedAttributes = new HashMap<String, Object>();
 
     public String getType() {
         String type = "cf_vm_metrics";
-        if ("untitled_dev".equalsIgnoreCase(deployment)) {
+        if (source != null && "untitled_dev".equalsIgnoreCase(source.deployment)) {
             type = "cf_elastic_runtime_metrics";
         }
         return type;
     }
 
+    public String getDeployment() {
+        return source == null ? null : source.deployment;
+    }
+
+    public String getJob() {
+        return source == null ? null : source.job;
+    }
+
+    public String getIndex() {
+        return source == null ? null : source.index;
+    }
+
+    public String getIp() {
+        return source == null ? null : source.ip;
+    }
+
+    /**
+     * The attribute name without its nested attributes, such as
+     * {@code router.responses}.
+     */
+    public String getAttribute() {
+        return parsedAttribute == null ? null : parsedAttribute.name;
+    }
+
+    public int getNestedAttributeCount() {
+        return parsedAttribute == null ? 0 : parsedAttribute.keys.length;
+    }
+
+    public String getNestedAttributeKey(int i) {
+        return parsedAttribute.keys[i];
+    }
+
+    public String getNestedAttributeValue(int i) {
+        return parsedAttribute.values[i];
+    }
+
+    /**
+     * The attribute with its nested attributes, such as
+     * {@code router.responses[status=2xx]}, reflecting any values collapsed
+     * by {@link #limitCardinality(CardinalityGuard)}.
+     */
+    public String getFullAttribute() {
+        Attribute attribute = parsedAttribute;
+        if (attribute == null || attribute.keys.length == 0) {
+            return getAttribute();
+        }
+        StringBuilder name = new StringBuilder(attribute.name).append('[');
+        for (int i = 0; i < attribute.keys.length; i++) {
+            if (i > 0) {
+                name.append(',');
+            }
+            name.append(attribute.keys[i]).append('=').append(attribute.values[i]);
+        }
+        return name.append(']').toString();
+    }
+
+    public float getValue() {
+        return value;
+    }
+
+    public void setValue(float value) {
+        this.value = value;
+    }
+
+    /**
+     * Whether the name of the metric could be parsed into its deployment,
+     * job, index and IP.
+     */
+    public boolean isKnown() {
+        return source != null;
+    }
+
+    /**
+     * Reports the values of nested attributes that {@code guard} does not
+     * admit as {@link CardinalityGuard#OTHER}. Returns whether any value was
+     * replaced.
+     */
+    public boolean limitCardinality(CardinalityGuard guard) {
+        if (parsedAttribute == null || parsedAttribute.keys.length == 0) {
+            return false;
+        }
+        Attribute limited = parsedAttribute.limit(guard);
+        if (limited == parsedAttribute) {
+            return false;
+        }
+        parsedAttribute = limited;
+        return true;
+    }
+
+    /**
+     * The attributes of the event reported for this metric. The map shares
+     * its keys with every other metric of the same attribute, so building it
+     * costs an array of values rather than a hash table.
+     */
     public Map<String, Object> getAttributes() {
-        Map<String, Object> attributes = new HashMap<String, Object>();
-        attributes.put("platform_instance", cfInstanceName);
-        attributes.put("deployment", deployment);
-        attributes.put("job", job);
-        attributes.put("index", index);
-        attributes.put("ip", ip);
-        attributes.put("attribute", attribute);
-        attributes.put("value", value);
-        attributes.putAll(nestedAttributes);
+        Attribute attribute = parsedAttribute;
+        String[] keys = attribute == null ? EVENT_KEYS : attribute.eventKeys;
+        EventAttributes attributes = new EventAttributes(keys, keys.length - 1);
+        attributes.set(0, cfInstanceName);
+        if (source != null) {
+            attributes.set(1, source.deployment);
+            attributes.set(2, source.job);
+            attributes.set(3, source.index);
+            attributes.set(4, source.ip);
+        }
+        attributes.set(VALUE, value);
+        if (attribute != null) {
+            attributes.set(5, attribute.name);
+            for (int i = 0; i < attribute.values.length; i++) {
+                attributes.set(attribute.slots[i], attribute.values[i]);
+            }
+        }
         return attributes;
     }
 
     public static OpsMetricsMetric from(JmxMetric jmxMetric, String cfInstanceName) {
         return from(jmxMetric.getName(), jmxMetric.getValue(), jmxMetric.getValueType(), cfInstanceName);
     }
-    
+
     public static OpsMetricsMetric from(String name, Number value, String valueType, String cfInstanceName) {
         OpsMetricsMetric metric = new OpsMetricsMetric();
         metric.cfInstanceName = cfInstanceName;
-        
-        String metricName = name.replaceAll(":", "/").replaceAll(",", "/");
-        Matcher matcher = METRIC_NAME_PATTERN.matcher(metricName);
-        if (matcher.find()) {
-            metric.deployment = matcher.group(1);
-            metric.job = matcher.group(2);
-            metric.index = matcher.group(3);
-            metric.ip = matcher.group(4);
-            metric.attribute = valueType;
+
+        Source source = SOURCES.get(name);
+        if (source == null) {
+            source = Source.parse(name);
+            if (source != null) {
+                cache(SOURCES, name, source);
+            }
+        }
+        if (source != null) {
+            metric.source = source;
             metric.value = value.floatValue();
-            metric.parseAttributeName(valueType);
+            Attribute attribute = ATTRIBUTES.get(valueType);
+            if (attribute == null) {
+                attribute = cache(ATTRIBUTES, valueType, Attribute.parse(valueType));
+            }
+            metric.parsedAttribute = attribute;
         } else {
             LOG.error("Unknown metric named '{}'", name);
         }
         return metric;
     }
 
+    private static <T> T cache(Map<String, T> cache, String key, T value) {
+        if (cache.size() >= MAX_CACHED_NAMES) {
+            cache.clear();
+        }
+        cache.put(key, value);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "OpsMetricsMetric [getType=" + getType() + ", attributes=" + getAttributes() + "]";
+    }
+
     /**
-     * Examples: router.responses[component=app,dea_index=7,status=3xx]
-     * router.responses
+     * The deployment, job, index and ip of an Ops Metrics object name such as
+     * {@code org.cloudfoundry:deployment=untitled_dev,job=Router,index=1,ip=10.18.115.254}.
+     * Values are matched greedily with ':', ',' and '/' all treated as
+     * separators and rewritten to '/', so the result is the same as matching
+     * the name against
+     * {@code ^org.cloudfoundry/deployment=(.*)/job=(.*)/index=(\d+)/ip=(.*)$}
+     * after replacing ':' and ',' with '/'.
      */
-    private void parseAttributeName(String name) {
-        Pattern pattern = Pattern.compile("^(.*?)(\\[(.*)\\])?$");
-        Matcher matcher = pattern.matcher(name);
-        if (matcher.find()) {
-            nestedAttributes.put("attribute", matcher.group(1));
-            if (matcher.group(3) != null) {
-                parseNestedAttributes(matcher.group(3));
+    private static final class Source {
+
+        private final String deployment;
+        private final String job;
+        private final String index;
+        private final String ip;
+
+        private Source(String deployment, String job, String index, String ip) {
+            this.deployment = deployment;
+            this.job = job;
+            this.index = index;
+            this.ip = ip;
+        }
+
+        static Source parse(String name) {
+            int deploymentStart = PREFIX.length() + 1 + DEPLOYMENT.length();
+            if (name.length() < deploymentStart || !name.startsWith(PREFIX)
+                    || !isSeparator(name.charAt(PREFIX.length()))
+                    || !name.startsWith(DEPLOYMENT, PREFIX.length() + 1)) {
+                return null;
+            }
+            int indexSeparator = lastIndexSeparator(name, deploymentStart);
+            if (indexSeparator < 0) {
+                return null;
             }
+            int jobSeparator = lastSeparatorBefore(name, JOB, deploymentStart, indexSeparator);
+            if (jobSeparator < 0) {
+                return null;
+            }
+            int indexStart = indexSeparator + 1 + INDEX.length();
+            int ipSeparator = indexStart;
+            while (isDigit(name.charAt(ipSeparator))) {
+                ipSeparator++;
+            }
+            return new Source(
+                    slashes(name, deploymentStart, jobSeparator),
+                    slashes(name, jobSeparator + 1 + JOB.length(), indexSeparator),
+                    name.substring(indexStart, ipSeparator),
+                    slashes(name, ipSeparator + 1 + IP.length(), name.length()));
+        }
+
+        /**
+         * Finds the last "/index=<digits>/ip=" in the name.
+         */
+        private static int lastIndexSeparator(String name, int from) {
+            for (int ip = name.length() - IP.length(); ip > from; ip--) {
+                if (!isSeparator(name.charAt(ip - 1)) || !name.startsWith(IP, ip)) {
+                    continue;
+                }
+                int digits = ip - 1;
+                while (digits > from && isDigit(name.charAt(digits - 1))) {
+                    digits--;
+                }
+                int separator = digits - INDEX.length() - 1;
+                if (digits < ip - 1 && separator >= from && name.startsWith(INDEX, separator + 1)
+                        && isSeparator(name.charAt(separator))) {
+                    return separator;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Finds the last "/key" starting at or after from that ends at or
+         * before end.
+         */
+        private static int lastSeparatorBefore(String name, String key, int from, int end) {
+            for (int separator = end - key.length() - 1; separator >= from; separator--) {
+                if (isSeparator(name.charAt(separator)) && name.startsWith(key, separator + 1)) {
+                    return separator;
+                }
+            }
+            return -1;
+        }
+
+        private static String slashes(String name, int start, int end) {
+            String value = name.substring(start, end);
+            return value.indexOf(':') < 0 && value.indexOf(',') < 0 ? value
+                    : value.replace(':', '/').replace(',', '/');
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == '/' || c == ':' || c == ',';
+        }
+
+        private static boolean isDigit(char c) {
+            return c >= '0' && c <= '9';
         }
     }
 
     /**
-     * Example: component=app,dea_index=7,status=3xx
+     * An attribute name split into its base name and nested attributes.
+     * Examples: router.responses[component=app,dea_index=7,status=3xx]
+     * router.responses
+     * <p>
+     * The keys of its events are worked out once: the keys every event has,
+     * then the nested keys that are not among them and then {@code total}.
+     * A nested key that repeats an earlier key takes its slot, so its value
+     * wins as it would when put into a map.
      */
-    private void parseNestedAttributes(String attributeList) {
-        for (String attr : attributeList.split(",")) {
-            String[] tuple = attr.split("=");
-            if (tuple.length == 2) {
-                nestedAttributes.put(tuple[0], tuple[1]);
+    private static final class Attribute {
+
+        private static final String[] NONE = new String[0];
+
+        private final String name;
+        private final String[] keys;
+        private final String[] values;
+        private final String[] eventKeys;
+        private final int[] slots;
+
+        private Attribute(String name, String[] keys, String[] values) {
+            this.name = name;
+            this.keys = keys;
+            this.values = values;
+            this.slots = new int[keys.length];
+            String[] eventKeys = Arrays.copyOf(EVENT_KEYS, NESTED + keys.length + 1);
+            int size = NESTED;
+            for (int i = 0; i < keys.length; i++) {
+                int slot = 0;
+                while (slot < size && !eventKeys[slot].equals(keys[i])) {
+                    slot++;
+                }
+                if (slot == size) {
+                    eventKeys[size++] = keys[i];
+                }
+                slots[i] = slot;
             }
+            eventKeys[size++] = EVENT_KEYS[NESTED];
+            this.eventKeys = size == eventKeys.length ? eventKeys : Arrays.copyOf(eventKeys, size);
         }
-    }
 
-    @Override
-    public String toString() {
-        return "OpsMetricsMetric [getType=" + getType() + ", attributes=" + getAttributes() + "]";
-    }
+        private Attribute(Attribute attribute, String[] values) {
+            this.name = attribute.name;
+            this.keys = attribute.keys;
+            this.values = values;
+            this.eventKeys = attribute.eventKeys;
+            this.slots = attribute.slots;
+        }
+
+        /**
+         * This attribute or, when some of its values are not admitted, a
+         * copy with those values replaced.
+         */
+        Attribute limit(CardinalityGuard guard) {
+            String[] limited = values;
+            for (int i = 0; i < values.length; i++) {
+                String admitted = guard.admit(keys[i], values[i]);
+                if (admitted != values[i]) {
+                    if (limited == values) {
+                        limited = values.clone();
+                    }
+                    limited[i] = admitted;
+                }
+            }
+            return limited == values ? this : new Attribute(this, limited);
+        }
 
+        static Attribute parse(String attribute) {
+            int open = attribute.endsWith("]") ? attribute.indexOf('[') : -1;
+            if (open < 0) {
+                return new Attribute(attribute, NONE, NONE);
+            }
+            List<String> keys = new ArrayList<String>();
+            List<String> values = new ArrayList<String>();
+            parseNestedAttributes(attribute, open + 1, attribute.length() - 1, keys, values);
+            return new Attribute(attribute.substring(0, open), keys.toArray(NONE), values.toArray(NONE));
+        }
+
+        /**
+         * Example: component=app,dea_index=7,status=3xx
+         * <p>
+         * Pairs without exactly one key and one non-empty value are skipped.
+         */
+        private static void parseNestedAttributes(String attribute, int start, int end, List<String> keys,
+                List<String> values) {
+            int pairStart = start;
+            while (pairStart <= end) {
+                int pairEnd = attribute.indexOf(',', pairStart);
+                if (pairEnd < 0 || pairEnd > end) {
+                    pairEnd = end;
+                }
+                int equals = attribute.indexOf('=', pairStart);
+                if (equals >= 0 && equals < pairEnd) {
+                    int valueEnd = pairEnd;
+                    while (valueEnd > equals + 1 && attribute.charAt(valueEnd - 1) == '=') {
+                        valueEnd--;
+                    }
+                    int extra = attribute.indexOf('=', equals + 1);
+                    if (valueEnd > equals + 1 && (extra < 0 || extra >= valueEnd)) {
+                        keys.add(attribute.substring(pairStart, equals));
+                        values.add(attribute.substring(equals + 1, valueEnd));
+                    }
+                }
+                pairStart = pairEnd + 1;
+            }
+        }
+    }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.ConfigurableBeanFactory;
+import org.springframework.context.annotation.Scope;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.events.EventPublisher;
+
+/**
+ * Pre-aggregates Ops Metrics before they are published. The values of the
+ * attributes listed in {@code opsmetrics.rollup.attributes} are grouped by
+ * attribute and by the dimensions in {@code opsmetrics.rollup.by}, such as
+ * {@code job} or the nested attribute {@code status}, and reduced to their
+ * sum, minimum, maximum, average and count. Every {@code windowCycles}
+ * cycles one {@value #EVENT_TYPE} event is published per group instead of
+ * one event per series, so a router job with hundreds of
+ * {@code router.responses} tuples becomes a handful of events.
+ * <p>
+ * Attributes whose base name is listed in {@code opsmetrics.delta.counters}
+ * are monotonic totals, so each series contributes its increase since the
+ * previous cycle rather than its total and {@code sum} is the increase of
+ * the group over the window. The first value of a series only sets its
+ * baseline. For other attributes {@code sum} is the sum over the group in
+ * the last cycle of the window it was seen in, while the minimum, maximum,
+ * average and count cover every value of the window. Dimensions a metric
+ * does not have are left out of its group's event. Windows are counted by
+ * {@link #endCycle(String, EventPublisher)}, which is called once per
+ * cycle. Not thread-safe; meant to be driven by a single collection cycle
+ * at a time.
+ */
+@Component
+@Scope(ConfigurableBeanFactory.SCOPE_PROTOTYPE)
+public class Rollup {
+
+    public static final String EVENT_TYPE = "cf_metric_rollups";
+
+    public static final Rollup NONE = new Rollup(new String[0], new String[0], 1, false, new String[0]);
+
+    private static final String WILDCARD = "*";
+
+    private final String[] attributes;
+    private final String[] dimensions;
+    private final int windowCycles;
+    private final boolean keepRaw;
+    private final Set<String> counters;
+    private final Map<Long, Total> totals = new HashMap<Long, Total>();
+    private Map<Group, Accumulator> window = new HashMap<Group, Accumulator>();
+    private int cycles;
+    private int cycle;
+
+    @Autowired
+    public Rollup(@Value("${opsmetrics.rollup.attributes:}") String[] attributes,
+            @Value("${opsmetrics.rollup.by:job}") String[] dimensions,
+            @Value("${opsmetrics.rollup.window:1}") int windowCycles,
+            @Value("${opsmetrics.rollup.keep.raw:false}") boolean keepRaw,
+            @Value("${opsmetrics.delta.counters:router.responses}") String[] counters) {
+        this.attributes = Arrays.stream(attributes).map(String::trim).filter(name -> !name.isEmpty())
+                .toArray(String[]::new);
+        this.dimensions = Arrays.stream(dimensions).map(String::trim).filter(name -> !name.isEmpty())
+                .toArray(String[]::new);
+        this.windowCycles = Math.max(1, windowCycles);
+        this.keepRaw = keepRaw;
+        this.counters = new HashSet<String>(Arrays.asList(counters));
+    }
+
+    public boolean isEnabled() {
+        return attributes.length > 0;
+    }
+
+    /**
+     * Adds {@code value}, the value of {@code metric} in the series
+     * {@code series}, to its group when its attribute is rolled up. Returns
+     * whether the metric should still be published on its own.
+     */
+    public boolean add(long series, OpsMetricsMetric metric, double value) {
+        if (!metric.isKnown() || !rolledUp(metric.getAttribute())) {
+            return true;
+        }
+        boolean counter = counters.contains(ChangeTracker.baseName(metric.getAttribute()));
+        if (counter) {
+            Total total = totals.get(series);
+            if (total == null) {
+                totals.put(series, new Total(value, cycle));
+                return keepRaw;
+            }
+            double increase = value >= total.value ? value - total.value : value;
+            total.value = value;
+            total.seen = cycle;
+            value = increase;
+        }
+        String[] values = new String[dimensions.length + 1];
+        values[0] = metric.getAttribute();
+        for (int i = 0; i < dimensions.length; i++) {
+            values[i + 1] = dimension(metric, dimensions[i]);
+        }
+        window.computeIfAbsent(new Group(metric.getType(), values), group -> new Accumulator(counter))
+                .add(value, cycle);
+        return keepRaw;
+    }
+
+    /**
+     * Ends a collection cycle of {@code cfInstanceName}. When the cycle
+     * closes a window its groups are published and the number of events
+     * published is returned.
+     */
+    public int endCycle(String cfInstanceName, EventPublisher publisher) {
+        if (!isEnabled()) {
+            return 0;
+        }
+        cycle++;
+        for (Iterator<Total> i = totals.values().iterator(); i.hasNext();) {
+            if (cycle - i.next().seen > ChangeTracker.EXPIRE_CYCLES) {
+                i.remove();
+            }
+        }
+        if (++cycles < windowCycles) {
+            return 0;
+        }
+        cycles = 0;
+        Map<Group, Accumulator> closed = window;
+        window = new HashMap<Group, Accumulator>();
+        closed.forEach((group, accumulator) -> publisher.publish(EVENT_TYPE,
+                attributes(group, cfInstanceName, accumulator)));
+        return closed.size();
+    }
+
+    /**
+     * The number of groups in the current window.
+     */
+    public int size() {
+        return window.size();
+    }
+
+    private Map<String, Object> attributes(Group group, String cfInstanceName, Accumulator accumulator) {
+        Map<String, Object> attributes = new HashMap<String, Object>(16 + dimensions.length * 2);
+        attributes.put("platform_instance", cfInstanceName);
+        attributes.put("metric_type", group.type);
+        attributes.put("attribute", group.values[0]);
+        for (int i = 0; i < dimensions.length; i++) {
+            if (group.values[i + 1] != null) {
+                attributes.put(dimensions[i], group.values[i + 1]);
+            }
+        }
+        attributes.put("sum", accumulator.counter ? accumulator.sum : accumulator.cycleSum);
+        attributes.put("min", accumulator.min);
+        attributes.put("max", accumulator.max);
+        attributes.put("avg", accumulator.sum / accumulator.count);
+        attributes.put("count", accumulator.count);
+        attributes.put("cycles", windowCycles);
+        return attributes;
+    }
+
+    private boolean rolledUp(String attribute) {
+        for (String rule : attributes) {
+            if (rule.endsWith(WILDCARD) ? attribute.startsWith(rule.substring(0, rule.length() - 1))
+                    : attribute.equals(rule)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String dimension(OpsMetricsMetric metric, String dimension) {
+        switch (dimension) {
+        case "deployment":
+            return metric.getDeployment();
+        case "job":
+            return metric.getJob();
+        case "index":
+            return metric.getIndex();
+        case "ip":
+            return metric.getIp();
+        default:
+            for (int i = 0; i < metric.getNestedAttributeCount(); i++) {
+                if (metric.getNestedAttributeKey(i).equals(dimension)) {
+                    return metric.getNestedAttributeValue(i);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Group {
+
+        private final String type;
+        private final String[] values;
+        private final int hash;
+
+        Group(String type, String[] values) {
+            this.type = type;
+            this.values = values;
+            this.hash = 31 * type.hashCode() + Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Group)) {
+                return false;
+            }
+            Group other = (Group) obj;
+            return hash == other.hash && type.equals(other.type) && Arrays.equals(values, other.values);
+        }
+    }
+
+    private static final class Total {
+
+        private double value;
+        private int seen;
+
+        Total(double value, int seen) {
+            this.value = value;
+            this.seen = seen;
+        }
+    }
+
+    private static final class Accumulator {
+
+        private final boolean counter;
+        private double sum;
+        private long count;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        private double cycleSum;
+        private int cycle = -1;
+
+        Accumulator(boolean counter) {
+            this.counter = counter;
+        }
+
+        void add(double value, int cycle) {
+            if (cycle != this.cycle) {
+                this.cycle = cycle;
+                cycleSum = 0;
+            }
+            cycleSum += value;
+            sum += value;
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.scheduling;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+/**
+ * Runs the collection cycles of each source on a thread of its own, so a
+ * slow source only delays itself. Cycles are planned on a fixed grid of
+ * intervals and each start is delayed by a random jitter of up to
+ * {@code collection.jitter} of the interval so sources sharing an
+ * interval do not hit their servers in lockstep. A cycle never overlaps
+ * the previous one: ticks that pass while a cycle is still running are
+ * skipped and the next cycle waits for the following tick.
+ * <p>
+ * When {@code collection.adaptive} is enabled the interval of a source is
+ * stretched, up to {@code collection.adaptive.max.factor} times the
+ * configured interval, so cycles take no more than
+ * {@code collection.adaptive.utilization} of it and sources whose values
+ * rarely change are collected less often. Cycle times and change ratios
+ * are smoothed over the last few cycles.
+ */
+@Component
+public class CollectionScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CollectionScheduler.class);
+
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * One collection cycle of a source.
+     */
+    public interface Cycle {
+
+        /**
+         * Runs the cycle and returns the fraction of the collected values
+         * that changed since the previous cycle, {@code 1} when unknown.
+         */
+        double run() throws Exception;
+    }
+
+    private final Instrumentation instrumentation;
+    private final double jitter;
+    private final boolean adaptive;
+    private final double utilization;
+    private final double maxFactor;
+    private final List<Schedule> schedules = new CopyOnWriteArrayList<Schedule>();
+
+    @Autowired
+    public CollectionScheduler(Instrumentation instrumentation,
+            @Value("${collection.jitter:0.1}") double jitter,
+            @Value("${collection.adaptive:false}") boolean adaptive,
+            @Value("${collection.adaptive.utilization:0.5}") double utilization,
+            @Value("${collection.adaptive.max.factor:4}") double maxFactor) {
+        this.instrumentation = instrumentation;
+        this.jitter = Math.max(0, Math.min(1, jitter));
+        this.adaptive = adaptive;
+        this.utilization = utilization;
+        this.maxFactor = Math.max(1, maxFactor);
+    }
+
+    /**
+     * Starts running {@code cycle} every {@code interval} milliseconds, the
+     * first time right away.
+     */
+    public Schedule schedule(String source, long interval, Cycle cycle) {
+        Schedule schedule = new Schedule(source, interval, cycle);
+        schedules.add(schedule);
+        schedule.start();
+        LOG.info("Collecting {} every {} ms{}", source, interval, adaptive ? " or less often under load" : "");
+        return schedule;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (Schedule schedule : schedules) {
+            schedule.cancel();
+        }
+    }
+
+    /**
+     * The interval a source is collected at given its smoothed cycle time
+     * and change ratio.
+     */
+    static long adaptedInterval(long interval, double cycleMillis, double changeRatio, double utilization,
+            double maxFactor) {
+        double loaded = cycleMillis / utilization;
+        double unchanged = interval / Math.max(changeRatio, 1 / maxFactor);
+        return (long) Math.min(interval * maxFactor, Math.max(interval, Math.max(loaded, unchanged)));
+    }
+
+    public class Schedule {
+
+        private final String source;
+        private final long interval;
+        private final Cycle cycle;
+        private final ScheduledExecutorService executor;
+        private final LongAdder skipped;
+        private volatile long currentInterval;
+        private double cycleMillis = -1;
+        private double changeRatio = 1;
+        private long nextTick;
+
+        Schedule(String source, long interval, Cycle cycle) {
+            this.source = source;
+            this.interval = interval;
+            this.currentInterval = interval;
+            this.cycle = cycle;
+            this.skipped = instrumentation.counter(source + ".cycles.skipped");
+            this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "collect-" + source);
+                thread.setDaemon(true);
+                return thread;
+            });
+            instrumentation.gauge(source + ".interval", () -> currentInterval);
+        }
+
+        public long getInterval() {
+            return currentInterval;
+        }
+
+        public void cancel() {
+            executor.shutdownNow();
+            schedules.remove(this);
+        }
+
+        void start() {
+            nextTick = System.nanoTime();
+            executor.schedule(this::tick, jitter(), TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Runs a cycle and plans the next one. Anything thrown is logged
+         * here so one failed cycle does not end the schedule.
+         */
+        private void tick() {
+            long start = instrumentation.startCycle(source);
+            double changed = 1;
+            try {
+                changed = cycle.run();
+            } catch (Exception e) {
+                LOG.error("Unable to collect {}", source, e);
+            } finally {
+                instrumentation.endCycle(source, start, currentInterval);
+            }
+            adapt(System.nanoTime() - start, changed);
+
+            long now = System.nanoTime();
+            long period = TimeUnit.MILLISECONDS.toNanos(currentInterval);
+            nextTick += period;
+            if (nextTick < now) {
+                long missed = (now - nextTick) / period + 1;
+                skipped.add(missed);
+                nextTick += missed * period;
+                LOG.warn("Collection of {} took {} ms, {} cycles skipped", source,
+                        TimeUnit.NANOSECONDS.toMillis(now - start), missed);
+            }
+            try {
+                executor.schedule(this::tick, nextTick - now + jitter(), TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                LOG.debug("Collection of {} was cancelled", source);
+            }
+        }
+
+        private void adapt(long elapsed, double changed) {
+            double millis = elapsed / 1e6;
+            cycleMillis = cycleMillis < 0 ? millis : cycleMillis + SMOOTHING * (millis - cycleMillis);
+            changeRatio += SMOOTHING * (Math.max(0, Math.min(1, changed)) - changeRatio);
+            if (adaptive) {
+                currentInterval = adaptedInterval(interval, cycleMillis, changeRatio, utilization, maxFactor);
+            }
+        }
+
+        private long jitter() {
+            long bound = (long) (TimeUnit.MILLISECONDS.toNanos(currentInterval) * jitter);
+            return bound <= 0 ? 0 : ThreadLocalRandom.current().nextLong(bound);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.sharding;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Splits collection work between the instances of the drain when it is
+ * scaled out. Every instance is told the instance count and knows its own
+ * index from {@code CF_INSTANCE_INDEX}, and each unit of work, such as an
+ * Ops Metrics MBean, is owned by exactly one of them.
+ * <p>
+ * Owners are chosen by rendezvous hashing: the instance with the highest
+ * hash of the key combined with the instance index owns the key. Work is
+ * spread evenly, and when the instance count changes from n to n + 1 only
+ * about 1 / (n + 1) of the keys move, all of them to the new instance.
+ */
+@Component
+public class Shard {
+
+    public static final Shard ALL = new Shard(0, 1);
+
+    private final int index;
+    private final int instances;
+
+    @Autowired
+    public Shard(@Value("${cf.instance.index:0}") int index, @Value("${sharding.instances:1}") int instances) {
+        if (instances > 1 && (index < 0 || index >= instances)) {
+            throw new IllegalArgumentException("Instance index " + index + " is outside of the " + instances
+                    + " instances being sharded across. Set SHARDING_INSTANCES to the instance count.");
+        }
+        this.index = index;
+        this.instances = Math.max(1, instances);
+    }
+
+    public boolean owns(String key) {
+        return instances == 1 || owner(key) == index;
+    }
+
+    int owner(String key) {
+        long hash = hash(key);
+        int owner = 0;
+        long highest = Long.MIN_VALUE;
+        for (int i = 0; i < instances; i++) {
+            long weight = mix(hash + (i + 1) * 0x9e3779b97f4a7c15L);
+            if (weight > highest) {
+                highest = weight;
+                owner = i;
+            }
+        }
+        return owner;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getInstances() {
+        return instances;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + " of " + instances;
+    }
+
+    /**
+     * 64-bit FNV-1a.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
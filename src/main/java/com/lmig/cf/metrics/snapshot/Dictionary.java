@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each distinct dimension value, such as a deployment, job or IP, a
+ * small integer code so snapshots store every value once and hold codes in
+ * {@code int} columns. Codes are never reused or dropped; a
+ * {@link SnapshotStore} moves to a new dictionary holding only the values
+ * it still uses once old ones pile up. New values are added under a lock
+ * while codes are decoded concurrently.
+ */
+public class Dictionary {
+
+    public static final int NONE = -1;
+
+    private final Map<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] values = new String[256];
+    private int size;
+
+    public int encode(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        Integer code = codes.get(value);
+        return code == null ? add(value) : code;
+    }
+
+    /**
+     * The code of {@code value} or {@link #NONE} if it was never encoded.
+     */
+    public int code(String value) {
+        Integer code = value == null ? null : codes.get(value);
+        return code == null ? NONE : code;
+    }
+
+    public String decode(int code) {
+        return code == NONE ? null : values[code];
+    }
+
+    public int size() {
+        return codes.size();
+    }
+
+    private synchronized int add(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        String[] current = values;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+        }
+        current[size] = value;
+        values = current;
+        codes.put(value, size);
+        return size++;
+    }
+}
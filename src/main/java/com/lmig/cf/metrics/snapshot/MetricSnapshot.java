@@ -0,0 +1,144 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The metrics of one foundation from its latest collection cycle, laid out
+ * in columns. Each row is a series with its id, its latest raw value and a
+ * {@link Dictionary} code per dimension. The dimensions are
+ * {@code deployment}, {@code job}, {@code index}, {@code ip},
+ * {@code attribute} and the nested attributes of the series, such as
+ * {@code component} or {@code status}. A series without a dimension holds
+ * {@link Dictionary#NONE}. Rows are found by series id through an
+ * open-addressing index.
+ * <p>
+ * Only valid inside {@link SnapshotStore#read(java.util.function.Function)};
+ * its arrays are reused for a later snapshot once it is no longer read.
+ */
+public class MetricSnapshot {
+
+    public static final String DEPLOYMENT = "deployment";
+    public static final String JOB = "job";
+    public static final String INDEX = "index";
+    public static final String IP = "ip";
+    public static final String ATTRIBUTE = "attribute";
+
+    final AtomicInteger readers = new AtomicInteger();
+    final long[] seriesIds;
+    final double[] values;
+    final Map<String, int[]> dimensions;
+    final int[] slots;
+
+    private final String foundation;
+    private final long timestamp;
+    private final int size;
+    private final Dictionary dictionary;
+    private volatile SnapshotIndex index;
+
+    MetricSnapshot(String foundation, long timestamp, int size, long[] seriesIds, double[] values,
+            Map<String, int[]> dimensions, int[] slots, Dictionary dictionary) {
+        this.foundation = foundation;
+        this.timestamp = timestamp;
+        this.size = size;
+        this.seriesIds = seriesIds;
+        this.values = values;
+        this.dimensions = dimensions;
+        this.slots = slots;
+        this.dictionary = dictionary;
+    }
+
+    public String getFoundation() {
+        return foundation;
+    }
+
+    /**
+     * When the cycle the snapshot was taken in started, in milliseconds
+     * since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getSeriesId(int row) {
+        return seriesIds[row];
+    }
+
+    public double getValue(int row) {
+        return values[row];
+    }
+
+    public Set<String> getDimensionNames() {
+        return Collections.unmodifiableSet(dimensions.keySet());
+    }
+
+    public String getDimension(String dimension, int row) {
+        return dictionary.decode(getDimensionCode(dimension, row));
+    }
+
+    public int getDimensionCode(String dimension, int row) {
+        int[] column = dimensions.get(dimension);
+        return column == null ? Dictionary.NONE : column[row];
+    }
+
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * The row of the series with id {@code seriesId} or {@code -1}.
+     */
+    public int indexOf(long seriesId) {
+        if (size == 0) {
+            return -1;
+        }
+        int mask = slots.length - 1;
+        for (int slot = slot(seriesId, mask);; slot = (slot + 1) & mask) {
+            int row = slots[slot] - 1;
+            if (row < 0 || seriesIds[row] == seriesId) {
+                return row;
+            }
+        }
+    }
+
+    SnapshotIndex getIndex() {
+        SnapshotIndex built = index;
+        if (built == null) {
+            synchronized (this) {
+                built = index;
+                if (built == null) {
+                    built = new SnapshotIndex(this);
+                    index = built;
+                }
+            }
+        }
+        return built;
+    }
+
+    static int slot(long seriesId, int mask) {
+        long mixed = seriesId ^ (seriesId >>> 33);
+        mixed *= 0xff51afd7ed558ccdL;
+        return (int) ((mixed ^ (mixed >>> 33)) & mask);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * The {@link SnapshotStore} of every foundation being collected, each with
+ * a {@link Dictionary} of its own so it can drop the values it no longer
+ * uses.
+ */
+@Component
+public class MetricSnapshots {
+
+    private final Map<String, SnapshotStore> stores = new ConcurrentHashMap<String, SnapshotStore>();
+
+    public SnapshotStore store(String foundation) {
+        return stores.computeIfAbsent(foundation, name -> new SnapshotStore(name, new Dictionary()));
+    }
+
+    /**
+     * The store of {@code foundation} or {@code null} if it has not been
+     * collected.
+     */
+    public SnapshotStore get(String foundation) {
+        return stores.get(foundation);
+    }
+
+    public List<SnapshotStore> getStores() {
+        return new ArrayList<SnapshotStore>(stores.values());
+    }
+}
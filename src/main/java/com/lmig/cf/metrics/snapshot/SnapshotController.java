@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+/**
+ * Read-only queries over the latest collected Ops Metrics, answered from
+ * the {@link MetricSnapshots} without waiting for the events to reach
+ * Insights. Every request parameter other than {@code by},
+ * {@code aggregation} and {@code limit} filters on the dimension it names,
+ * for example {@code /snapshots/prod?job=Router&status=5xx} or
+ * {@code /snapshots/prod?attribute=router.requests&by=job&aggregation=sum}.
+ */
+@RestController
+@RequestMapping("/snapshots")
+public class SnapshotController {
+
+    private static final String BY = "by";
+    private static final String AGGREGATION = "aggregation";
+    private static final String LIMIT = "limit";
+
+    private final MetricSnapshots snapshots;
+
+    @Autowired
+    public SnapshotController(MetricSnapshots snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    @RequestMapping(method = RequestMethod.GET)
+    public List<Map<String, Object>> foundations() {
+        List<Map<String, Object>> foundations = new ArrayList<Map<String, Object>>();
+        for (SnapshotStore store : snapshots.getStores()) {
+            foundations.add(store.read(snapshot -> {
+                Map<String, Object> foundation = new LinkedHashMap<String, Object>();
+                foundation.put("foundation", snapshot.getFoundation());
+                foundation.put("timestamp", snapshot.getTimestamp());
+                foundation.put("series", snapshot.size());
+                return foundation;
+            }));
+        }
+        return foundations;
+    }
+
+    @RequestMapping(value = "/{foundation:.+}", method = RequestMethod.GET)
+    public ResponseEntity<Map<String, Object>> query(@PathVariable String foundation,
+            @RequestParam Map<String, String> parameters) {
+        SnapshotStore store = snapshots.get(foundation);
+        if (store == null) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.NOT_FOUND);
+        }
+        Map<String, String> filters = new HashMap<String, String>(parameters);
+        String by = filters.remove(BY);
+        String aggregation = filters.remove(AGGREGATION);
+        String limit = filters.remove(LIMIT);
+        SnapshotQuery query = new SnapshotQuery(filters);
+        SnapshotQuery.Aggregation reduce;
+        try {
+            reduce = SnapshotQuery.Aggregation.valueOf(aggregation == null ? "SUM" : aggregation.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.BAD_REQUEST);
+        }
+        int maxSeries;
+        try {
+            maxSeries = limit == null ? 1000 : Integer.parseInt(limit.trim());
+        } catch (NumberFormatException e) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.BAD_REQUEST);
+        }
+        if (maxSeries < 0) {
+            return new ResponseEntity<Map<String, Object>>(HttpStatus.BAD_REQUEST);
+        }
+        Map<String, Object> result = store.read(snapshot -> {
+            Map<String, Object> answer = new LinkedHashMap<String, Object>();
+            answer.put("foundation", snapshot.getFoundation());
+            answer.put("timestamp", snapshot.getTimestamp());
+            if (by == null) {
+                answer.put("series", query.select(snapshot, maxSeries));
+            } else {
+                answer.put("groups", query.aggregate(snapshot, by.split(","), reduce));
+            }
+            return answer;
+        });
+        return new ResponseEntity<Map<String, Object>>(result, HttpStatus.OK);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Postings lists over a {@link MetricSnapshot}: for each dimension and
+ * dictionary code, the rows holding that code in ascending order. Built
+ * once per snapshot by the first query that needs it, off the collection
+ * thread.
+ */
+class SnapshotIndex {
+
+    private static final int[] NO_ROWS = new int[0];
+
+    private final Map<String, Map<Integer, int[]>> postings = new HashMap<String, Map<Integer, int[]>>();
+
+    SnapshotIndex(MetricSnapshot snapshot) {
+        for (Map.Entry<String, int[]> dimension : snapshot.dimensions.entrySet()) {
+            int[] column = dimension.getValue();
+            Map<Integer, int[]> counts = new HashMap<Integer, int[]>();
+            for (int row = 0; row < snapshot.size(); row++) {
+                if (column[row] != Dictionary.NONE) {
+                    counts.computeIfAbsent(column[row], code -> new int[1])[0]++;
+                }
+            }
+            Map<Integer, int[]> rows = new HashMap<Integer, int[]>();
+            Map<Integer, int[]> filled = new HashMap<Integer, int[]>();
+            counts.forEach((code, count) -> {
+                rows.put(code, new int[count[0]]);
+                filled.put(code, new int[1]);
+            });
+            for (int row = 0; row < snapshot.size(); row++) {
+                if (column[row] != Dictionary.NONE) {
+                    rows.get(column[row])[filled.get(column[row])[0]++] = row;
+                }
+            }
+            postings.put(dimension.getKey(), rows);
+        }
+    }
+
+    /**
+     * The rows where {@code dimension} holds {@code code}.
+     */
+    int[] rows(String dimension, int code) {
+        Map<Integer, int[]> rows = postings.get(dimension);
+        int[] matching = rows == null ? null : rows.get(code);
+        return matching == null ? NO_ROWS : matching;
+    }
+
+    /**
+     * The rows present in either ascending list.
+     */
+    static int[] union(int[] left, int[] right) {
+        int[] either = new int[left.length + right.length];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < left.length || j < right.length) {
+            if (j == right.length || (i < left.length && left[i] < right[j])) {
+                either[size++] = left[i++];
+            } else if (i == left.length || right[j] < left[i]) {
+                either[size++] = right[j++];
+            } else {
+                either[size++] = left[i++];
+                j++;
+            }
+        }
+        return size == either.length ? either : Arrays.copyOf(either, size);
+    }
+
+    /**
+     * The rows present in both ascending lists.
+     */
+    static int[] intersect(int[] left, int[] right) {
+        int[] both = new int[Math.min(left.length, right.length)];
+        int size = 0;
+        for (int i = 0, j = 0; i < left.length && j < right.length;) {
+            if (left[i] == right[j]) {
+                both[size++] = left[i];
+                i++;
+                j++;
+            } else if (left[i] < right[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return size == both.length ? both : Arrays.copyOf(both, size);
+    }
+}
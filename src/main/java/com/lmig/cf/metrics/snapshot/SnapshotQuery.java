@@ -0,0 +1,141 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Selects series of a {@link MetricSnapshot} by dimension values and
+ * optionally aggregates their values by dimension. A filter maps a
+ * dimension, such as {@code job} or the nested attribute {@code status}, to
+ * one value or several separated by commas. Matching rows are found by
+ * intersecting the postings lists of the {@link SnapshotIndex}, so a
+ * query only touches the rows it returns.
+ */
+public class SnapshotQuery {
+
+    public enum Aggregation {
+        SUM, AVG, MIN, MAX, COUNT
+    }
+
+    private final Map<String, String[]> filters = new LinkedHashMap<String, String[]>();
+
+    public SnapshotQuery(Map<String, String> filters) {
+        filters.forEach((dimension, values) -> this.filters.put(dimension, values.split(",")));
+    }
+
+    /**
+     * The matching series, each with its dimensions and value, up to
+     * {@code limit} of them.
+     */
+    public List<Map<String, Object>> select(MetricSnapshot snapshot, int limit) {
+        int[] rows = matches(snapshot);
+        List<Map<String, Object>> series = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < rows.length && i < limit; i++) {
+            Map<String, Object> values = new LinkedHashMap<String, Object>();
+            for (String dimension : snapshot.getDimensionNames()) {
+                String value = snapshot.getDimension(dimension, rows[i]);
+                if (value != null) {
+                    values.put(dimension, value);
+                }
+            }
+            values.put("value", snapshot.getValue(rows[i]));
+            series.add(values);
+        }
+        return series;
+    }
+
+    /**
+     * One group per distinct combination of values of the {@code by}
+     * dimensions among the matching series, largest value first.
+     */
+    public List<Map<String, Object>> aggregate(MetricSnapshot snapshot, String[] by, Aggregation aggregation) {
+        Map<List<Integer>, double[]> groups = new LinkedHashMap<List<Integer>, double[]>();
+        for (int row : matches(snapshot)) {
+            Integer[] key = new Integer[by.length];
+            for (int i = 0; i < by.length; i++) {
+                key[i] = snapshot.getDimensionCode(by[i], row);
+            }
+            double value = snapshot.getValue(row);
+            double[] group = groups.computeIfAbsent(Arrays.asList(key),
+                    k -> new double[] { 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0 });
+            group[0] += value;
+            group[1] = Math.min(group[1], value);
+            group[2] = Math.max(group[2], value);
+            group[3]++;
+        }
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        groups.forEach((key, group) -> {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < by.length; i++) {
+                result.put(by[i], snapshot.getDictionary().decode(key.get(i)));
+            }
+            result.put("value", reduce(aggregation, group));
+            result.put("count", (long) group[3]);
+            results.add(result);
+        });
+        results.sort(Comparator.comparing(result -> -(Double) result.get("value")));
+        return results;
+    }
+
+    int[] matches(MetricSnapshot snapshot) {
+        if (filters.isEmpty()) {
+            int[] all = new int[snapshot.size()];
+            for (int row = 0; row < all.length; row++) {
+                all[row] = row;
+            }
+            return all;
+        }
+        SnapshotIndex index = snapshot.getIndex();
+        List<int[]> postings = new ArrayList<int[]>();
+        filters.forEach((dimension, values) -> {
+            int[] rows = new int[0];
+            for (String value : values) {
+                int code = snapshot.getDictionary().code(value.trim());
+                if (code != Dictionary.NONE) {
+                    rows = SnapshotIndex.union(rows, index.rows(dimension, code));
+                }
+            }
+            postings.add(rows);
+        });
+        postings.sort(Comparator.comparingInt(rows -> rows.length));
+        int[] matching = postings.get(0);
+        for (int i = 1; i < postings.size() && matching.length > 0; i++) {
+            matching = SnapshotIndex.intersect(matching, postings.get(i));
+        }
+        return matching;
+    }
+
+    private static double reduce(Aggregation aggregation, double[] group) {
+        switch (aggregation) {
+        case AVG:
+            return group[0] / group[3];
+        case MIN:
+            return group[1];
+        case MAX:
+            return group[2];
+        case COUNT:
+            return group[3];
+        default:
+            return group[0];
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
+
+/**
+ * Holds the latest {@link MetricSnapshot} of a foundation. Each cycle writes
+ * a new snapshot while readers keep seeing the previous one, which is then
+ * swapped in at once. The arrays of the snapshot before that are reused for
+ * the next write when nobody is reading it any more.
+ * <p>
+ * As series come and go, dimensions no series has any more are dropped
+ * when a snapshot is published. When the {@link Dictionary} has doubled
+ * since it was last compacted, the published snapshot is encoded again
+ * into a new dictionary holding only the values it uses, and earlier
+ * snapshots keep the dictionary they were written with. Written by one
+ * collection thread at a time; read from any thread.
+ */
+public class SnapshotStore {
+
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MIN_COMPACTION_SIZE = 4096;
+
+    private final String foundation;
+    private Dictionary dictionary;
+    private int compactAt = MIN_COMPACTION_SIZE;
+    private final Writer writer = new Writer();
+    private volatile MetricSnapshot current;
+    private MetricSnapshot retired;
+
+    public SnapshotStore(String foundation, Dictionary dictionary) {
+        this.foundation = foundation;
+        this.dictionary = dictionary;
+        this.current = new MetricSnapshot(foundation, 0, 0, new long[0], new double[0],
+                new LinkedHashMap<String, int[]>(), new int[0], dictionary);
+    }
+
+    public String getFoundation() {
+        return foundation;
+    }
+
+    /**
+     * Starts writing the snapshot of a cycle that started at
+     * {@code timestamp}.
+     */
+    public Writer begin(long timestamp) {
+        writer.begin(timestamp);
+        return writer;
+    }
+
+    /**
+     * Applies {@code reader} to the current snapshot. The snapshot must not
+     * be used once {@code reader} returns.
+     */
+    public <T> T read(Function<MetricSnapshot, T> reader) {
+        while (true) {
+            MetricSnapshot snapshot = current;
+            snapshot.readers.incrementAndGet();
+            try {
+                if (snapshot == current) {
+                    return reader.apply(snapshot);
+                }
+            } finally {
+                snapshot.readers.decrementAndGet();
+            }
+        }
+    }
+
+    public class Writer {
+
+        private long timestamp;
+        private int size;
+        private long[] seriesIds;
+        private double[] values;
+        private Map<String, int[]> dimensions;
+        private int[] slots;
+
+        void begin(long timestamp) {
+            this.timestamp = timestamp;
+            this.size = 0;
+            MetricSnapshot reusable = retired;
+            retired = null;
+            if (reusable != null && reusable.readers.get() == 0) {
+                seriesIds = reusable.seriesIds;
+                values = reusable.values;
+                dimensions = reusable.dimensions;
+                slots = reusable.slots;
+            } else {
+                int capacity = Math.max(INITIAL_CAPACITY, current.size());
+                seriesIds = new long[capacity];
+                values = new double[capacity];
+                dimensions = new LinkedHashMap<String, int[]>();
+                slots = new int[0];
+            }
+        }
+
+        public void add(long seriesId, double value, OpsMetricsMetric metric) {
+            if (size == seriesIds.length) {
+                grow(Math.max(INITIAL_CAPACITY, size * 2));
+            }
+            seriesIds[size] = seriesId;
+            values[size] = value;
+            for (int[] column : dimensions.values()) {
+                column[size] = Dictionary.NONE;
+            }
+            set(MetricSnapshot.DEPLOYMENT, metric.getDeployment());
+            set(MetricSnapshot.JOB, metric.getJob());
+            set(MetricSnapshot.INDEX, metric.getIndex());
+            set(MetricSnapshot.IP, metric.getIp());
+            set(MetricSnapshot.ATTRIBUTE, metric.getAttribute());
+            for (int i = 0; i < metric.getNestedAttributeCount(); i++) {
+                set(metric.getNestedAttributeKey(i), metric.getNestedAttributeValue(i));
+            }
+            size++;
+        }
+
+        /**
+         * Swaps the written snapshot in for readers.
+         */
+        public void publish() {
+            dimensions.values().removeIf(this::isEmpty);
+            if (dictionary.size() > compactAt) {
+                compact();
+            }
+            int capacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+            if (slots.length != capacity) {
+                slots = new int[capacity];
+            } else {
+                Arrays.fill(slots, 0);
+            }
+            int mask = capacity - 1;
+            for (int row = 0; row < size; row++) {
+                int slot = MetricSnapshot.slot(seriesIds[row], mask);
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = row + 1;
+            }
+            MetricSnapshot snapshot = new MetricSnapshot(foundation, timestamp, size, seriesIds, values, dimensions,
+                    slots, dictionary);
+            retired = current;
+            current = snapshot;
+            seriesIds = null;
+            values = null;
+            dimensions = null;
+            slots = null;
+        }
+
+        private void set(String dimension, String value) {
+            int[] column = dimensions.get(dimension);
+            if (column == null) {
+                column = new int[seriesIds.length];
+                Arrays.fill(column, Dictionary.NONE);
+                dimensions.put(dimension, column);
+            }
+            column[size] = dictionary.encode(value);
+        }
+
+        private boolean isEmpty(int[] column) {
+            for (int row = 0; row < size; row++) {
+                if (column[row] != Dictionary.NONE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Encodes the written rows again into a dictionary of their own.
+         */
+        private void compact() {
+            Dictionary compacted = new Dictionary();
+            int[] codes = new int[dictionary.size()];
+            Arrays.fill(codes, Dictionary.NONE);
+            for (int[] column : dimensions.values()) {
+                for (int row = 0; row < size; row++) {
+                    int code = column[row];
+                    if (code != Dictionary.NONE) {
+                        if (codes[code] == Dictionary.NONE) {
+                            codes[code] = compacted.encode(dictionary.decode(code));
+                        }
+                        column[row] = codes[code];
+                    }
+                }
+            }
+            dictionary = compacted;
+            compactAt = Math.max(MIN_COMPACTION_SIZE, compacted.size() * 2);
+        }
+
+        private void grow(int capacity) {
+            seriesIds = Arrays.copyOf(seriesIds, capacity);
+            values = Arrays.copyOf(values, capacity);
+            for (Map.Entry<String, int[]> column : dimensions.entrySet()) {
+                column.setValue(Arrays.copyOf(column.getValue(), capacity));
+            }
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectNotFound;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Reads the summaries of the configured datastores with a single
+ * {@link PropertyCollector#retrieveProperties(PropertyFilterSpec[])} call.
+ * The references of the datastores are looked up by name with one more
+ * call the first time and cached until a datastore goes missing or the
+ * session is lost.
+ */
+public class DatastoreCollector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatastoreCollector.class);
+
+    static final String DATASTORE = "Datastore";
+    static final String SUMMARY = "summary";
+
+    private final VSphereSession session;
+    private final List<String> names;
+    private Map<String, ManagedObjectReference> references;
+
+    public DatastoreCollector(VSphereSession session, String[] names) {
+        this.session = session;
+        this.names = Arrays.asList(names);
+    }
+
+    public List<String> getNames() {
+        return names;
+    }
+
+    public synchronized List<DatastoreSummary> collect() throws IOException {
+        if (names.isEmpty()) {
+            return new ArrayList<DatastoreSummary>();
+        }
+        ServiceInstance serviceInstance = session.get();
+        try {
+            return collect(serviceInstance.getPropertyCollector(), serviceInstance.getRootFolder().getMOR());
+        } catch (RemoteException e) {
+            if (session.failed(serviceInstance, e)) {
+                references = null;
+            }
+            throw e;
+        }
+    }
+
+    private List<DatastoreSummary> collect(PropertyCollector propertyCollector, ManagedObjectReference rootFolder)
+            throws RemoteException {
+        if (references == null) {
+            references = resolve(propertyCollector, rootFolder);
+        }
+        Map<ManagedObjectReference, DatastoreSummary> summaries;
+        try {
+            summaries = retrieveSummaries(propertyCollector, references.values());
+        } catch (ManagedObjectNotFound e) {
+            LOG.info("Datastore {} no longer exists. Looking up datastores again.", e.getObj());
+            references = resolve(propertyCollector, rootFolder);
+            summaries = retrieveSummaries(propertyCollector, references.values());
+        }
+        List<DatastoreSummary> result = new ArrayList<DatastoreSummary>(names.size());
+        boolean complete = true;
+        for (String name : names) {
+            DatastoreSummary summary = summaries.get(references.get(name));
+            if (summary != null) {
+                result.add(summary);
+            } else {
+                LOG.error("Unable to find datastore {}", name);
+                complete = false;
+            }
+        }
+        if (!complete) {
+            references = null;
+        }
+        return result;
+    }
+
+    /**
+     * Looks up the references of the configured datastores by name.
+     */
+    // deprecated in favour of the paged retrievePropertiesEx, which a few datastores do not need
+    @SuppressWarnings("deprecation")
+    Map<String, ManagedObjectReference> resolve(PropertyCollector propertyCollector,
+            ManagedObjectReference rootFolder) throws RemoteException {
+        ObjectContent[] contents = propertyCollector.retrieveProperties(new PropertyFilterSpec[] {
+                filter(datastoreNames(), inventory(rootFolder)) });
+        Map<String, ManagedObjectReference> references = new HashMap<String, ManagedObjectReference>();
+        for (ObjectContent content : contents == null ? new ObjectContent[0] : contents) {
+            Object name = property(content, "name");
+            if (name != null && names.contains(name)) {
+                references.put((String) name, content.getObj());
+            }
+        }
+        return references;
+    }
+
+    // deprecated in favour of the paged retrievePropertiesEx, which a few datastores do not need
+    @SuppressWarnings("deprecation")
+    private Map<ManagedObjectReference, DatastoreSummary> retrieveSummaries(PropertyCollector propertyCollector,
+            Collection<ManagedObjectReference> datastores) throws RemoteException {
+        Map<ManagedObjectReference, DatastoreSummary> summaries =
+                new HashMap<ManagedObjectReference, DatastoreSummary>();
+        if (datastores.isEmpty()) {
+            return summaries;
+        }
+        ObjectContent[] contents = propertyCollector.retrieveProperties(new PropertyFilterSpec[] {
+                filter(summaries(), objects(datastores)) });
+        for (ObjectContent content : contents == null ? new ObjectContent[0] : contents) {
+            Object summary = property(content, SUMMARY);
+            if (summary instanceof DatastoreSummary) {
+                summaries.put(content.getObj(), (DatastoreSummary) summary);
+            }
+        }
+        return summaries;
+    }
+
+    static ObjectSpec[] objects(Collection<ManagedObjectReference> references) {
+        ObjectSpec[] objects = new ObjectSpec[references.size()];
+        int i = 0;
+        for (ManagedObjectReference reference : references) {
+            objects[i] = new ObjectSpec();
+            objects[i++].setObj(reference);
+        }
+        return objects;
+    }
+
+    static PropertySpec summaries() {
+        PropertySpec summary = new PropertySpec();
+        summary.setType(DATASTORE);
+        summary.setPathSet(new String[] { SUMMARY });
+        return summary;
+    }
+
+    private static PropertySpec datastoreNames() {
+        PropertySpec name = new PropertySpec();
+        name.setType(DATASTORE);
+        name.setPathSet(new String[] { "name" });
+        return name;
+    }
+
+    static PropertyFilterSpec filter(PropertySpec properties, ObjectSpec... objects) {
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+        filter.setPropSet(new PropertySpec[] { properties });
+        filter.setObjectSet(objects);
+        filter.setReportMissingObjectsInResults(true);
+        return filter;
+    }
+
+    /**
+     * Walks from the root folder through nested folders into every
+     * datacenter's datastores.
+     */
+    private static ObjectSpec inventory(ManagedObjectReference rootFolder) {
+        SelectionSpec folders = new SelectionSpec();
+        folders.setName("folders");
+
+        TraversalSpec datastores = new TraversalSpec();
+        datastores.setType("Datacenter");
+        datastores.setPath("datastore");
+        datastores.setSkip(false);
+
+        TraversalSpec children = new TraversalSpec();
+        children.setName("folders");
+        children.setType("Folder");
+        children.setPath("childEntity");
+        children.setSkip(false);
+        children.setSelectSet(new SelectionSpec[] { folders, datastores });
+
+        ObjectSpec root = new ObjectSpec();
+        root.setObj(rootFolder);
+        root.setSkip(true);
+        root.setSelectSet(new SelectionSpec[] { children });
+        return root;
+    }
+
+    static Object property(ObjectContent content, String name) {
+        if (content.getPropSet() == null) {
+            return null;
+        }
+        for (DynamicProperty property : content.getPropSet()) {
+            if (name.equals(property.getName())) {
+                return property.getVal();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Streams changes to the summaries of the configured datastores instead of
+ * polling them. A dedicated {@link PropertyCollector} holds a filter on the
+ * summary property of each datastore and
+ * {@link PropertyCollector#waitForUpdatesEx(String, WaitOptions)} is called
+ * with the last version seen, so vCenter only sends what changed.
+ * <p>
+ * When the session is lost or the version is no longer valid the filter is
+ * set up again against a fresh session. The update set that follows carries
+ * every datastore, but only the ones that differ from the state kept here
+ * are passed on to the {@link Listener}. Any other failure, including one
+ * thrown by the listener, is logged and handled the same way after a
+ * backoff, so the watcher thread keeps running.
+ */
+public class DatastoreWatcher implements Runnable, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DatastoreWatcher.class);
+
+    public interface Listener {
+        void changed(DatastoreSummary summary);
+    }
+
+    private final VSphereSession session;
+    private final DatastoreCollector datastores;
+    private final WaitOptions options;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Map<ManagedObjectReference, DatastoreSummary> state =
+            new ConcurrentHashMap<ManagedObjectReference, DatastoreSummary>();
+    private volatile boolean running;
+    private Listener listener;
+    private Thread thread;
+
+    private ServiceInstance serviceInstance;
+    private PropertyCollector collector;
+    private PropertyFilter filter;
+    private String version;
+    private int failures;
+
+    public DatastoreWatcher(VSphereSession session, DatastoreCollector datastores, int maxWaitSeconds) {
+        this(session, datastores, maxWaitSeconds, 1000, 300000);
+    }
+
+    DatastoreWatcher(VSphereSession session, DatastoreCollector datastores, int maxWaitSeconds,
+            long initialBackoff, long maxBackoff) {
+        this.session = session;
+        this.datastores = datastores;
+        this.options = new WaitOptions();
+        this.options.setMaxWaitSeconds(maxWaitSeconds);
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    public synchronized void start(Listener listener) {
+        listen(listener);
+        running = true;
+        thread = new Thread(this, "vsphere-datastore-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void listen(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                poll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * Waits for one set of updates, setting up the filter first if needed.
+     */
+    void poll() throws InterruptedException {
+        try {
+            if (filter == null) {
+                watch();
+            }
+            UpdateSet updates = collector.waitForUpdatesEx(version, options);
+            if (updates != null) {
+                apply(updates);
+                version = updates.getVersion();
+            }
+            failures = 0;
+        } catch (InvalidCollectorVersion e) {
+            LOG.info("vSphere update version {} is no longer valid. Watching datastores again.", version);
+            reset();
+        } catch (IOException e) {
+            LOG.warn("Unable to watch vSphere datastores", e);
+            if (serviceInstance != null && e instanceof RemoteException) {
+                session.failed(serviceInstance, (RemoteException) e);
+            }
+            reset();
+            Thread.sleep(backoff(++failures));
+        } catch (RuntimeException e) {
+            LOG.error("Unexpected failure watching vSphere datastores. Watching them again.", e);
+            reset();
+            Thread.sleep(backoff(++failures));
+        }
+    }
+
+    /**
+     * The last known summaries of the configured datastores.
+     */
+    public List<DatastoreSummary> getSummaries() {
+        List<DatastoreSummary> summaries = new ArrayList<DatastoreSummary>(state.size());
+        for (String name : datastores.getNames()) {
+            for (DatastoreSummary summary : state.values()) {
+                if (name.equals(summary.getName())) {
+                    summaries.add(summary);
+                }
+            }
+        }
+        return summaries;
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void watch() throws IOException {
+        serviceInstance = session.get();
+        PropertyCollector root = serviceInstance.getPropertyCollector();
+        Map<String, ManagedObjectReference> references = datastores.resolve(root,
+                serviceInstance.getRootFolder().getMOR());
+        for (String name : datastores.getNames()) {
+            if (!references.containsKey(name)) {
+                LOG.error("Unable to find datastore {}", name);
+            }
+        }
+        state.keySet().retainAll(references.values());
+        collector = root.createPropertyCollector();
+        filter = collector.createFilter(DatastoreCollector.filter(DatastoreCollector.summaries(),
+                DatastoreCollector.objects(references.values())), false);
+        version = "";
+        LOG.info("Watching {} vSphere datastores for changes", references.size());
+    }
+
+    private void apply(UpdateSet updates) {
+        for (PropertyFilterUpdate filterUpdate : nonNull(updates.getFilterSet(), new PropertyFilterUpdate[0])) {
+            for (ObjectUpdate update : nonNull(filterUpdate.getObjectSet(), new ObjectUpdate[0])) {
+                if (update.getKind() == ObjectUpdateKind.leave) {
+                    state.remove(update.getObj());
+                    continue;
+                }
+                for (PropertyChange change : nonNull(update.getChangeSet(), new PropertyChange[0])) {
+                    if (DatastoreCollector.SUMMARY.equals(change.getName())
+                            && change.getVal() instanceof DatastoreSummary) {
+                        changed(update.getObj(), (DatastoreSummary) change.getVal());
+                    }
+                }
+            }
+        }
+    }
+
+    private void changed(ManagedObjectReference datastore, DatastoreSummary summary) {
+        DatastoreSummary previous = state.get(datastore);
+        if (previous == null || !same(previous, summary)) {
+            listener.changed(summary);
+        }
+        state.put(datastore, summary);
+    }
+
+    private static boolean same(DatastoreSummary a, DatastoreSummary b) {
+        return a.getCapacity() == b.getCapacity() && a.getFreeSpace() == b.getFreeSpace()
+                && Objects.equals(a.getUncommitted(), b.getUncommitted()) && Objects.equals(a.getName(), b.getName())
+                && a.isAccessible() == b.isAccessible();
+    }
+
+    private void reset() {
+        if (filter != null) {
+            try {
+                filter.destroyPropertyFilter();
+                collector.destroyPropertyCollector();
+            } catch (RemoteException | RuntimeException e) {
+                LOG.debug("Unable to remove the datastore property filter", e);
+            }
+        }
+        filter = null;
+        collector = null;
+        serviceInstance = null;
+    }
+
+    long backoff(int failures) {
+        long backoff = initialBackoff << Math.min(failures - 1, 30);
+        return backoff <= 0 || backoff > maxBackoff ? maxBackoff : backoff;
+    }
+
+    private static <T> T[] nonNull(T[] values, T[] empty) {
+        return values == null ? empty : values;
+    }
+}
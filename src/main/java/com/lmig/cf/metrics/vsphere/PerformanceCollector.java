@@ -0,0 +1,314 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.lmig.cf.metrics.sharding.Shard;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Reads real-time performance counters of the ESXi hosts and powered on
+ * virtual machines through {@link PerformanceManager#queryPerf(PerfQuerySpec[])}.
+ * <p>
+ * Hosts and virtual machines are found with one property collector call per
+ * cycle. Virtual machines are limited to names starting with one of the
+ * configured prefixes, {@code vm-} for the VMs BOSH creates by default.
+ * Entities are queried in batches of {@code batchSize} specs per request,
+ * with at most {@code threads} requests in flight. Counter IDs are looked up
+ * by name once per session. When the drain is sharded, each instance only
+ * queries the hosts and virtual machines its {@link Shard} owns.
+ */
+public class PerformanceCollector implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PerformanceCollector.class);
+
+    static final int REAL_TIME_INTERVAL = 20;
+
+    static final String HOST = "HostSystem";
+    static final String VIRTUAL_MACHINE = "VirtualMachine";
+    private static final String POWER_STATE = "runtime.powerState";
+
+    /**
+     * The latest sample of each counter of a host or virtual machine, keyed
+     * by counter name such as {@code cpu.ready.summation}.
+     */
+    public static class EntityPerformance {
+
+        private final String type;
+        private final String name;
+        private final Map<String, Long> values = new LinkedHashMap<String, Long>();
+
+        EntityPerformance(String type, String name) {
+            this.type = type;
+            this.name = name;
+        }
+
+        /**
+         * {@code host} or {@code vm}.
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Map<String, Long> getValues() {
+            return values;
+        }
+    }
+
+    private final VSphereSession session;
+    private final Shard shard;
+    private final List<String> counters;
+    private final List<String> vmPrefixes;
+    private final int batchSize;
+    private final ExecutorService workers;
+    private ServiceInstance countersFor;
+    private Map<Integer, String> counterNames;
+
+    public PerformanceCollector(VSphereSession session, Shard shard, String[] counters, String[] vmPrefixes,
+            int batchSize, int threads) {
+        this.session = session;
+        this.shard = shard;
+        this.counters = Arrays.asList(counters);
+        this.vmPrefixes = Arrays.asList(vmPrefixes);
+        this.batchSize = Math.max(1, batchSize);
+        AtomicInteger count = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "vsphere-performance-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public synchronized List<EntityPerformance> collect() throws IOException {
+        ServiceInstance serviceInstance = session.get();
+        try {
+            return collect(serviceInstance);
+        } catch (RemoteException e) {
+            session.failed(serviceInstance, e);
+            throw e;
+        }
+    }
+
+    private List<EntityPerformance> collect(ServiceInstance serviceInstance) throws RemoteException {
+        PerformanceManager performanceManager = serviceInstance.getPerformanceManager();
+        if (countersFor != serviceInstance) {
+            counterNames = counterNames(performanceManager);
+            countersFor = serviceInstance;
+        }
+        Map<ManagedObjectReference, EntityPerformance> entities = entities(serviceInstance);
+        if (entities.isEmpty() || counterNames.isEmpty()) {
+            return new ArrayList<EntityPerformance>();
+        }
+        PerfMetricId[] metrics = new PerfMetricId[counterNames.size()];
+        int i = 0;
+        for (Integer counterId : counterNames.keySet()) {
+            metrics[i] = new PerfMetricId();
+            metrics[i].setCounterId(counterId);
+            metrics[i++].setInstance("");
+        }
+
+        List<ManagedObjectReference> references = new ArrayList<ManagedObjectReference>(entities.keySet());
+        List<Future<PerfEntityMetricBase[]>> batches = new ArrayList<Future<PerfEntityMetricBase[]>>();
+        for (int start = 0; start < references.size(); start += batchSize) {
+            PerfQuerySpec[] specs = specs(references.subList(start, Math.min(start + batchSize, references.size())),
+                    metrics);
+            batches.add(workers.submit(() -> performanceManager.queryPerf(specs)));
+        }
+        for (Future<PerfEntityMetricBase[]> batch : batches) {
+            for (PerfEntityMetricBase metric : results(batch)) {
+                EntityPerformance entity = entities.get(metric.getEntity());
+                if (entity != null && metric instanceof PerfEntityMetric) {
+                    record(entity, (PerfEntityMetric) metric);
+                }
+            }
+        }
+        return new ArrayList<EntityPerformance>(entities.values());
+    }
+
+    private PerfEntityMetricBase[] results(Future<PerfEntityMetricBase[]> batch) throws RemoteException {
+        try {
+            PerfEntityMetricBase[] results = batch.get();
+            return results == null ? new PerfEntityMetricBase[0] : results;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RemoteException) {
+                throw (RemoteException) e.getCause();
+            }
+            throw new RemoteException("Unable to query performance counters", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted querying performance counters", e);
+        }
+    }
+
+    private void record(EntityPerformance entity, PerfEntityMetric metric) {
+        for (PerfMetricSeries series : metric.getValue() == null ? new PerfMetricSeries[0] : metric.getValue()) {
+            String name = counterNames.get(series.getId().getCounterId());
+            if (name != null && series instanceof PerfMetricIntSeries) {
+                long[] values = ((PerfMetricIntSeries) series).getValue();
+                if (values != null && values.length > 0) {
+                    entity.getValues().put(name, values[values.length - 1]);
+                }
+            }
+        }
+    }
+
+    private static PerfQuerySpec[] specs(List<ManagedObjectReference> entities, PerfMetricId[] metrics) {
+        PerfQuerySpec[] specs = new PerfQuerySpec[entities.size()];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new PerfQuerySpec();
+            specs[i].setEntity(entities.get(i));
+            specs[i].setMetricId(metrics);
+            specs[i].setIntervalId(REAL_TIME_INTERVAL);
+            specs[i].setMaxSample(1);
+        }
+        return specs;
+    }
+
+    private Map<Integer, String> counterNames(PerformanceManager performanceManager) {
+        Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+        Map<String, Integer> available = new HashMap<String, Integer>();
+        PerfCounterInfo[] infos = performanceManager.getPerfCounter();
+        for (PerfCounterInfo info : infos == null ? new PerfCounterInfo[0] : infos) {
+            available.put(info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey() + "."
+                    + info.getRollupType(), info.getKey());
+        }
+        for (String counter : counters) {
+            Integer key = available.get(counter);
+            if (key != null) {
+                names.put(key, counter);
+            } else {
+                LOG.error("Unable to find performance counter {}", counter);
+            }
+        }
+        return names;
+    }
+
+    // deprecated in favour of the paged retrievePropertiesEx; every entity is needed for the cycle anyway
+    @SuppressWarnings("deprecation")
+    private Map<ManagedObjectReference, EntityPerformance> entities(ServiceInstance serviceInstance)
+            throws RemoteException {
+        PropertySpec hosts = new PropertySpec();
+        hosts.setType(HOST);
+        hosts.setPathSet(new String[] { "name" });
+        PropertySpec vms = new PropertySpec();
+        vms.setType(VIRTUAL_MACHINE);
+        vms.setPathSet(new String[] { "name", POWER_STATE });
+        PropertyFilterSpec filter = new PropertyFilterSpec();
+        filter.setPropSet(new PropertySpec[] { hosts, vms });
+        filter.setObjectSet(new ObjectSpec[] { inventory(serviceInstance.getRootFolder().getMOR()) });
+
+        ObjectContent[] contents = serviceInstance.getPropertyCollector().retrieveProperties(
+                new PropertyFilterSpec[] { filter });
+        Map<ManagedObjectReference, EntityPerformance> entities =
+                new LinkedHashMap<ManagedObjectReference, EntityPerformance>();
+        for (ObjectContent content : contents == null ? new ObjectContent[0] : contents) {
+            Object name = DatastoreCollector.property(content, "name");
+            if (!(name instanceof String) || !shard.owns(content.getObj().getType() + "/" + name)) {
+                continue;
+            }
+            if (HOST.equals(content.getObj().getType())) {
+                entities.put(content.getObj(), new EntityPerformance("host", (String) name));
+            } else if (VIRTUAL_MACHINE.equals(content.getObj().getType())
+                    && DatastoreCollector.property(content, POWER_STATE) == VirtualMachinePowerState.poweredOn
+                    && matches((String) name)) {
+                entities.put(content.getObj(), new EntityPerformance("vm", (String) name));
+            }
+        }
+        return entities;
+    }
+
+    private boolean matches(String vm) {
+        for (String prefix : vmPrefixes) {
+            if (vm.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Walks from the root folder through nested folders and datacenters into
+     * the hosts of every cluster and the virtual machines of every folder.
+     */
+    private static ObjectSpec inventory(ManagedObjectReference rootFolder) {
+        SelectionSpec folders = new SelectionSpec();
+        folders.setName("folders");
+
+        TraversalSpec hostFolders = traversal("Datacenter", "hostFolder", folders);
+        TraversalSpec vmFolders = traversal("Datacenter", "vmFolder", folders);
+        TraversalSpec hosts = traversal("ComputeResource", "host");
+
+        TraversalSpec children = traversal("Folder", "childEntity", folders, hostFolders, vmFolders, hosts);
+        children.setName("folders");
+
+        ObjectSpec root = new ObjectSpec();
+        root.setObj(rootFolder);
+        root.setSkip(true);
+        root.setSelectSet(new SelectionSpec[] { children });
+        return root;
+    }
+
+    private static TraversalSpec traversal(String type, String path, SelectionSpec... selectSet) {
+        TraversalSpec traversal = new TraversalSpec();
+        traversal.setType(type);
+        traversal.setPath(path);
+        traversal.setSkip(false);
+        traversal.setSelectSet(selectSet);
+        return traversal;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+}
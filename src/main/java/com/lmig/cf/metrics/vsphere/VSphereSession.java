@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * Holds the vCenter session shared by the vSphere collectors. The session is
+ * opened on first use and opened again after a failure shows it was lost,
+ * such as an expired login or a broken connection.
+ */
+public class VSphereSession {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VSphereSession.class);
+
+    public interface Connector {
+        ServiceInstance connect() throws IOException;
+    }
+
+    private final String host;
+    private final Connector connector;
+    private ServiceInstance serviceInstance;
+
+    public VSphereSession(String host, Connector connector) {
+        this.host = host;
+        this.connector = connector;
+    }
+
+    public synchronized ServiceInstance get() throws IOException {
+        if (serviceInstance == null) {
+            serviceInstance = connector.connect();
+            LOG.info("Connected to vSphere {}", host);
+        }
+        return serviceInstance;
+    }
+
+    /**
+     * Drops the session a call failed on unless the failure was a fault
+     * raised by vCenter for an otherwise healthy session.
+     *
+     * @return whether the session was dropped
+     */
+    public synchronized boolean failed(ServiceInstance stale, RemoteException e) {
+        if (e instanceof MethodFault && !(e instanceof NotAuthenticated)) {
+            return false;
+        }
+        if (serviceInstance == stale) {
+            LOG.warn("Lost the session with vSphere {}. Reconnecting on next use.", host, e);
+            serviceInstance = null;
+        }
+        return true;
+    }
+}
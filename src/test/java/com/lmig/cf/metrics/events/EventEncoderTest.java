@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.events;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class EventEncoderTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final EventEncoder encoder = new EventEncoder();
+
+    @Test
+    public void arraysAreEncodedAsInsertApiJson() throws Exception {
+        List<?> events = MAPPER.readValue(text(encoder.array(events(1000, 2))), List.class);
+
+        assertThat(events.size(), is(2));
+        Map<?, ?> event = (Map<?, ?>) events.get(1);
+        assertThat(event.get("eventType"), is("test"));
+        assertThat(event.get("timestamp"), is(1001));
+        assertThat(event.get("i"), is(1001));
+    }
+
+    @Test
+    public void nullAttributesAreLeftOut() throws Exception {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("job", "router");
+        attributes.put("ip", null);
+
+        Map<?, ?> event = MAPPER.readValue(text(encoder.lines(Arrays.asList(new Event("cf_metric", attributes)))),
+                Map.class);
+
+        assertThat(event.get("job"), is("router"));
+        assertThat(event.containsKey("ip"), is(false));
+    }
+
+    @Test
+    public void linesEndEachEvent() throws Exception {
+        String[] lines = text(encoder.lines(events(3))).split("\n", -1);
+
+        assertThat(lines.length, is(4));
+        assertThat(lines[3], is(""));
+        assertThat(MAPPER.readValue(lines[2], Map.class).get("i"), is(2));
+    }
+
+    @Test
+    public void gzipRoundTrips() throws Exception {
+        String json = text(encoder.array(events(500)));
+
+        encoder.array(events(500)).gzip();
+
+        assertThat(encoder.getLength(), lessThan(json.length()));
+        assertThat(gunzip(encoder), is(json));
+    }
+
+    @Test
+    public void encoderIsReusedForSmallerBatches() throws Exception {
+        encoder.array(events(1000)).gzip();
+        byte[] buffer = encoder.getBytes();
+
+        encoder.array(events(10)).gzip();
+        encoder.array(events(1000)).gzip();
+
+        assertThat(encoder.getBytes() == buffer, is(true));
+        assertThat(MAPPER.readValue(gunzip(encoder), List.class).size(), is(1000));
+    }
+
+    @Test
+    public void oversizedBuffersAreReleased() throws Exception {
+        encoder.lines(events(EventEncoder.MAX_RETAINED_BYTES / 40));
+        assertThat(encoder.getBytes().length > EventEncoder.MAX_RETAINED_BYTES, is(true));
+
+        encoder.lines(events(1));
+
+        assertThat(encoder.getBytes().length < EventEncoder.MAX_RETAINED_BYTES, is(true));
+        assertThat(MAPPER.readValue(text(encoder), Map.class).get("i"), is(0));
+    }
+
+    private static String text(EventEncoder encoder) {
+        return new String(encoder.getBytes(), 0, encoder.getLength(), StandardCharsets.UTF_8);
+    }
+
+    private static String gunzip(EventEncoder encoder) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(Arrays.copyOf(encoder.getBytes(),
+                encoder.getLength())))) {
+            byte[] buffer = new byte[4096];
+            for (int read; (read = in.read(buffer)) >= 0;) {
+                out.write(buffer, 0, read);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.waitFor;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.newrelic.api.agent.Insights;
+
+public class EventPublisherTest {
+
+    private final List<String> recorded = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch released = new CountDownLatch(1);
+    private EventPublisher publisher;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        released.countDown();
+        if (publisher != null) {
+            publisher.shutdown();
+        }
+    }
+
+    @Test
+    public void eventsArePublishedInBatches() throws Exception {
+        publisher = new EventPublisher(new InsightsAgentSink(recordingInsights()), 100, 5, 10000, 1, "drop");
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publish("test", attributes(i));
+        }
+
+        waitFor(() -> publisher.getPublished() == 10);
+        assertThat(publisher.getBatches(), is(2L));
+    }
+
+    @Test
+    public void partialBatchIsFlushedAfterTheInterval() throws Exception {
+        publisher = new EventPublisher(new InsightsAgentSink(recordingInsights()), 100, 500, 50, 1, "drop");
+
+        publisher.publish("test", attributes(1));
+
+        waitFor(() -> publisher.getPublished() == 1);
+        assertThat(recorded, contains("test:1"));
+    }
+
+    @Test
+    public void eventsAreDroppedWhenTheQueueIsFull() throws Exception {
+        publisher = new EventPublisher(new InsightsAgentSink(blockedInsights()), 2, 1, 10, 1, "drop");
+        publisher.publish("test", attributes(0));
+        waitFor(() -> publisher.getQueueDepth() == 0);
+
+        assertThat(publisher.publish("test", attributes(1)), is(true));
+        assertThat(publisher.publish("test", attributes(2)), is(true));
+        assertThat(publisher.publish("test", attributes(3)), is(false));
+
+        assertThat(publisher.getDropped(), is(1L));
+        assertThat(publisher.getQueueDepth(), is(2));
+    }
+
+    @Test
+    public void blockPolicyWaitsForRoom() throws Exception {
+        publisher = new EventPublisher(new InsightsAgentSink(blockedInsights()), 1, 1, 10, 1, "block");
+        publisher.publish("test", attributes(0));
+        waitFor(() -> publisher.getQueueDepth() == 0);
+        publisher.publish("test", attributes(1));
+
+        Thread producer = new Thread(() -> publisher.publish("test", attributes(2)));
+        producer.start();
+        producer.join(100);
+        assertThat(producer.isAlive(), is(true));
+
+        released.countDown();
+        producer.join(1000);
+        assertThat(producer.isAlive(), is(false));
+        assertThat(publisher.getDropped(), is(0L));
+    }
+
+    @Test
+    public void queuedEventsArePublishedOnShutdown() throws Exception {
+        publisher = new EventPublisher(new InsightsAgentSink(recordingInsights()), 100, 500, 60000, 1, "drop");
+        for (int i = 0; i < 3; i++) {
+            publisher.publish("test", attributes(i));
+        }
+
+        publisher.shutdown();
+
+        assertThat(recorded, contains("test:0", "test:1", "test:2"));
+    }
+
+    @Test
+    public void failedBatchesAreCounted() throws Exception {
+        publisher = new EventPublisher(events -> {
+            throw new IOException("unavailable");
+        }, 100, 2, 10000, 1, "drop");
+
+        publisher.publish("test", attributes(1));
+        publisher.publish("test", attributes(2));
+
+        waitFor(() -> publisher.getFailed() == 2);
+        assertThat(publisher.getPublished(), is(0L));
+    }
+
+    @Test
+    public void onlyUnsentEventsOfAPartialBatchAreCountedAsFailed() throws Exception {
+        publisher = new EventPublisher(events -> {
+            throw new PartialPublishException(events.subList(2, 3), new IOException("unavailable"));
+        }, 100, 3, 10000, 1, "drop");
+
+        for (int i = 0; i < 3; i++) {
+            publisher.publish("test", attributes(i));
+        }
+
+        waitFor(() -> publisher.getFailed() == 1);
+        assertThat(publisher.getPublished(), is(2L));
+    }
+
+    private Insights recordingInsights() {
+        return new Insights() {
+            @Override
+            public void recordCustomEvent(String eventType, Map<String, Object> attributes) {
+                recorded.add(eventType + ":" + attributes.get("i"));
+            }
+        };
+    }
+
+    private Insights blockedInsights() {
+        return new Insights() {
+            @Override
+            public void recordCustomEvent(String eventType, Map<String, Object> attributes) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Map<String, Object> attributes(int i) {
+        return Collections.<String, Object> singletonMap("i", i);
+    }
+}
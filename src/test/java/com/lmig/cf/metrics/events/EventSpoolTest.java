@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.delete;
+import static com.lmig.cf.metrics.events.TestEvents.events;
+import static com.lmig.cf.metrics.events.TestEvents.numbers;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventSpoolTest {
+
+    private Path directory;
+
+    private EventSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        spool.close();
+        delete(directory);
+    }
+
+    @Test
+    public void eventsKeepTheirAttributes() throws IOException {
+        spool = open(1 << 20, 1 << 16);
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("job", "Router");
+        attributes.put("value", 45.5f);
+        attributes.put("ratio", 0.25);
+        attributes.put("index", -3);
+        attributes.put("total", 1L << 40);
+        attributes.put("healthy", true);
+        attributes.put("ip", null);
+
+        spool.append(Collections.singletonList(new Event("cf_vm_metrics", attributes, 1440000000000L)));
+        Event event = spool.peek(10).get(0);
+
+        assertThat(event.getType(), is("cf_vm_metrics"));
+        assertThat(event.getTimestamp(), is(1440000000000L));
+        assertThat(event.getAttributes().get("job"), is("Router"));
+        assertThat(event.getAttributes().get("value"), is(45.5f));
+        assertThat(event.getAttributes().get("ratio"), is(0.25));
+        assertThat(event.getAttributes().get("index"), is(-3L));
+        assertThat(event.getAttributes().get("total"), is(1L << 40));
+        assertThat(event.getAttributes().get("healthy"), is(true));
+        assertThat(event.getAttributes().containsKey("ip"), is(true));
+    }
+
+    @Test
+    public void eventsStayUntilCommitted() throws IOException {
+        spool = open(1 << 20, 1 << 16);
+        spool.append(events(0, 5));
+
+        assertThat(numbers(spool.peek(3)), contains(0L, 1L, 2L));
+        assertThat(numbers(spool.peek(3)), contains(0L, 1L, 2L));
+
+        spool.commit();
+
+        assertThat(spool.getEvents(), is(2L));
+        assertThat(numbers(spool.peek(3)), contains(3L, 4L));
+        spool.commit();
+        assertThat(spool.isEmpty(), is(true));
+        assertThat(spool.peek(3), is(empty()));
+    }
+
+    @Test
+    public void undeliveredEventsSurviveARestart() throws IOException {
+        spool = open(1 << 20, 1 << 16);
+        spool.append(events(0, 3));
+        spool.append(events(3, 3));
+        spool.peek(4);
+        spool.commit();
+        spool.close();
+
+        spool = open(1 << 20, 1 << 16);
+
+        assertThat(spool.getEvents(), is(2L));
+        assertThat(numbers(spool.peek(10)), contains(4L, 5L));
+    }
+
+    @Test
+    public void deliveredSegmentsAreDeleted() throws IOException {
+        spool = open(1 << 20, 256);
+        for (int i = 0; i < 20; i++) {
+            spool.append(events(i, 1));
+        }
+        assertThat(segments() > 1, is(true));
+
+        List<Event> replayed = drain(3);
+
+        assertThat(replayed.size(), is(20));
+        assertThat(numbers(replayed).get(19), is(19L));
+        assertThat(segments(), is(1L));
+    }
+
+    @Test
+    public void oldestEventsAreEvictedAtTheSizeCap() throws IOException {
+        spool = open(1024, 256);
+        for (int i = 0; i < 100; i++) {
+            spool.append(events(i, 1));
+        }
+
+        assertThat(spool.getBytes(), is(lessThanOrEqualTo(1024L)));
+        assertThat(spool.getEvicted() + spool.getEvents(), is(100L));
+        List<Event> remaining = drain(100);
+        assertThat(numbers(remaining).get(remaining.size() - 1), is(99L));
+        assertThat(numbers(remaining).get(0), is(spool.getEvicted()));
+    }
+
+    @Test
+    public void incompleteRecordIsCutOffOnRestart() throws IOException {
+        spool = open(1 << 20, 1 << 16);
+        spool.append(events(0, 2));
+        spool.close();
+        Path segment = directory.resolve("0.spool");
+        Files.write(segment, new byte[] { 0, 0, 0, 50, 1, 2, 3 }, StandardOpenOption.APPEND);
+
+        spool = open(1 << 20, 1 << 16);
+        spool.append(events(2, 1));
+
+        assertThat(numbers(drain(10)), contains(0L, 1L, 2L));
+    }
+
+    private EventSpool open(long maxBytes, long segmentBytes) throws IOException {
+        return new EventSpool(directory, maxBytes, segmentBytes);
+    }
+
+    private List<Event> drain(int batchSize) throws IOException {
+        List<Event> drained = new ArrayList<Event>();
+        for (List<Event> batch = spool.peek(batchSize); !batch.isEmpty(); batch = spool.peek(batchSize)) {
+            drained.addAll(batch);
+            spool.commit();
+        }
+        return drained;
+    }
+
+    private long segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".spool")).count();
+        }
+    }
+}
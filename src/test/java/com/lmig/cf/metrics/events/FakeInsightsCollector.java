@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPInputStream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the Insights Insert API. Requests are answered with
+ * the queued status codes, then with 200, and the events of every post
+ * answered with 200 are decoded and kept.
+ */
+public class FakeInsightsCollector implements AutoCloseable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final Queue<Integer> statuses = new ConcurrentLinkedQueue<Integer>();
+    private final List<Map<String, Object>> events = Collections.synchronizedList(
+            new ArrayList<Map<String, Object>>());
+    private final List<Integer> clientPorts = Collections.synchronizedList(new ArrayList<Integer>());
+    private final List<String> insertKeys = Collections.synchronizedList(new ArrayList<String>());
+    private volatile int requests;
+
+    public FakeInsightsCollector() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    public URL getUrl() throws IOException {
+        return new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/v1/accounts/1/events");
+    }
+
+    public void respondWith(Integer... statusCodes) {
+        Collections.addAll(statuses, statusCodes);
+    }
+
+    public List<Map<String, Object>> getEvents() {
+        return events;
+    }
+
+    public List<Integer> getClientPorts() {
+        return clientPorts;
+    }
+
+    public List<String> getInsertKeys() {
+        return insertKeys;
+    }
+
+    public int getRequests() {
+        return requests;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests++;
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        insertKeys.add(exchange.getRequestHeaders().getFirst("X-Insert-Key"));
+        Integer status = statuses.poll();
+        try (InputStream body = exchange.getRequestBody()) {
+            if (status == null) {
+                status = 200;
+            }
+            if (status == 200) {
+                InputStream in = "gzip".equals(exchange.getRequestHeaders().getFirst("Content-Encoding"))
+                        ? new GZIPInputStream(body) : body;
+                events.addAll(MAPPER.<List<Map<String, Object>>> readValue(in,
+                        new TypeReference<List<Map<String, Object>>>() {
+                        }));
+            } else {
+                while (body.read() >= 0) {
+                }
+            }
+        }
+        byte[] response = "{\"success\":true}".getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, response.length);
+        exchange.getResponseBody().write(response);
+        exchange.close();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+}
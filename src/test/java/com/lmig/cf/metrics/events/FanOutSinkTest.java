@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.waitFor;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+public class FanOutSinkTest {
+
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final List<Event> delivered = Collections.synchronizedList(new ArrayList<Event>());
+    private final Instrumentation instrumentation = new Instrumentation();
+    private FanOutSink sink;
+
+    @After
+    public void tearDown() throws Exception {
+        released.countDown();
+        sink.close();
+    }
+
+    @Test
+    public void aStalledSinkDoesNotHoldUpTheOthers() throws Exception {
+        Map<String, EventPublisher> publishers = new LinkedHashMap<String, EventPublisher>();
+        publishers.put("stalled", new EventPublisher(events -> released.await(), 2, 1, 10, 1, "drop", "stalled"));
+        publishers.put("healthy", new EventPublisher(delivered::addAll, 100, 10, 10, 1, "drop", "healthy"));
+        sink = new FanOutSink(publishers, instrumentation);
+
+        for (int i = 0; i < 10; i++) {
+            sink.publish(Collections.singletonList(event(i)));
+        }
+
+        waitFor(() -> delivered.size() == 10);
+        assertThat(gauge("sinks.healthy.published"), is(10L));
+        assertThat(gauge("sinks.stalled.dropped") > 0, is(true));
+    }
+
+    @Test
+    public void aFailingSinkDoesNotFailTheOthers() throws Exception {
+        Map<String, EventPublisher> publishers = new LinkedHashMap<String, EventPublisher>();
+        publishers.put("failing", new EventPublisher(events -> {
+            throw new IOException("unavailable");
+        }, 100, 10, 10, 1, "drop", "failing"));
+        publishers.put("healthy", new EventPublisher(delivered::addAll, 100, 10, 10, 1, "drop", "healthy"));
+        sink = new FanOutSink(publishers, instrumentation);
+
+        sink.publish(Collections.singletonList(event(1)));
+
+        waitFor(() -> delivered.size() == 1 && gauge("sinks.failing.failed") == 1);
+    }
+
+    @Test
+    public void aPublisherHandsEventsStraightToTheSinks() throws Exception {
+        Map<String, EventPublisher> publishers = new LinkedHashMap<String, EventPublisher>();
+        publishers.put("failing", new EventPublisher(events -> {
+            throw new IOException("unavailable");
+        }, 100, 10, 10, 1, "drop", "failing"));
+        publishers.put("healthy", new EventPublisher(delivered::addAll, 100, 10, 10, 1, "drop", "healthy"));
+        sink = new FanOutSink(publishers, instrumentation);
+        EventPublisher publisher = new EventPublisher(sink, 100, 10, 10, 1, "drop");
+
+        assertThat(publisher.publish(event(1)), is(true));
+
+        waitFor(() -> publisher.getPublished() == 1 && publisher.getFailed() == 1);
+        assertThat(delivered.size(), is(1));
+        publisher.shutdown();
+    }
+
+    @Test
+    public void aBatchNoSinkHasRoomForFails() throws Exception {
+        sink = new FanOutSink(Collections.singletonMap("stalled", new EventPublisher(events -> released.await(), 1,
+                1, 10, 1, "drop", "stalled")), instrumentation);
+        EventPublisher publisher = new EventPublisher(sink, 1, 1, 10, 1, "drop");
+        publisher.publish(event(1));
+        waitFor(() -> publisher.getQueueDepth() == 0);
+        publisher.publish(event(2));
+
+        try {
+            sink.publish(Collections.singletonList(event(3)));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(publisher.getDropped(), is(0L));
+        }
+        assertThat(publisher.publish(event(4)), is(false));
+        assertThat(publisher.getDropped(), is(1L));
+    }
+
+    @Test
+    public void queuedEventsAreDeliveredOnClose() throws Exception {
+        sink = new FanOutSink(Collections.singletonMap("slow", new EventPublisher(delivered::addAll, 100, 500,
+                60000, 1, "drop", "slow")), instrumentation);
+        sink.publish(Collections.singletonList(event(1)));
+
+        sink.close();
+
+        assertThat(delivered.size(), is(1));
+    }
+
+    private long gauge(String name) {
+        return (Long) ((Map<?, ?>) instrumentation.snapshot().get("gauges")).get(name);
+    }
+
+    private static Event event(int i) {
+        return new Event("test", Collections.<String, Object> singletonMap("i", i));
+    }
+}
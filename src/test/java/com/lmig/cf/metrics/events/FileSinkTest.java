@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.delete;
+import static com.lmig.cf.metrics.events.TestEvents.events;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class FileSinkTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sink");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        delete(directory);
+    }
+
+    @Test
+    public void eventsAreAppendedAsJsonLines() throws Exception {
+        FileSink sink = new FileSink(directory.resolve("logs/events.json"), 0);
+
+        sink.publish(events(0, 2));
+        sink.publish(events(2, 1));
+
+        List<String> lines = Files.readAllLines(directory.resolve("logs/events.json"), StandardCharsets.UTF_8);
+        assertThat(lines.size(), is(3));
+        Map<?, ?> event = MAPPER.readValue(lines.get(2), Map.class);
+        assertThat(event.get("eventType"), is("test"));
+        assertThat(event.get("timestamp"), is(2));
+        assertThat(event.get("i"), is(2));
+    }
+
+    @Test
+    public void theFileIsRolledWhenFull() throws Exception {
+        FileSink sink = new FileSink(directory.resolve("events.json"), 100);
+
+        for (int i = 0; i < 10; i++) {
+            sink.publish(events(i, 1));
+        }
+
+        assertThat(Files.exists(directory.resolve("events.json.1")), is(true));
+        assertThat(Files.size(directory.resolve("events.json")) < 200, is(true));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GraphiteSinkTest {
+
+    private ServerSocket server;
+    private GraphiteSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        sink = new GraphiteSink("127.0.0.1", server.getLocalPort(), "cf", 5000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sink.close();
+        server.close();
+    }
+
+    @Test
+    public void metricsAreWrittenWithTheirTimestampInSeconds() throws Exception {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("type", "datastore");
+        attributes.put("name", "ds-1");
+        attributes.put("capacity", 2048.0);
+        attributes.put("free_space", 512.5);
+
+        sink.publish(Collections.singletonList(new Event("cf_iaas_metrics", attributes, 1440000000999L)));
+
+        try (Socket client = server.accept();
+                BufferedReader lines = reader(client)) {
+            assertThat(lines.readLine(), is("cf.cf_iaas_metrics.name.ds-1.type.datastore.capacity 2048 1440000000"));
+            assertThat(lines.readLine(), is("cf.cf_iaas_metrics.name.ds-1.type.datastore.free_space 512.5 1440000000"));
+        }
+    }
+
+    @Test
+    public void theConnectionIsReusedAndReopenedAfterAFailure() throws Exception {
+        sink.publish(Collections.singletonList(event(1)));
+        try (Socket client = server.accept();
+                BufferedReader lines = reader(client)) {
+            assertThat(lines.readLine(), is("cf.test.value 1 1"));
+            sink.publish(Collections.singletonList(event(2)));
+            assertThat(lines.readLine(), is("cf.test.value 2 1"));
+        }
+
+        try {
+            for (int i = 0; i < 100; i++) {
+                sink.publish(Collections.singletonList(event(3)));
+                Thread.sleep(10);
+            }
+            fail("writes to a closed connection should fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        sink.publish(Collections.singletonList(event(4)));
+        try (Socket client = server.accept();
+                BufferedReader lines = reader(client)) {
+            assertThat(lines.readLine(), is("cf.test.value 4 1"));
+        }
+    }
+
+    private static BufferedReader reader(Socket client) throws IOException {
+        client.setSoTimeout(5000);
+        return new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static Event event(int value) {
+        return new Event("test", Collections.<String, Object> singletonMap("value", value), 1000);
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.events;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class InsightsInsertSinkTest {
+
+    private FakeInsightsCollector collector;
+    private InsightsInsertSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new FakeInsightsCollector();
+        sink = new InsightsInsertSink(collector.getUrl(), "secret", 3, 1, 5000);
+    }
+
+    @After
+    public void tearDown() {
+        collector.close();
+    }
+
+    @Test
+    public void eventsArePostedAsCompressedJson() throws Exception {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        attributes.put("job", "Router");
+        attributes.put("value", 45.0f);
+        attributes.put("ratio", 0.1f);
+        attributes.put("index", 1);
+        attributes.put("ip", null);
+
+        sink.publish(Arrays.asList(new Event("cf_vm_metrics", attributes, 1440000000000L)));
+
+        Map<String, Object> event = collector.getEvents().get(0);
+        assertThat(event.get("eventType"), is("cf_vm_metrics"));
+        assertThat(event.get("timestamp"), is(1440000000000L));
+        assertThat(event.get("job"), is("Router"));
+        assertThat(event.get("value"), is(45.0));
+        assertThat(event.get("ratio"), is(0.1));
+        assertThat(event.get("index"), is(1));
+        assertThat(event.containsKey("ip"), is(false));
+        assertThat(collector.getInsertKeys(), contains("secret"));
+    }
+
+    @Test
+    public void largeBatchesAreSplit() throws Exception {
+        sink.publish(events(InsightsInsertSink.MAX_EVENTS_PER_POST + 1));
+
+        assertThat(collector.getRequests(), is(2));
+        assertThat(collector.getEvents(), hasSize(InsightsInsertSink.MAX_EVENTS_PER_POST + 1));
+    }
+
+    @Test
+    public void onlyChunksThatWereNotPostedAreReportedUnsent() throws Exception {
+        collector.respondWith(200, 403);
+        List<Event> events = events(InsightsInsertSink.MAX_EVENTS_PER_POST + 1);
+
+        try {
+            sink.publish(events);
+            fail("expected PartialPublishException");
+        } catch (PartialPublishException e) {
+            assertThat(e.getUnsent(), contains(events.get(InsightsInsertSink.MAX_EVENTS_PER_POST)));
+            assertThat(collector.getEvents(), hasSize(InsightsInsertSink.MAX_EVENTS_PER_POST));
+        }
+    }
+
+    @Test
+    public void connectionIsKeptAlive() throws Exception {
+        sink.publish(events(1));
+        sink.publish(events(1));
+
+        assertThat(collector.getClientPorts().get(1), is(collector.getClientPorts().get(0)));
+    }
+
+    @Test
+    public void serverErrorsAreRetried() throws Exception {
+        collector.respondWith(503, 429);
+
+        sink.publish(events(2));
+
+        assertThat(collector.getRequests(), is(3));
+        assertThat(collector.getEvents(), hasSize(2));
+    }
+
+    @Test
+    public void retriesGiveUpAfterTheConfiguredAttempts() throws Exception {
+        collector.respondWith(500, 500, 500);
+
+        try {
+            sink.publish(events(1));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(collector.getRequests(), is(3));
+        }
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws Exception {
+        collector.respondWith(403);
+
+        try {
+            sink.publish(events(1));
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(collector.getRequests(), is(1));
+        }
+    }
+}
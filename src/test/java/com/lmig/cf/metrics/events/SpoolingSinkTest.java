@@ -0,0 +1,193 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static com.lmig.cf.metrics.events.TestEvents.delete;
+import static com.lmig.cf.metrics.events.TestEvents.events;
+import static com.lmig.cf.metrics.events.TestEvents.list;
+import static com.lmig.cf.metrics.events.TestEvents.numbers;
+import static com.lmig.cf.metrics.events.TestEvents.waitFor;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+public class SpoolingSinkTest {
+
+    private Path directory;
+
+    private final Instrumentation instrumentation = new Instrumentation();
+    private FakeInsightsCollector collector;
+    private SpoolingSink sink;
+
+    @Before
+    public void setUp() throws IOException {
+        collector = new FakeInsightsCollector();
+        directory = Files.createTempDirectory("spool");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (sink != null) {
+            sink.close();
+        }
+        collector.close();
+        delete(directory);
+    }
+
+    @Test
+    public void eventsGoStraightToAHealthySink() throws Exception {
+        sink = spooling(insights(), 0);
+
+        sink.publish(events(0, 3));
+
+        assertThat(received(), is(list(0, 3)));
+        assertThat(instrumentation.counter("spool.spooled").sum(), is(0L));
+    }
+
+    @Test
+    public void eventsAreReplayedAfterAnOutage() throws Exception {
+        collector.respondWith(503, 503, 503);
+        sink = spooling(insights(), 0);
+
+        sink.publish(events(0, 2));
+        sink.publish(events(2, 2));
+        sink.publish(events(4, 2));
+
+        waitFor(() -> instrumentation.counter("spool.replayed").sum() == 6);
+        List<Object> numbers = received();
+        Collections.sort(numbers, (a, b) -> Long.compare((Long) a, (Long) b));
+        assertThat(numbers, is(list(0, 6)));
+        assertThat(instrumentation.counter("spool.spooled").sum(), is(6L));
+    }
+
+    @Test
+    public void onlyTheUnsentEventsOfAFailedBatchAreSpooled() throws Exception {
+        List<Event> published = new ArrayList<Event>();
+        sink = spooling(events -> {
+            if (published.isEmpty()) {
+                published.addAll(events.subList(0, 2));
+                throw new PartialPublishException(events.subList(2, events.size()), new IOException("unavailable"));
+            }
+            published.addAll(events);
+        }, 0);
+
+        sink.publish(events(0, 5));
+
+        waitFor(() -> instrumentation.counter("spool.replayed").sum() == 3);
+        assertThat(instrumentation.counter("spool.spooled").sum(), is(3L));
+        assertThat(numbers(published), is(list(0, 5)));
+    }
+
+    @Test
+    public void aPartiallyReplayedBatchIsNotReplayedAgain() throws Exception {
+        sink = spooling(events -> {
+            throw new IOException("unavailable");
+        }, 0);
+        sink.publish(events(0, 5));
+        sink.close();
+
+        List<Event> published = new ArrayList<Event>();
+        sink = spooling(events -> {
+            if (published.isEmpty()) {
+                published.addAll(events.subList(0, 3));
+                throw new PartialPublishException(events.subList(3, events.size()), new IOException("unavailable"));
+            }
+            published.addAll(events);
+        }, 0);
+
+        waitFor(() -> instrumentation.counter("spool.replayed").sum() == 5);
+        assertThat(numbers(published), is(list(0, 5)));
+    }
+
+    @Test
+    public void newEventsBypassTheBacklogOnceTheSinkRecovers() throws Exception {
+        sink = spooling(events -> {
+            throw new IOException("unavailable");
+        }, 0);
+        sink.publish(events(0, 50));
+        sink.close();
+
+        sink = spooling(insights(), 10);
+        waitFor(() -> instrumentation.counter("spool.replayed").sum() > 0);
+        sink.publish(events(100, 1));
+
+        assertThat(received().contains(100L), is(true));
+        assertThat(instrumentation.counter("spool.replayed").sum() < 50, is(true));
+        assertThat(instrumentation.counter("spool.spooled").sum(), is(50L));
+    }
+
+    @Test
+    public void spooledEventsAreReplayedAfterARestart() throws Exception {
+        sink = spooling(events -> {
+            throw new IOException("unavailable");
+        }, 0);
+        sink.publish(events(0, 4));
+        sink.close();
+
+        sink = spooling(insights(), 0);
+
+        waitFor(() -> collector.getEvents().size() == 4);
+        assertThat(received(), is(list(0, 4)));
+    }
+
+    @Test
+    public void replayIsPaced() throws Exception {
+        sink = spooling(events -> {
+            throw new IOException("unavailable");
+        }, 0);
+        sink.publish(events(0, 50));
+        sink.close();
+
+        long start = System.nanoTime();
+        sink = spooling(insights(), 100);
+
+        waitFor(() -> collector.getEvents().size() == 50);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), is(greaterThanOrEqualTo(350L)));
+    }
+
+    private SpoolingSink spooling(EventSink delegate, double rate) throws IOException {
+        EventSpool spool = new EventSpool(directory, 1 << 20, 1 << 16);
+        SpoolingSink spooling = new SpoolingSink(delegate, spool, 10, rate, 10, instrumentation);
+        spooling.start();
+        return spooling;
+    }
+
+    private EventSink insights() throws IOException {
+        return new InsightsInsertSink(collector.getUrl(), "secret", 1, 1, 5000);
+    }
+
+    private List<Object> received() {
+        synchronized (collector.getEvents()) {
+            return collector.getEvents().stream().map(event -> ((Number) event.get("i")).longValue())
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.Assert.assertThat;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StatsdSinkTest {
+
+    private DatagramSocket server;
+    private StatsdSink sink;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        server.setSoTimeout(5000);
+        sink = new StatsdSink("127.0.0.1", server.getLocalPort(), "cf");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        sink.close();
+        server.close();
+    }
+
+    @Test
+    public void numericAttributesAreSentAsGauges() throws Exception {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("platform_instance", "prod");
+        attributes.put("job", "Router");
+        attributes.put("index", "0");
+        attributes.put("attribute", "system.cpu.user");
+        attributes.put("value", 0.25f);
+        attributes.put("total", 1200L);
+        attributes.put("healthy", true);
+
+        sink.publish(Collections.singletonList(new Event("cf_vm_metrics", attributes)));
+
+        assertThat(receive(), is(Arrays.asList(
+                "cf.cf_vm_metrics.attribute.system_cpu_user.index.0.job.Router.platform_instance.prod.healthy:1|g",
+                "cf.cf_vm_metrics.attribute.system_cpu_user.index.0.job.Router.platform_instance.prod.total:1200|g",
+                "cf.cf_vm_metrics.attribute.system_cpu_user.index.0.job.Router.platform_instance.prod.value:0.25|g")));
+    }
+
+    @Test
+    public void aMissingAttributeDoesNotShiftTheOthers() throws Exception {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        attributes.put("job", "Router");
+        attributes.put("value", 1);
+
+        sink.publish(Collections.singletonList(new Event("cf_vm_metrics", attributes)));
+
+        assertThat(receive(), is(Arrays.asList("cf.cf_vm_metrics.job.Router.value:1|g")));
+    }
+
+    @Test
+    public void linesArePackedIntoDatagramsThatFitTheMtu() throws Exception {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = 0; i < 100; i++) {
+            events.add(new Event("cf_vm_metrics", Collections.<String, Object> singletonMap("value", i)));
+        }
+
+        sink.publish(events);
+
+        int lines = 0;
+        int packets = 0;
+        while (lines < 100) {
+            List<String> received = receive();
+            lines += received.size();
+            packets++;
+        }
+        assertThat(lines, is(100));
+        assertThat(packets > 1, is(true));
+    }
+
+    private List<String> receive() throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[65536], 65536);
+        server.receive(packet);
+        assertThat(packet.getLength(), is(lessThanOrEqualTo(StatsdSink.MAX_PACKET_BYTES)));
+        return Arrays.asList(new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8).split("\n"));
+    }
+}
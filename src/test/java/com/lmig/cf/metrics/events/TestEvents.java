@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.events;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Events numbered by an {@code i} attribute, and waiting on the threads that
+ * deliver them.
+ */
+final class TestEvents {
+
+    interface Condition {
+        boolean met();
+    }
+
+    private TestEvents() {
+    }
+
+    static List<Event> events(int count) {
+        return events(0, count);
+    }
+
+    /**
+     * {@code count} events of type {@code test} numbered from {@code first},
+     * each stamped with its number.
+     */
+    static List<Event> events(int first, int count) {
+        List<Event> events = new ArrayList<Event>();
+        for (int i = first; i < first + count; i++) {
+            events.add(new Event("test", Collections.<String, Object> singletonMap("i", i), i));
+        }
+        return events;
+    }
+
+    /**
+     * The numbers of {@code events} as longs, whatever type they were read
+     * back as.
+     */
+    static List<Object> numbers(List<Event> events) {
+        return events.stream().map(event -> ((Number) event.getAttributes().get("i")).longValue())
+                .collect(Collectors.toList());
+    }
+
+    static List<Object> list(int first, int count) {
+        List<Object> numbers = new ArrayList<Object>();
+        for (long i = first; i < first + count; i++) {
+            numbers.add(i);
+        }
+        return numbers;
+    }
+
+    static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.met()) {
+            assertTrue("timed out waiting", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.instrumentation;
+
+import static org.hamcrest.Matchers.hasEntry;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class InstrumentationTest {
+
+    private final Instrumentation instrumentation = new Instrumentation();
+
+    @Test
+    public void cyclesAreTimedAndCounted() {
+        instrumentation.endCycle("opsmetrics.prod", instrumentation.startCycle("opsmetrics.prod"), 30000);
+
+        assertThat(instrumentation.timer("opsmetrics.prod.cycle").getCount(), is(1L));
+        assertThat(instrumentation.counter("opsmetrics.prod.cycles").sum(), is(1L));
+        assertThat(instrumentation.counter("opsmetrics.prod.cycles.overrun").sum(), is(0L));
+        assertThat(instrumentation.getRunning("opsmetrics.prod"), is(0));
+    }
+
+    @Test
+    public void cyclesLongerThanTheIntervalAreOverruns() {
+        long start = instrumentation.startCycle("opsmetrics.prod") - TimeUnit.MILLISECONDS.toNanos(50);
+        instrumentation.endCycle("opsmetrics.prod", start, 20);
+
+        assertThat(instrumentation.counter("opsmetrics.prod.cycles.overrun").sum(), is(1L));
+    }
+
+    @Test
+    public void cyclesStartedBeforeThePreviousEndedAreOverlaps() {
+        long first = instrumentation.startCycle("opsmetrics.prod");
+        long second = instrumentation.startCycle("opsmetrics.prod");
+
+        assertThat(instrumentation.getRunning("opsmetrics.prod"), is(2));
+        assertThat(instrumentation.counter("opsmetrics.prod.cycles.overlapped").sum(), is(1L));
+
+        instrumentation.endCycle("opsmetrics.prod", first, 0);
+        instrumentation.endCycle("opsmetrics.prod", second, 0);
+        assertThat(instrumentation.getRunning("opsmetrics.prod"), is(0));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void snapshotHoldsTimersAndCounters() {
+        instrumentation.timer("opsmetrics.prod.connect").record(TimeUnit.MILLISECONDS.toNanos(5));
+        instrumentation.counter("opsmetrics.prod.parse.failures").add(2);
+
+        Map<String, Object> snapshot = instrumentation.snapshot();
+
+        assertThat((Map<String, Object>) snapshot.get("timers"), hasKey("opsmetrics.prod.connect"));
+        assertThat((Map<String, Object>) snapshot.get("counters"),
+                hasEntry("opsmetrics.prod.parse.failures", (Object) 2L));
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.instrumentation;
+
+import static org.hamcrest.Matchers.closeTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        assertThat(histogram.getCount(), is(1000L));
+        assertThat(histogram.getPercentileMillis(50), closeTo(500, 500 * 0.016));
+        assertThat(histogram.getPercentileMillis(99), closeTo(990, 990 * 0.016));
+        assertThat(histogram.getPercentileMillis(100), is(1000.0));
+        assertThat(histogram.getMaxMillis(), is(1000.0));
+        assertThat(histogram.getMeanMillis(), is(500.5));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(3));
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(100));
+
+        assertThat(histogram.getPercentileMillis(50), is(0.003));
+        assertThat(histogram.getPercentileMillis(100), is(0.1));
+    }
+
+    @Test
+    public void everyValueFallsInsideItsBucket() {
+        for (long micros = 1; micros < 1L << 36; micros = micros * 3 + 1) {
+            int index = LatencyHistogram.index(micros);
+            assertThat(LatencyHistogram.highestInBucket(index) >= micros, is(true));
+            assertThat(index == 0 || LatencyHistogram.highestInBucket(index - 1) < micros, is(true));
+        }
+    }
+
+    @Test
+    public void anEmptyHistogramReportsZero() {
+        assertThat(histogram.getPercentileMillis(99), is(0.0));
+        assertThat(histogram.getMeanMillis(), is(0.0));
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.newrelic;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectInstance;
+
+import org.junit.Test;
+
+import com.lmig.cf.metrics.events.Event;
+import com.lmig.cf.metrics.events.EventPublisher;
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.opsmetrics.CardinalityGuard;
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
+import com.lmig.cf.metrics.opsmetrics.JmxMetric;
+import com.lmig.cf.metrics.opsmetrics.MBeanCollector;
+import com.lmig.cf.metrics.opsmetrics.MBeanFilter;
+import com.lmig.cf.metrics.opsmetrics.OpsMetrics;
+import com.lmig.cf.metrics.opsmetrics.Rollup;
+import com.lmig.cf.metrics.snapshot.Dictionary;
+import com.lmig.cf.metrics.snapshot.SnapshotStore;
+
+public class OpsMetricsForwarderTest {
+
+    private static final String DEA = "org.cloudfoundry:deployment=cf,job=DEA,index=0,ip=10.0.0.1";
+
+    private final Instrumentation instrumentation = new Instrumentation();
+    private final List<Event> published = Collections.synchronizedList(new ArrayList<Event>());
+    private final EventPublisher publisher = new EventPublisher(published::addAll, 1000, 1000, 60000, 1, "drop");
+    private final ChangeTracker changes = new ChangeTracker(true, 0, 10, new String[0], 1000);
+
+    @Test
+    public void seriesCollapsedTogetherAreReportedOnce() throws Exception {
+        OpsMetricsForwarder forwarder = forwarder(changes, metric("app.memory[app=a]", 1),
+                metric("app.memory[app=b]", 2), metric("app.memory[app=c]", 4));
+
+        forwarder.forwardOpsMetricsToInsights();
+        publisher.shutdown();
+
+        assertThat(published.size(), is(2));
+        Map<String, Object> admitted = published.get(0).getAttributes();
+        assertThat(admitted.get("app"), is("a"));
+        assertThat(admitted.get("value"), is(1f));
+        Map<String, Object> other = published.get(1).getAttributes();
+        assertThat(other.get("app"), is(CardinalityGuard.OTHER));
+        assertThat(other.get("value"), is(6f));
+        assertThat(changes.size(), is(2));
+    }
+
+    @Test
+    public void countersAreReportedAsCollectedWhenDeltasAreDisabled() throws Exception {
+        ChangeTracker disabled = new ChangeTracker(false, 0, 10, new String[] { "router.responses" }, 1000);
+        OpsMetricsForwarder forwarder = forwarder(disabled, metric("router.responses[status=2xx]", 42));
+
+        forwarder.forwardOpsMetricsToInsights();
+        publisher.shutdown();
+
+        Map<String, Object> attributes = published.get(0).getAttributes();
+        assertThat(attributes.get("value"), is(42f));
+        assertThat(attributes.containsKey("total"), is(false));
+    }
+
+    private OpsMetricsForwarder forwarder(ChangeTracker changes, JmxMetric... metrics) {
+        OpsMetrics opsMetrics = new OpsMetrics("localhost", "44444", "admin", "secret", false, false, 0,
+                new MBeanCollector(1, 1000, 2000), MBeanFilter.ALL) {
+            @Override
+            public List<JmxMetric> getMetrics() {
+                return Arrays.asList(metrics);
+            }
+        };
+        return new OpsMetricsForwarder(opsMetrics, publisher, changes, "prod", instrumentation,
+                new SnapshotStore("prod", new Dictionary()), Rollup.NONE,
+                new CardinalityGuard(1, new String[0], 3600000, instrumentation));
+    }
+
+    private static JmxMetric metric(String attribute, Number value) throws MalformedObjectNameException {
+        return new JmxMetric(new ObjectInstance(DEA, "Metrics"), attribute, value);
+    }
+}
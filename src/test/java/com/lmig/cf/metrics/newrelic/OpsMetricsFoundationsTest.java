@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.newrelic;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+import com.lmig.cf.metrics.opsmetrics.CardinalityGuard;
+import com.lmig.cf.metrics.opsmetrics.Foundation;
+import com.lmig.cf.metrics.opsmetrics.MBeanCollector;
+import com.lmig.cf.metrics.opsmetrics.MBeanFilter;
+import com.lmig.cf.metrics.scheduling.CollectionScheduler;
+import com.lmig.cf.metrics.snapshot.MetricSnapshots;
+
+public class OpsMetricsFoundationsTest {
+
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final Instrumentation instrumentation = new Instrumentation();
+    private OpsMetricsFoundations foundations;
+
+    @After
+    public void tearDown() {
+        released.countDown();
+        foundations.shutdown();
+    }
+
+    @Test
+    public void aHungFoundationDoesNotDelayTheOthers() throws Exception {
+        CountDownLatch collected = new CountDownLatch(3);
+        CountDownLatch hung = new CountDownLatch(1);
+        foundations = new OpsMetricsFoundations(environment("opsmetrics.foundations", "prod, dev",
+                "opsmetrics.prod.host", "10.0.0.1", "opsmetrics.prod.username", "admin",
+                "opsmetrics.prod.password", "secret", "opsmetrics.dev.host", "10.1.0.1",
+                "opsmetrics.dev.username", "admin", "opsmetrics.dev.password", "secret"),
+                null, instrumentation, new CollectionScheduler(instrumentation, 0, false, 0.5, 4),
+                new MetricSnapshots(), MBeanFilter.ALL, () -> CardinalityGuard.NONE,
+                () -> new MBeanCollector(1, 1000, 2000), () -> null, () -> null, false, true, 0, false, 10, 20) {
+            @Override
+            OpsMetricsForwarder forwarder(Foundation foundation, MBeanCollector collector) {
+                return new OpsMetricsForwarder(null, null, null, foundation.getName()) {
+                    @Override
+                    public void forwardOpsMetricsToInsights() {
+                        if (foundation.getName().equals("prod")) {
+                            hung.countDown();
+                            awaitRelease();
+                        } else {
+                            collected.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+        foundations.start();
+
+        assertThat(hung.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(collected.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(foundations.size(), is(2));
+        assertThat(instrumentation.getRunning("opsmetrics.prod"), is(1));
+    }
+
+    private void awaitRelease() {
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private StandardEnvironment environment(String... properties) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", map));
+        return environment;
+    }
+}
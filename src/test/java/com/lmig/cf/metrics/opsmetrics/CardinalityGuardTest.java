@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+public class CardinalityGuardTest {
+
+    private static final String ROUTER = "org.cloudfoundry:deployment=cf,job=Router,index=0,ip=10.0.0.1";
+
+    private final Instrumentation instrumentation = new Instrumentation();
+    private long now;
+    private final CardinalityGuard guard = new CardinalityGuard(3, new String[] { "status:2", "component:0" }, 1000,
+            instrumentation, () -> now);
+
+    @Test
+    public void valuesBeyondTheLimitAreCollapsed() {
+        assertThat(guard.admit("app", "a"), is("a"));
+        assertThat(guard.admit("app", "b"), is("b"));
+        assertThat(guard.admit("app", "c"), is("c"));
+        assertThat(guard.admit("app", "d"), is(CardinalityGuard.OTHER));
+        assertThat(guard.admit("app", "a"), is("a"));
+
+        assertThat(guard.size("app"), is(3));
+        assertThat(instrumentation.counter("cardinality.app.collapsed").sum(), is(1L));
+        assertThat(instrumentation.counter("cardinality.collapsed").sum(), is(1L));
+    }
+
+    @Test
+    public void instrumentationIsReportedUnderTheSource() {
+        CardinalityGuard prod = new CardinalityGuard(1, new String[0], 1000, instrumentation, () -> now)
+                .reportAs("opsmetrics.prod");
+        prod.admit("app", "a");
+        prod.admit("app", "b");
+        guard.admit("app", "a");
+
+        assertThat(instrumentation.counter("opsmetrics.prod.cardinality.app.collapsed").sum(), is(1L));
+        assertThat(instrumentation.counter("opsmetrics.prod.cardinality.collapsed").sum(), is(1L));
+        assertThat(instrumentation.counter("cardinality.collapsed").sum(), is(0L));
+        assertThat(guard.size("app"), is(1));
+    }
+
+    @Test
+    public void limitsCanBeSetPerKey() {
+        guard.admit("status", "2xx");
+        guard.admit("status", "3xx");
+        assertThat(guard.admit("status", "4xx"), is(CardinalityGuard.OTHER));
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(guard.admit("component", "c" + i), is("c" + i));
+        }
+    }
+
+    @Test
+    public void valuesNotSeenWithinTheExpiryMakeRoom() {
+        guard.admit("app", "a");
+        guard.admit("app", "b");
+        guard.admit("app", "c");
+        now = 600;
+        guard.admit("app", "a");
+        now = 1500;
+
+        assertThat(guard.admit("app", "d"), is("d"));
+        assertThat(guard.admit("app", "e"), is("e"));
+        assertThat(guard.admit("app", "a"), is("a"));
+        assertThat(guard.admit("app", "b"), is(CardinalityGuard.OTHER));
+    }
+
+    @Test
+    public void distinctValuesAreEstimated() {
+        for (int i = 0; i < 500; i++) {
+            guard.admit("app", "app-" + i);
+        }
+
+        long estimated = (Long) ((Map<?, ?>) instrumentation.snapshot().get("gauges")).get("cardinality.app.estimated");
+        assertThat(Math.abs(estimated - 500) < 25, is(true));
+    }
+
+    @Test
+    public void nestedAttributesOfMetricsAreLimited() {
+        guard.admit("status", "2xx");
+        guard.admit("status", "3xx");
+
+        OpsMetricsMetric metric = OpsMetricsMetric.from(ROUTER, 1, "router.responses[component=app,status=5xx]",
+                "prod");
+        assertThat(metric.limitCardinality(guard), is(true));
+
+        assertThat(metric.getAttributes().get("status"), is(CardinalityGuard.OTHER));
+        assertThat(metric.getFullAttribute(), is("router.responses[component=app,status=__other__]"));
+        assertThat(metric.getAttributes().get("component"), is("app"));
+        assertThat(OpsMetricsMetric.from(ROUTER, 1, "router.responses[component=app,status=5xx]", "prod")
+                .getAttributes().get("status"), is("5xx"));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ChangeTrackerTest {
+
+    private static final String NAME = "org.cloudfoundry:deployment=cf,job=router,index=0,ip=10.0.0.1";
+
+    private ChangeTracker tracker = new ChangeTracker(true, 0.1f, 3, new String[] { "router.responses" }, 100);
+
+    @Test
+    public void unchangedValuesAreSuppressed() {
+        assertThat(cycle(0, "router.requests_per_sec", 5), is(true));
+        assertThat(cycle(30000, "router.requests_per_sec", 5), is(false));
+        assertThat(cycle(60000, "router.requests_per_sec", 7), is(true));
+    }
+
+    @Test
+    public void changesWithinTheDeadbandAreSuppressed() {
+        cycle(0, "mem.percent", 50);
+        assertThat(cycle(30000, "mem.percent", 54), is(false));
+        assertThat(cycle(60000, "mem.percent", 56), is(true));
+    }
+
+    @Test
+    public void unchangedValuesAreEmittedOnTheHeartbeat() {
+        assertThat(cycle(0, "healthy", 1), is(true));
+        assertThat(cycle(30000, "healthy", 1), is(false));
+        assertThat(cycle(60000, "healthy", 1), is(false));
+        assertThat(cycle(90000, "healthy", 1), is(true));
+    }
+
+    @Test
+    public void countersAreEmittedAsRates() {
+        String attribute = "router.responses[status=2xx]";
+        assertThat(cycle(0, attribute, 1000), is(false));
+        assertThat(cycle(30000, attribute, 1600), is(true));
+        assertThat(tracker.isCounter(), is(true));
+        assertThat(tracker.value(), is(20.0));
+
+        assertThat(cycle(60000, attribute, 2200), is(false));
+        assertThat(cycle(90000, attribute, 300), is(true));
+        assertThat(tracker.value(), is(10.0));
+    }
+
+    @Test
+    public void seriesThatStopReportingExpire() {
+        for (int i = 0; i < 50; i++) {
+            tracker.startCycle(0);
+            tracker.track(NAME, "attribute" + i, i);
+            tracker.endCycle();
+        }
+        assertThat(tracker.size(), is(ChangeTracker.EXPIRE_CYCLES));
+    }
+
+    @Test
+    public void seriesNotSeenThisCycleMakeRoomWhenFull() {
+        tracker.startCycle(0);
+        for (int i = 0; i < 100; i++) {
+            tracker.track(NAME, "attribute" + i, i);
+        }
+        tracker.startCycle(30000);
+        tracker.track(NAME, "attribute0", 0);
+
+        assertThat(tracker.track(NAME, "router.responses[status=2xx]", 1000), is(false));
+        assertThat(tracker.size(), is(2));
+        tracker.startCycle(60000);
+        assertThat(tracker.track(NAME, "router.responses[status=2xx]", 1600), is(true));
+        assertThat(tracker.value(), is(20.0));
+    }
+
+    @Test
+    public void leastRecentlySeenSeriesAreEvictedWhenAllAreCurrent() {
+        tracker.startCycle(0);
+        for (int i = 0; i < 150; i++) {
+            tracker.track(NAME, "attribute" + i, i);
+        }
+        assertThat(tracker.size(), is(100));
+        assertThat(tracker.track(NAME, "attribute149", 149), is(false));
+    }
+
+    @Test
+    public void collidingSeriesAreKeptApart() {
+        assertThat("Aa".hashCode(), is("BB".hashCode()));
+        tracker.startCycle(0);
+        assertThat(tracker.track("Aa", "Aa", 1), is(true));
+        assertThat(tracker.track("BB", "BB", 1), is(true));
+        assertThat(tracker.size(), is(2));
+    }
+
+    @Test
+    public void countersKeepTheirPrecisionBeyondFloats() {
+        String attribute = "router.responses[status=2xx]";
+        cycle(0, attribute, 100000000);
+        assertThat(cycle(1000, attribute, 100000001), is(true));
+        assertThat(tracker.value(), is(1.0));
+    }
+
+    @Test
+    public void everythingIsEmittedWhenDisabled() {
+        tracker = new ChangeTracker(false, 0.1f, 3, new String[] { "router.responses" }, 100);
+        assertThat(cycle(0, "healthy", 1), is(true));
+        assertThat(cycle(30000, "healthy", 1), is(true));
+        assertThat(cycle(60000, "router.responses[status=2xx]", 42), is(true));
+        assertThat(tracker.isCounter(), is(false));
+        assertThat(tracker.value(), is(42.0));
+    }
+
+    private boolean cycle(long timestamp, String attribute, double value) {
+        tracker.startCycle(timestamp);
+        boolean emit = tracker.track(NAME, attribute, value);
+        tracker.endCycle();
+        return emit;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.security.auth.Subject;
+
+/**
+ * A {@link JMXConnector} handing out its own view of an in-process connection
+ * that stops working once closed and can be made to report connection
+ * failures and lost notifications the way the RMI connector does.
+ */
+public class FakeJmxConnector implements JMXConnector {
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final MBeanServerConnection connection;
+    private final List<Registration> listeners = new CopyOnWriteArrayList<Registration>();
+    private volatile boolean closed;
+
+    public FakeJmxConnector(MBeanServerConnection connection) {
+        this.connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { MBeanServerConnection.class }, (proxy, method, args) -> {
+                    if (closed) {
+                        throw new IOException("closed");
+                    }
+                    try {
+                        return method.invoke(connection, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    public void fail() {
+        notifyListeners(JMXConnectionNotification.FAILED);
+    }
+
+    public void loseNotifications() {
+        notifyListeners(JMXConnectionNotification.NOTIFS_LOST);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void connect() {
+    }
+
+    @Override
+    public void connect(Map<String, ?> env) {
+    }
+
+    @Override
+    public MBeanServerConnection getMBeanServerConnection() throws IOException {
+        if (closed) {
+            throw new IOException("closed");
+        }
+        return connection;
+    }
+
+    @Override
+    public MBeanServerConnection getMBeanServerConnection(Subject delegationSubject) throws IOException {
+        return getMBeanServerConnection();
+    }
+
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            notifyListeners(JMXConnectionNotification.CLOSED);
+        }
+    }
+
+    @Override
+    public void addConnectionNotificationListener(NotificationListener listener, NotificationFilter filter,
+            Object handback) {
+        listeners.add(new Registration(listener, handback));
+    }
+
+    @Override
+    public void removeConnectionNotificationListener(NotificationListener listener)
+            throws ListenerNotFoundException {
+        if (!listeners.removeIf(registration -> registration.listener == listener)) {
+            throw new ListenerNotFoundException();
+        }
+    }
+
+    @Override
+    public void removeConnectionNotificationListener(NotificationListener listener, NotificationFilter filter,
+            Object handback) throws ListenerNotFoundException {
+        removeConnectionNotificationListener(listener);
+    }
+
+    @Override
+    public String getConnectionId() {
+        return "fake-" + System.identityHashCode(this);
+    }
+
+    private void notifyListeners(String type) {
+        for (Registration registration : listeners) {
+            JMXConnectionNotification notification = new JMXConnectionNotification(type, this,
+                    getConnectionId(), SEQUENCE.incrementAndGet(), type, null);
+            registration.listener.handleNotification(notification, registration.handback);
+        }
+    }
+
+    private static class Registration {
+
+        private final NotificationListener listener;
+        private final Object handback;
+
+        Registration(NotificationListener listener, Object handback) {
+            this.listener = listener;
+            this.handback = handback;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.AttributeChangeNotification;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerFactory;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * An in-process stand-in for the Ops Metrics JMX server. MBeans are registered
+ * with the same {@code org.cloudfoundry} object names Ops Metrics uses and
+ * every call made through {@link #getConnection()} is counted, each one
+ * standing in for an RMI round-trip against the real server. Registering and
+ * removing jobs sends the usual {@code MBeanServerDelegate} notifications.
+ */
+public class FakeOpsMetricsServer {
+
+    private final MBeanServer server = MBeanServerFactory.newMBeanServer();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<ObjectName, Job> jobs = new ConcurrentHashMap<ObjectName, Job>();
+    private final MBeanServerConnection connection;
+    private volatile boolean notificationsRejected;
+
+    public FakeOpsMetricsServer() {
+        connection = (MBeanServerConnection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { MBeanServerConnection.class }, (proxy, method, args) -> {
+                    calls.computeIfAbsent(method.getName(), name -> new AtomicInteger()).incrementAndGet();
+                    if (notificationsRejected && method.getName().equals("addNotificationListener")) {
+                        throw new IOException("Notifications are not supported");
+                    }
+                    try {
+                        return method.invoke(server, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    public ObjectName addJob(String deployment, String job, int index, String ip,
+            Map<String, Object> attributes) throws Exception {
+        return register(deployment, job, index, ip, new Job(attributes));
+    }
+
+    /**
+     * Adds a job that sends an {@link AttributeChangeNotification} each time
+     * one of its attributes is {@link Job#set(String, Object) set}.
+     */
+    public ObjectName addBroadcastingJob(String deployment, String job, int index, String ip,
+            Map<String, Object> attributes) throws Exception {
+        return register(deployment, job, index, ip, new BroadcastingJob(attributes));
+    }
+
+    public Job getJob(ObjectName name) {
+        return jobs.get(name);
+    }
+
+    public void removeJob(ObjectName name) throws Exception {
+        server.unregisterMBean(name);
+        jobs.remove(name);
+    }
+
+    /**
+     * Makes the server refuse notification listeners, as a server without
+     * notification support would.
+     */
+    public void rejectNotifications() {
+        notificationsRejected = true;
+    }
+
+    private ObjectName register(String deployment, String job, int index, String ip, Job mbean)
+            throws Exception {
+        ObjectName name = new ObjectName(String.format(
+                "org.cloudfoundry:deployment=%s,job=%s,index=%d,ip=%s", deployment, job, index, ip));
+        server.registerMBean(mbean, name);
+        jobs.put(name, mbean);
+        return name;
+    }
+
+    public MBeanServer getServer() {
+        return server;
+    }
+
+    public MBeanServerConnection getConnection() {
+        return connection;
+    }
+
+    public int count(String methodName) {
+        AtomicInteger count = calls.get(methodName);
+        return count == null ? 0 : count.get();
+    }
+
+    public int roundTrips() {
+        return calls.values().stream().mapToInt(AtomicInteger::get).sum();
+    }
+
+    public void resetCounts() {
+        calls.clear();
+    }
+
+    public static Map<String, Object> attributes(Object... namesAndValues) {
+        Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes;
+    }
+
+    /**
+     * A read-only MBean backed by a map of attribute values.
+     */
+    public static class Job implements DynamicMBean {
+
+        private final Map<String, Object> attributes;
+
+        public Job(Map<String, Object> attributes) {
+            this.attributes = new ConcurrentHashMap<String, Object>(attributes);
+        }
+
+        public void set(String name, Object value) {
+            Object old = attributes.put(name, value);
+            changed(name, old, value);
+        }
+
+        protected void changed(String name, Object oldValue, Object newValue) {
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            if (!attributes.containsKey(attribute)) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return attributes.get(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (attributes.containsKey(name)) {
+                    list.add(new Attribute(name, attributes.get(name)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] info = attributes.entrySet().stream()
+                .map(e -> new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(),
+                        true, false, false))
+                .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(Job.class.getName(), "Ops Metrics job", info, null, null, null);
+        }
+    }
+
+    /**
+     * A {@link Job} that announces attribute changes.
+     */
+    public static class BroadcastingJob extends Job implements NotificationEmitter {
+
+        private final NotificationBroadcasterSupport broadcaster = new NotificationBroadcasterSupport();
+        private final AtomicLong sequence = new AtomicLong();
+
+        public BroadcastingJob(Map<String, Object> attributes) {
+            super(attributes);
+        }
+
+        @Override
+        protected void changed(String name, Object oldValue, Object newValue) {
+            broadcaster.sendNotification(new AttributeChangeNotification(this, sequence.incrementAndGet(),
+                    System.currentTimeMillis(), name + " changed", name, newValue.getClass().getName(), oldValue,
+                    newValue));
+        }
+
+        @Override
+        public void addNotificationListener(NotificationListener listener, NotificationFilter filter,
+                Object handback) {
+            broadcaster.addNotificationListener(listener, filter, handback);
+        }
+
+        @Override
+        public void removeNotificationListener(NotificationListener listener) throws ListenerNotFoundException {
+            broadcaster.removeNotificationListener(listener);
+        }
+
+        @Override
+        public void removeNotificationListener(NotificationListener listener, NotificationFilter filter,
+                Object handback) throws ListenerNotFoundException {
+            broadcaster.removeNotificationListener(listener, filter, handback);
+        }
+
+        @Override
+        public MBeanNotificationInfo[] getNotificationInfo() {
+            return new MBeanNotificationInfo[] { new MBeanNotificationInfo(
+                    new String[] { AttributeChangeNotification.ATTRIBUTE_CHANGE },
+                    AttributeChangeNotification.class.getName(), "Attribute changes") };
+        }
+    }
+}
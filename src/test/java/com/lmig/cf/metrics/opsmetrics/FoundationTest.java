@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+public class FoundationTest {
+
+    @Test
+    public void aSingleFoundationIsNamedAfterTheCfInstance() {
+        List<Foundation> foundations = Foundation.fromEnvironment(environment("opsmetrics.host", "10.0.0.1",
+                "opsmetrics.username", "admin", "opsmetrics.password", "secret", "cf.instance.Name", "prod"));
+
+        assertThat(foundations.size(), is(1));
+        assertThat(foundations.get(0).getName(), is("prod"));
+        assertThat(foundations.get(0).getHost(), is("10.0.0.1"));
+        assertThat(foundations.get(0).getPort(), is("44444"));
+    }
+
+    @Test
+    public void listedFoundationsAreConfiguredByName() {
+        List<Foundation> foundations = Foundation.fromEnvironment(environment("opsmetrics.foundations", "east,west",
+                "opsmetrics.east.host", "10.0.0.1", "opsmetrics.east.username", "admin",
+                "opsmetrics.east.password", "secret", "opsmetrics.east.instance.name", "prod-east",
+                "opsmetrics.west.host", "10.1.0.1", "opsmetrics.west.port", "55555",
+                "opsmetrics.west.username", "ops", "opsmetrics.west.password", "secret"));
+
+        assertThat(foundations.size(), is(2));
+        assertThat(foundations.get(0).getName(), is("prod-east"));
+        assertThat(foundations.get(1).getName(), is("west"));
+        assertThat(foundations.get(1).getPort(), is("55555"));
+        assertThat(foundations.get(1).getUsername(), is("ops"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aFoundationWithoutAHostIsRejected() {
+        Foundation.fromEnvironment(environment("opsmetrics.foundations", "east"));
+    }
+
+    private StandardEnvironment environment(String... properties) {
+        Map<String, Object> map = new HashMap<String, Object>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("test", map));
+        return environment;
+    }
+}
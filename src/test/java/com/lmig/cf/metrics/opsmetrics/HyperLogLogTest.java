@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void smallCardinalitiesAreNearlyExact() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 50; i++) {
+            sketch.add("dea-" + i);
+            sketch.add("dea-" + i);
+        }
+
+        assertThat(Math.abs(sketch.estimate() - 50) <= 2, is(true));
+    }
+
+    @Test
+    public void largeCardinalitiesAreWithinAFewPercent() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 100000; i++) {
+            sketch.add("3f2504e0-4f89-11d3-9a0c-" + i);
+        }
+
+        assertThat(Math.abs(sketch.estimate() - 100000) < 10000, is(true));
+    }
+
+    @Test
+    public void emptySketchEstimatesZero() {
+        assertThat(new HyperLogLog().estimate(), is(0L));
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServerConnection;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class JmxConnectionManagerTest {
+
+    private FakeOpsMetricsServer server;
+    private List<FakeJmxConnector> connectors;
+    private AtomicBoolean reachable;
+    private AtomicLong clock;
+    private JmxConnectionManager manager;
+
+    @Before
+    public void setUp() {
+        server = new FakeOpsMetricsServer();
+        connectors = new ArrayList<FakeJmxConnector>();
+        reachable = new AtomicBoolean(true);
+        clock = new AtomicLong(0);
+        manager = new JmxConnectionManager("fake:44444", () -> {
+            if (!reachable.get()) {
+                throw new IOException("connection refused");
+            }
+            FakeJmxConnector connector = new FakeJmxConnector(server.getConnection());
+            synchronized (connectors) {
+                connectors.add(connector);
+            }
+            return connector;
+        }, 1000, 8000, clock::get);
+    }
+
+    @Test
+    public void connectionIsReusedAcrossCalls() throws Exception {
+        MBeanServerConnection first = manager.getConnection();
+        MBeanServerConnection second = manager.getConnection();
+
+        assertThat(second, sameInstance(first));
+        assertThat(connectors.size(), is(1));
+    }
+
+    @Test
+    public void failedNotificationTriggersReconnect() throws Exception {
+        manager.getConnection();
+        connectors.get(0).fail();
+
+        assertThat(manager.isConnected(), is(false));
+        assertThat(connectors.get(0).isClosed(), is(true));
+        manager.getConnection();
+        assertThat(connectors.size(), is(2));
+    }
+
+    @Test
+    public void staleInvalidationIsIgnored() throws Exception {
+        MBeanServerConnection first = manager.getConnection();
+        manager.invalidate(first);
+        MBeanServerConnection second = manager.getConnection();
+        manager.invalidate(first);
+
+        assertThat(manager.getConnection(), sameInstance(second));
+        assertThat(connectors.size(), is(2));
+    }
+
+    @Test
+    public void reconnectAttemptsBackOff() throws Exception {
+        reachable.set(false);
+        assertConnectFails();
+        assertConnectFails();
+
+        reachable.set(true);
+        clock.set(999);
+        assertConnectFails();
+        assertThat(connectors.size(), is(0));
+
+        clock.set(1000);
+        manager.getConnection();
+        assertThat(connectors.size(), is(1));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheMaximum() {
+        assertThat(manager.backoff(1), is(1000L));
+        assertThat(manager.backoff(2), is(2000L));
+        assertThat(manager.backoff(4), is(8000L));
+        assertThat(manager.backoff(40), is(8000L));
+    }
+
+    @Test
+    public void concurrentCallersShareOneConnection() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Callable<MBeanServerConnection>> callers = new ArrayList<Callable<MBeanServerConnection>>();
+            for (int i = 0; i < 32; i++) {
+                callers.add(manager::getConnection);
+            }
+            MBeanServerConnection expected = null;
+            for (Future<MBeanServerConnection> result : executor.invokeAll(callers)) {
+                if (expected == null) {
+                    expected = result.get();
+                }
+                assertThat(result.get(), sameInstance(expected));
+            }
+            assertThat(connectors.size(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void opsMetricsKeepsTheConnectionOpenBetweenScrapes() throws Exception {
+        server.addJob("untitled_dev", "Router", 0, "10.0.0.1", FakeOpsMetricsServer.attributes("router.requests", 1));
+        OpsMetrics opsMetrics = new OpsMetrics("fake", manager, new MBeanCollector(1, 5000, 10000),
+                new MBeanSchemaCache(60000), MBeanFilter.ALL, false, true);
+
+        opsMetrics.getMetrics();
+        opsMetrics.getMetrics();
+
+        assertThat(connectors.size(), is(1));
+        assertThat(connectors.get(0).isClosed(), is(not(true)));
+        opsMetrics.close();
+        assertThat(connectors.get(0).isClosed(), is(true));
+    }
+
+    private void assertConnectFails() {
+        try {
+            manager.getConnection();
+            fail("expected connection failure");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBeanCollectorTest {
+
+    private MBeanCollector collector;
+    private List<ObjectInstance> objects;
+
+    @Before
+    public void setUp() throws Exception {
+        collector = new MBeanCollector(4, 200, 2000);
+        objects = new ArrayList<ObjectInstance>();
+        for (int index = 0; index < 8; index++) {
+            objects.add(object("dea-" + index));
+        }
+        Collections.shuffle(objects);
+    }
+
+    @After
+    public void tearDown() {
+        collector.shutdown();
+    }
+
+    @Test
+    public void resultsAreOrderedByObjectName() throws Exception {
+        List<JmxMetric> metrics = collector.collect(objects, object -> {
+            Thread.sleep((long) (Math.random() * 20));
+            return metric(object);
+        });
+
+        assertThat(jobs(metrics), contains("dea-0", "dea-1", "dea-2", "dea-3", "dea-4", "dea-5", "dea-6",
+                "dea-7"));
+    }
+
+    @Test
+    public void mbeansAreReadConcurrently() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        CountDownLatch overlap = new CountDownLatch(2);
+
+        collector.collect(objects, object -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            overlap.countDown();
+            overlap.await(1, TimeUnit.SECONDS);
+            running.decrementAndGet();
+            return metric(object);
+        });
+
+        assertThat(maxRunning.get(), is(greaterThan(1)));
+    }
+
+    @Test
+    public void hungMBeanDoesNotStallTheCycle() throws Exception {
+        CountDownLatch never = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+
+        List<JmxMetric> metrics = collector.collect(objects, object -> {
+            if (object.getObjectName().getKeyProperty("job").equals("dea-3")) {
+                never.await();
+            }
+            return metric(object);
+        });
+
+        assertThat(metrics.size(), is(7));
+        assertThat(System.currentTimeMillis() - start, is(lessThan(1500L)));
+    }
+
+    @Test
+    public void readsThatFinishedAreKeptWhenTheCycleTimesOut() throws Exception {
+        collector.shutdown();
+        collector = new MBeanCollector(4, 5000, 300);
+        CountDownLatch never = new CountDownLatch(1);
+
+        List<JmxMetric> metrics = collector.collect(objects, object -> {
+            if (object.getObjectName().getKeyProperty("job").equals("dea-1")) {
+                never.await();
+            }
+            return metric(object);
+        });
+
+        assertThat(jobs(metrics), contains("dea-0", "dea-2", "dea-3", "dea-4", "dea-5", "dea-6", "dea-7"));
+    }
+
+    @Test
+    public void failedMBeanIsSkipped() throws Exception {
+        List<JmxMetric> metrics = collector.collect(objects, object -> {
+            if (object.getObjectName().getKeyProperty("job").equals("dea-5")) {
+                throw new IllegalStateException("bad bean");
+            }
+            return metric(object);
+        });
+
+        assertThat(metrics.size(), is(7));
+    }
+
+    @Test
+    public void brokenConnectionFailsTheCycle() throws Exception {
+        try {
+            collector.collect(objects, object -> {
+                throw new IOException("connection reset");
+            });
+            fail("expected IOException");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), is("connection reset"));
+        }
+    }
+
+    private static ObjectInstance object(String job) throws Exception {
+        return new ObjectInstance(new ObjectName(
+                "org.cloudfoundry:deployment=cf,job=" + job + ",index=0,ip=10.0.0.1"), "Job");
+    }
+
+    private static List<JmxMetric> metric(ObjectInstance object) {
+        return Collections.singletonList(new JmxMetric(object, "system.cpu.user", 1.0));
+    }
+
+    private static List<String> jobs(List<JmxMetric> metrics) throws Exception {
+        List<String> jobs = new ArrayList<String>();
+        for (JmxMetric metric : metrics) {
+            jobs.add(new ObjectName(metric.getName()).getKeyProperty("job"));
+        }
+        return jobs;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class MBeanFilterTest {
+
+    private static final String[] NONE = new String[0];
+
+    @Test
+    public void noRulesQueryEveryOpsMetricsMBean() {
+        assertThat(MBeanFilter.ALL.getObjectName().toString(),
+                is("org.cloudfoundry:deployment=*,job=*,index=*,ip=*"));
+        assertThat(MBeanFilter.ALL.getQuery(), is(nullValue()));
+        assertThat(MBeanFilter.ALL.includesAttribute("router.requests"), is(true));
+    }
+
+    @Test
+    public void singleIncludesNarrowTheObjectName() {
+        MBeanFilter filter = new MBeanFilter(new String[] { "cf-*" }, NONE, new String[] { " router " }, NONE, NONE,
+                NONE);
+
+        assertThat(filter.getObjectName().toString(), is("org.cloudfoundry:deployment=cf-*,job=router,index=*,ip=*"));
+        assertThat(filter.getQuery(), is(nullValue()));
+    }
+
+    @Test
+    public void multipleIncludesAndExcludesBecomeAQuery() throws Exception {
+        MBeanFilter filter = new MBeanFilter(NONE, new String[] { "services" }, new String[] { "router", "dea*" },
+                new String[] { "dea_next" }, NONE, NONE);
+
+        assertThat(filter.getQuery().apply(job("cf", "router")), is(true));
+        assertThat(filter.getQuery().apply(job("cf", "dea_2")), is(true));
+        assertThat(filter.getQuery().apply(job("cf", "dea_next")), is(false));
+        assertThat(filter.getQuery().apply(job("cf", "nats")), is(false));
+        assertThat(filter.getQuery().apply(job("services", "router")), is(false));
+    }
+
+    @Test
+    public void attributeRulesMatchNamesNestedAttributesAndPrefixes() {
+        MBeanFilter filter = new MBeanFilter(NONE, NONE, NONE, NONE, new String[] { "router.responses", "mem*" },
+                new String[] { "memory.free" });
+
+        assertThat(filter.includesAttribute("router.responses"), is(true));
+        assertThat(filter.includesAttribute("router.responses[status=2xx]"), is(true));
+        assertThat(filter.includesAttribute("router.responses_per_sec"), is(false));
+        assertThat(filter.includesAttribute("mem.percent"), is(true));
+        assertThat(filter.includesAttribute("memory.free"), is(false));
+    }
+
+    private ObjectName job(String deployment, String job) throws Exception {
+        return new ObjectName("org.cloudfoundry:deployment=" + deployment + ",job=" + job + ",index=0,ip=10.0.0.1");
+    }
+}
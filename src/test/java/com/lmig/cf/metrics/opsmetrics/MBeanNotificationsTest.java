@@ -0,0 +1,137 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static com.lmig.cf.metrics.opsmetrics.FakeOpsMetricsServer.attributes;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBeanNotificationsTest {
+
+    private FakeOpsMetricsServer server;
+    private FakeJmxConnector connector;
+    private MBeanCollector collector;
+    private OpsMetrics opsMetrics;
+
+    @Before
+    public void setUp() {
+        server = new FakeOpsMetricsServer();
+        collector = new MBeanCollector(1, 5000, 10000);
+        JmxConnectionManager manager = new JmxConnectionManager("fake:44444", () -> {
+            connector = new FakeJmxConnector(server.getConnection());
+            return connector;
+        });
+        opsMetrics = new OpsMetrics("fake", manager, collector, new MBeanSchemaCache(60000), MBeanFilter.ALL, false,
+                true);
+        opsMetrics.listenForNotifications(10);
+    }
+
+    @After
+    public void tearDown() {
+        opsMetrics.close();
+        collector.shutdown();
+    }
+
+    @Test
+    public void registeredMBeansAreCollectedWithoutQuerying() throws Exception {
+        server.addJob("cf", "router", 0, "10.0.0.1", attributes("router.requests", 1));
+        opsMetrics.getMetrics();
+        server.resetCounts();
+
+        server.addJob("cf", "router", 1, "10.0.0.2", attributes("router.requests", 2));
+
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(1, 2));
+        assertThat(server.count("queryMBeans"), is(0));
+    }
+
+    @Test
+    public void broadcastingMBeansAreOnlyReadAfterTheyChange() throws Exception {
+        ObjectName router = server.addBroadcastingJob("cf", "router", 0, "10.0.0.1",
+                attributes("router.requests", 1));
+        opsMetrics.getMetrics();
+        server.resetCounts();
+
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(1));
+        assertThat(server.count("getAttributes"), is(0));
+
+        server.getJob(router).set("router.requests", 5);
+
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(5));
+        assertThat(server.count("getAttributes"), is(1));
+    }
+
+    @Test
+    public void mbeansWithoutNotificationsAreReadEveryCycle() throws Exception {
+        ObjectName router = server.addJob("cf", "router", 0, "10.0.0.1", attributes("router.requests", 1));
+        opsMetrics.getMetrics();
+        server.resetCounts();
+
+        server.getJob(router).set("router.requests", 5);
+
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(5));
+        assertThat(server.count("getAttributes"), is(1));
+    }
+
+    @Test
+    public void unregisteredMBeansAreNoLongerReported() throws Exception {
+        server.addBroadcastingJob("cf", "router", 0, "10.0.0.1", attributes("router.requests", 1));
+        ObjectName removed = server.addBroadcastingJob("cf", "router", 1, "10.0.0.2",
+                attributes("router.requests", 2));
+        opsMetrics.getMetrics();
+
+        server.removeJob(removed);
+
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(1));
+    }
+
+    @Test
+    public void lostNotificationsRebuildTheView() throws Exception {
+        server.addBroadcastingJob("cf", "router", 0, "10.0.0.1", attributes("router.requests", 1));
+        opsMetrics.getMetrics();
+        server.resetCounts();
+
+        connector.loseNotifications();
+        opsMetrics.getMetrics();
+
+        assertThat(server.count("queryMBeans"), is(1));
+        assertThat(server.count("getAttributes"), is(1));
+    }
+
+    @Test
+    public void mbeansAreQueriedEveryCycleWhenNotificationsAreRejected() throws Exception {
+        server.rejectNotifications();
+        server.addJob("cf", "router", 0, "10.0.0.1", attributes("router.requests", 1));
+
+        opsMetrics.getMetrics();
+        assertThat(values(opsMetrics.getMetrics()), containsInAnyOrder(1));
+
+        assertThat(server.count("queryMBeans"), is(2));
+    }
+
+    private List<Number> values(List<JmxMetric> metrics) {
+        return metrics.stream().map(JmxMetric::getValue).collect(Collectors.toList());
+    }
+}
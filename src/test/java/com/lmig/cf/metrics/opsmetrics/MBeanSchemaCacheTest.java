@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static com.lmig.cf.metrics.opsmetrics.FakeOpsMetricsServer.attributes;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Attribute;
+import javax.management.MBeanAttributeInfo;
+import javax.management.ObjectName;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MBeanSchemaCacheTest {
+
+    private FakeOpsMetricsServer server;
+    private AtomicLong clock;
+    private MBeanSchemaCache cache;
+    private ObjectName name;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeOpsMetricsServer();
+        clock = new AtomicLong();
+        cache = new MBeanSchemaCache(1000, clock::get);
+        name = server.addJob("cf", "router", 0, "10.0.0.1", attributes(
+                "router.requests", 1L,
+                "router.responses[appId=0c9a6b43-2a55-4f1b-8c2e-7f2a2a1b3c4d]", 2L,
+                "healthy", "true"));
+        cache.put(name, server.getServer().getMBeanInfo(name).getAttributes(),
+                attribute -> attribute.contains("appId="));
+    }
+
+    @Test
+    public void schemaHoldsNumericAttributesThatAreNotBlacklisted() {
+        assertThat(cache.get(name).getCandidates(), contains("router.requests"));
+        assertThat(cache.getHits(), is(1L));
+    }
+
+    @Test
+    public void learningReplacesTheCachedSchemaWithoutChangingIt() {
+        MBeanAttributeInfo[] attributes = {
+                new MBeanAttributeInfo("load", Object.class.getName(), "", true, false, false),
+                new MBeanAttributeInfo("state", Object.class.getName(), "", true, false, false) };
+        MBeanSchemaCache.Schema schema = cache.put(name, attributes, attribute -> false);
+
+        MBeanSchemaCache.Schema learned = cache.learn(name, schema,
+                Arrays.asList(new Attribute("load", 0.5), new Attribute("state", "running")));
+
+        assertThat(schema.getCandidates(), contains("load", "state"));
+        assertThat(learned.getCandidates(), contains("load"));
+        assertThat(cache.get(name) == learned, is(true));
+        assertThat(cache.learn(name, learned, Arrays.asList(new Attribute("load", 0.7))) == learned, is(true));
+    }
+
+    @Test
+    public void entriesExpireAfterTheTtl() {
+        clock.set(999);
+        assertThat(cache.get(name), is(notNullValue()));
+
+        clock.set(1000);
+        assertThat(cache.get(name), is(nullValue()));
+        assertThat(cache.getMisses(), is(1L));
+    }
+
+    @Test
+    public void unregisteredMBeansAreEvicted() throws Exception {
+        cache.connected(server.getConnection());
+        cache.put(name, server.getServer().getMBeanInfo(name).getAttributes(), attribute -> false);
+
+        server.getServer().unregisterMBean(name);
+
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getEvictions(), is(1L));
+    }
+
+    @Test
+    public void reconnectingClearsTheCache() {
+        cache.connected(server.getConnection());
+
+        assertThat(cache.size(), is(0));
+    }
+}
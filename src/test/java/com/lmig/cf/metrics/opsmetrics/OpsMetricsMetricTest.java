@@ -16,8 +16,15 @@
 package com.lmig.cf.metrics.opsmetrics;
 
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.Test;
 
 import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
@@ -85,5 +92,88 @@ public class OpsMetricsMetricTest {
         assertThat(metric.getAttributes().get("job"), is("Router"));
         assertThat(metric.getAttributes().get("deployment"), is("untitled_dev"));
     }
-    
+
+    @Test
+    public void malformedNestedAttributesAreSkipped(){
+        String rawMetricName = "org.cloudfoundry:deployment=untitled_dev,job=Router,index=1,ip=10.187.115.254";
+        String rawMetricType = "router.responses[component=app,dea_index=,=5xx,status=2xx=,route=a=b]";
+
+        OpsMetricsMetric metric= OpsMetricsMetric.from(rawMetricName, 1, rawMetricType, "sandbox");
+
+        assertThat(metric.getAttributes().get("attribute"), is("router.responses"));
+        assertThat(metric.getAttributes().get("component"), is("app"));
+        assertThat(metric.getAttributes().get(""), is("5xx"));
+        assertThat(metric.getAttributes().get("status"), is("2xx"));
+        assertThat(metric.getAttributes().containsKey("dea_index"), is(false));
+        assertThat(metric.getAttributes().containsKey("route"), is(false));
+    }
+
+    @Test
+    public void separatorsInValuesAreReportedAsSlashes(){
+        String rawMetricName = "org.cloudfoundry:deployment=cf,job=router,index=0,ip=fe80::1";
+
+        OpsMetricsMetric metric= OpsMetricsMetric.from(rawMetricName, 1, "router.requests", "sandbox");
+
+        assertThat(metric.getAttributes().get("ip"), is("fe80//1"));
+        assertThat(metric.getAttributes().get("job"), is("router"));
+    }
+
+    @Test
+    public void unknownMetricNamesHaveNoDimensions(){
+        OpsMetricsMetric metric= OpsMetricsMetric.from("java.lang:type=Memory", 1, "HeapMemoryUsage", "sandbox");
+
+        assertThat(metric.getAttributes().get("platform_instance"), is("sandbox"));
+        assertThat(metric.getAttributes().get("deployment"), is(nullValue()));
+        assertThat(metric.getAttributes().get("attribute"), is(nullValue()));
+        assertThat(metric.getAttributes().get("value"), is(0.0f));
+    }
+
+    @Test
+    public void attributeEntriesCanBeKept(){
+        OpsMetricsMetric metric= OpsMetricsMetric.from("org.cloudfoundry:deployment=cf,job=router,index=0,ip=10.0.0.1",
+                3, "router.requests", "sandbox");
+
+        List<Map.Entry<String, Object>> entries = new ArrayList<Map.Entry<String, Object>>(
+                metric.getAttributes().entrySet());
+
+        assertThat(entries.get(0).getKey(), is("platform_instance"));
+        assertThat(entries.get(6).getKey(), is("value"));
+        assertThat(entries.get(6), is((Map.Entry<String, Object>) new SimpleImmutableEntry<String, Object>("value",
+                3.0f)));
+    }
+
+    @Test
+    public void aNestedValueAttributeWinsOverTheMetricValue(){
+        OpsMetricsMetric metric= OpsMetricsMetric.from("org.cloudfoundry:deployment=cf,job=router,index=0,ip=10.0.0.1",
+                3, "router.requests[value=high]", "sandbox");
+
+        assertThat(metric.getAttributes().get("value"), is("high"));
+    }
+
+    @Test
+    public void attributesTakeCounterTotalsAndRepeatedKeys(){
+        String rawMetricName = "org.cloudfoundry:deployment=cf,job=router,index=0,ip=10.0.0.1";
+
+        OpsMetricsMetric metric= OpsMetricsMetric.from(rawMetricName, 3, "router.requests[job=app,total=x]", "sandbox");
+        Map<String, Object> attributes = metric.getAttributes();
+        attributes.put("value", 2L);
+        attributes.put("delta", true);
+
+        assertThat(attributes.size(), is(9));
+        assertThat(attributes.get("job"), is("app"));
+        assertThat(attributes.get("total"), is("x"));
+        assertThat(attributes.get("value"), is(2L));
+        assertThat(attributes.get("delta"), is(true));
+        assertThat(new HashMap<String, Object>(attributes), is(attributes));
+        assertThat(attributes.equals(new HashMap<String, Object>(attributes)), is(true));
+        assertThat(attributes.hashCode(), is(new HashMap<String, Object>(attributes).hashCode()));
+        assertThat(metric.getAttributes().get("value"), is(3.0f));
+
+        Map<String, Object> counter = OpsMetricsMetric.from(rawMetricName, 3, "router.requests", "sandbox")
+                .getAttributes();
+        counter.put("total", 3.0f);
+
+        assertThat(counter.size(), is(8));
+        assertThat(counter.get("total"), is(3.0f));
+    }
 }
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static com.lmig.cf.metrics.opsmetrics.FakeOpsMetricsServer.attributes;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.sharding.Shard;
+
+public class OpsMetricsTest {
+
+    private static final String APP_METRIC = "router.responses[appId=0c9a6b43-2a55-4f1b-8c2e-7f2a2a1b3c4d]";
+
+    private FakeOpsMetricsServer server;
+    private MBeanCollector collector;
+    private ObjectName query;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeOpsMetricsServer();
+        collector = new MBeanCollector(4, 5000, 10000);
+        query = new ObjectName("org.cloudfoundry:deployment=*,job=*,index=*,ip=*");
+        for (int index = 0; index < 3; index++) {
+            server.addJob("untitled_dev", "Router", index, "10.0.0." + index, attributes(
+                    "router.requests", 10 + index,
+                    "router.responses[component=app,dea_index=4,status=2xx]", 5.0,
+                    APP_METRIC, 1L,
+                    "healthy", "true"));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        collector.shutdown();
+    }
+
+    @Test
+    public void bulkFetchReadsEachMBeanInOneRoundTrip() throws Exception {
+        List<JmxMetric> metrics = opsMetrics(true).searchForMetrics(server.getConnection(), query);
+
+        assertThat(metrics.size(), is(6));
+        assertThat(server.count("getAttributes"), is(3));
+        assertThat(server.count("getAttribute"), is(0));
+        assertThat(server.roundTrips(), is(1 + 3 + 3));
+    }
+
+    @Test
+    public void perAttributeFetchReadsEachNumericAttributeTwice() throws Exception {
+        List<JmxMetric> metrics = opsMetrics(false).searchForMetrics(server.getConnection(), query);
+
+        assertThat(metrics.size(), is(6));
+        assertThat(server.count("getAttribute"), is(3 * (2 + 2)));
+    }
+
+    @Test
+    public void steadyStateScrapesSkipMBeanInfo() throws Exception {
+        OpsMetrics opsMetrics = opsMetrics(true);
+        opsMetrics.searchForMetrics(server.getConnection(), query);
+        server.resetCounts();
+
+        List<JmxMetric> metrics = opsMetrics.searchForMetrics(server.getConnection(), query);
+
+        assertThat(metrics.size(), is(6));
+        assertThat(server.count("getMBeanInfo"), is(0));
+        assertThat(server.roundTrips(), is(1 + 3));
+        assertThat(opsMetrics.getSchemaCache().getHits(), is(3L));
+        assertThat(opsMetrics.getSchemaCache().getMisses(), is(3L));
+    }
+
+    @Test
+    public void attributesOfUndeclaredTypeAreDroppedOnceSeenNotToBeNumbers() throws Exception {
+        ObjectName name = server.addJob("cf", "nats", 0, "10.0.0.9", attributes("uptime", 1));
+        server.getServer().unregisterMBean(name);
+        server.getServer().registerMBean(new FakeOpsMetricsServer.Job(attributes("uptime", 1, "version", "212")) {
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                return new MBeanInfo(getClass().getName(), "untyped", new MBeanAttributeInfo[] {
+                        new MBeanAttributeInfo("uptime", Object.class.getName(), "", true, false, false),
+                        new MBeanAttributeInfo("version", Object.class.getName(), "", true, false, false) },
+                        null, null, null);
+            }
+        }, name);
+        OpsMetrics opsMetrics = opsMetrics(true);
+
+        opsMetrics.searchForMetrics(server.getConnection(), name);
+
+        assertThat(opsMetrics.getSchemaCache().get(name).getCandidates(), contains("uptime"));
+    }
+
+    @Test
+    public void bulkFetchReturnsTheSameMetricsAsPerAttributeFetch() throws Exception {
+        List<String> bulk = describe(opsMetrics(true).searchForMetrics(server.getConnection(), query));
+        List<String> perAttribute = describe(opsMetrics(false).searchForMetrics(server.getConnection(), query));
+
+        assertThat(bulk, containsInAnyOrder(perAttribute.toArray()));
+    }
+
+    @Test
+    public void appSpecificMetricsAreReadWhenIncluded() throws Exception {
+        OpsMetrics opsMetrics = new OpsMetrics("localhost", "44444", "admin", "admin", true, true, 600000, collector,
+                MBeanFilter.ALL);
+
+        List<JmxMetric> metrics = opsMetrics.searchForMetrics(server.getConnection(), query);
+
+        assertThat(metrics.size(), is(9));
+        assertThat(server.count("getAttributes"), is(3));
+    }
+
+    @Test
+    public void metricsAreOrderedByObjectName() throws Exception {
+        List<String> names = opsMetrics(true).searchForMetrics(server.getConnection(), query)
+            .stream()
+            .map(JmxMetric::getName)
+            .distinct()
+            .collect(Collectors.toList());
+
+        assertThat(names, contains(
+                "org.cloudfoundry:deployment=untitled_dev,job=Router,index=0,ip=10.0.0.0",
+                "org.cloudfoundry:deployment=untitled_dev,job=Router,index=1,ip=10.0.0.1",
+                "org.cloudfoundry:deployment=untitled_dev,job=Router,index=2,ip=10.0.0.2"));
+    }
+
+    @Test
+    public void excludedJobsAreNeverRead() throws Exception {
+        server.addJob("untitled_dev", "nats", 0, "10.0.0.9", attributes("nats.connections", 3));
+        server.addJob("services", "mysql", 0, "10.0.1.1", attributes("mysql.connections", 5));
+        MBeanFilter filter = filter(new String[] { "services" }, new String[0], new String[] { "nats" }, new String[0]);
+
+        List<JmxMetric> metrics = opsMetrics(true, filter).searchForMetrics(server.getConnection(),
+                filter.getObjectName(), filter.getQuery());
+
+        assertThat(metrics.size(), is(6));
+        assertThat(server.count("getMBeanInfo"), is(3));
+        assertThat(server.count("getAttributes"), is(3));
+    }
+
+    @Test
+    public void onlyIncludedJobsAreRead() throws Exception {
+        server.addJob("untitled_dev", "nats", 0, "10.0.0.9", attributes("nats.connections", 3));
+        server.addJob("untitled_dev", "etcd", 0, "10.0.0.10", attributes("etcd.connections", 3));
+        MBeanFilter filter = filter(new String[0], new String[] { "Rout*", "nats" }, new String[0], new String[0]);
+
+        List<JmxMetric> metrics = opsMetrics(true, filter).searchForMetrics(server.getConnection(),
+                filter.getObjectName(), filter.getQuery());
+
+        assertThat(metrics.size(), is(7));
+        assertThat(server.count("getAttributes"), is(4));
+    }
+
+    @Test
+    public void excludedAttributesAreNeverRead() throws Exception {
+        MBeanFilter filter = filter(new String[0], new String[0], new String[0], new String[] { "router.responses" });
+
+        List<JmxMetric> metrics = opsMetrics(false, filter).searchForMetrics(server.getConnection(), query);
+
+        assertThat(metrics.size(), is(3));
+        assertThat(server.count("getAttribute"), is(3 * 2));
+    }
+
+    @Test
+    public void shardsSplitTheMBeansBetweenThem() throws Exception {
+        for (int index = 3; index < 20; index++) {
+            server.addJob("untitled_dev", "dea", index, "10.0.1." + index, attributes("dea.mem", index));
+        }
+        List<String> collected = new ArrayList<String>();
+        for (int index = 0; index < 3; index++) {
+            MBeanFilter filter = new MBeanFilter(new String[0], new String[0], new String[0], new String[0],
+                    new String[0], new String[0], new Shard(index, 3));
+            List<String> shard = opsMetrics(true, filter).searchForMetrics(server.getConnection(), query)
+                .stream()
+                .map(JmxMetric::getName)
+                .distinct()
+                .collect(Collectors.toList());
+            assertThat(shard.size(), is(lessThan(20)));
+            collected.addAll(shard);
+        }
+
+        assertThat(collected.size(), is(20));
+        assertThat(new HashSet<String>(collected).size(), is(20));
+        assertThat(server.count("getAttributes"), is(20));
+    }
+
+    private OpsMetrics opsMetrics(boolean bulkAttributeFetch) {
+        return opsMetrics(bulkAttributeFetch, MBeanFilter.ALL);
+    }
+
+    private OpsMetrics opsMetrics(boolean bulkAttributeFetch, MBeanFilter filter) {
+        return new OpsMetrics("localhost", "44444", "admin", "admin", false, bulkAttributeFetch, 600000, collector,
+                filter);
+    }
+
+    private MBeanFilter filter(String[] excludedDeployments, String[] includedJobs, String[] excludedJobs,
+            String[] excludedAttributes) {
+        return new MBeanFilter(new String[0], excludedDeployments, includedJobs, excludedJobs, new String[0],
+                excludedAttributes);
+    }
+
+    private List<String> describe(List<JmxMetric> metrics) {
+        return metrics.stream()
+            .map(metric -> metric.getName() + " " + metric.getValueType() + "=" + metric.getValue())
+            .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.opsmetrics;
+
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.events.Event;
+import com.lmig.cf.metrics.events.EventPublisher;
+
+public class RollupTest {
+
+    private static final String ROUTER_0 = "org.cloudfoundry:deployment=cf,job=Router,index=0,ip=10.0.0.1";
+    private static final String ROUTER_1 = "org.cloudfoundry:deployment=cf,job=Router,index=1,ip=10.0.0.2";
+    private static final String DEA = "org.cloudfoundry:deployment=cf,job=DEA,index=0,ip=10.0.0.3";
+
+    private static final String[] COUNTERS = { "router.responses" };
+
+    private final List<Event> published = Collections.synchronizedList(new ArrayList<Event>());
+    private final EventPublisher publisher = new EventPublisher(published::addAll, 1000, 1000, 60000, 1, "drop");
+
+    @After
+    public void tearDown() throws InterruptedException {
+        publisher.shutdown();
+    }
+
+    @Test
+    public void onlyListedAttributesAreRolledUp() {
+        Rollup rollup = new Rollup(new String[] { "router.responses", "system.*" }, new String[] { "job" }, 1,
+                false, COUNTERS);
+
+        assertThat(add(rollup, ROUTER_0, "router.responses[status=2xx]", 1), is(false));
+        assertThat(add(rollup, ROUTER_0, "system.cpu.user", 1), is(false));
+        assertThat(add(rollup, ROUTER_0, "router.requests", 1), is(true));
+        assertThat(add(rollup, "unknown", "router.responses", 1), is(true));
+    }
+
+    @Test
+    public void rawMetricsCanBeKept() {
+        Rollup rollup = new Rollup(new String[] { "system.cpu.user" }, new String[] { "job" }, 1, true, COUNTERS);
+
+        assertThat(add(rollup, DEA, "system.cpu.user", 1), is(true));
+        assertThat(rollup.size(), is(1));
+    }
+
+    @Test
+    public void valuesAreReducedPerGroup() throws InterruptedException {
+        Rollup rollup = new Rollup(new String[] { "router.responses" }, new String[] { "job", "status" }, 1,
+                false, new String[0]);
+        add(rollup, ROUTER_0, "router.responses[component=app,status=2xx]", 10);
+        add(rollup, ROUTER_0, "router.responses[component=cc,status=2xx]", 20);
+        add(rollup, ROUTER_1, "router.responses[component=app,status=2xx]", 60);
+        add(rollup, ROUTER_1, "router.responses[component=app,status=5xx]", 5);
+
+        assertThat(rollup.endCycle("prod", publisher), is(2));
+        publisher.shutdown();
+
+        assertThat(published, hasSize(2));
+        Map<String, Object> ok = group("2xx");
+        assertThat(published.get(0).getType(), is(Rollup.EVENT_TYPE));
+        assertThat(ok.get("platform_instance"), is("prod"));
+        assertThat(ok.get("attribute"), is("router.responses"));
+        assertThat(ok.get("job"), is("Router"));
+        assertThat(ok.get("sum"), is(90.0));
+        assertThat(ok.get("min"), is(10.0));
+        assertThat(ok.get("max"), is(60.0));
+        assertThat(ok.get("avg"), is(30.0));
+        assertThat(ok.get("count"), is(3L));
+        assertThat(ok.get("component"), is(nullValue()));
+        assertThat(group("5xx").get("sum"), is(5.0));
+    }
+
+    @Test
+    public void windowsSpanCycles() throws InterruptedException {
+        Rollup rollup = new Rollup(new String[] { "system.cpu.user" }, new String[] { "job" }, 2, false, COUNTERS);
+        add(rollup, DEA, "system.cpu.user", 10);
+        assertThat(rollup.endCycle("prod", publisher), is(0));
+        add(rollup, DEA, "system.cpu.user", 30);
+        assertThat(rollup.endCycle("prod", publisher), is(1));
+        assertThat(rollup.size(), is(0));
+        publisher.shutdown();
+
+        assertThat(published.get(0).getAttributes().get("sum"), is(30.0));
+        assertThat(published.get(0).getAttributes().get("avg"), is(20.0));
+        assertThat(published.get(0).getAttributes().get("count"), is(2L));
+        assertThat(published.get(0).getAttributes().get("cycles"), is(2));
+    }
+
+    @Test
+    public void countersRollUpTheirIncrease() throws InterruptedException {
+        Rollup rollup = new Rollup(new String[] { "router.responses" }, new String[] { "job" }, 2, false,
+                COUNTERS);
+        add(rollup, ROUTER_0, "router.responses[status=2xx]", 100);
+        add(rollup, ROUTER_1, "router.responses[status=2xx]", 200);
+        assertThat(rollup.endCycle("prod", publisher), is(0));
+        assertThat(rollup.size(), is(0));
+        add(rollup, ROUTER_0, "router.responses[status=2xx]", 130);
+        add(rollup, ROUTER_1, "router.responses[status=2xx]", 260);
+        assertThat(rollup.endCycle("prod", publisher), is(1));
+        add(rollup, ROUTER_0, "router.responses[status=2xx]", 140);
+        add(rollup, ROUTER_1, "router.responses[status=2xx]", 5);
+        rollup.endCycle("prod", publisher);
+        add(rollup, ROUTER_0, "router.responses[status=2xx]", 150);
+        add(rollup, ROUTER_1, "router.responses[status=2xx]", 15);
+        assertThat(rollup.endCycle("prod", publisher), is(1));
+        publisher.shutdown();
+
+        Map<String, Object> first = published.get(0).getAttributes();
+        assertThat(first.get("sum"), is(90.0));
+        assertThat(first.get("min"), is(30.0));
+        assertThat(first.get("max"), is(60.0));
+        Map<String, Object> second = published.get(1).getAttributes();
+        assertThat(second.get("sum"), is(35.0));
+        assertThat(second.get("count"), is(4L));
+    }
+
+    @Test
+    public void missingDimensionsAreLeftOut() throws InterruptedException {
+        Rollup rollup = new Rollup(new String[] { "system.cpu.user" }, new String[] { "job", "status" }, 1, false,
+                COUNTERS);
+        add(rollup, DEA, "system.cpu.user", 10);
+        rollup.endCycle("prod", publisher);
+        publisher.shutdown();
+
+        assertThat(published.get(0).getAttributes().get("job"), is("DEA"));
+        assertThat(published.get(0).getAttributes().containsKey("status"), is(false));
+    }
+
+    @Test
+    public void disabledRollupPassesEverythingThrough() {
+        assertThat(add(Rollup.NONE, ROUTER_0, "router.responses[status=2xx]", 1), is(true));
+        assertThat(Rollup.NONE.endCycle("prod", publisher), is(0));
+    }
+
+    private Map<String, Object> group(String status) {
+        return published.stream().map(Event::getAttributes).filter(event -> status.equals(event.get("status")))
+                .findFirst().get();
+    }
+
+    private static boolean add(Rollup rollup, String name, String attribute, float value) {
+        return rollup.add(ChangeTracker.seriesId(name, attribute), OpsMetricsMetric.from(name, value, attribute,
+                "prod"), value);
+    }
+}
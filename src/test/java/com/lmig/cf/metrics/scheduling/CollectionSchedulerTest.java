@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.scheduling;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.instrumentation.Instrumentation;
+
+public class CollectionSchedulerTest {
+
+    private final Instrumentation instrumentation = new Instrumentation();
+    private final CollectionScheduler scheduler = new CollectionScheduler(instrumentation, 0.1, false, 0.5, 4);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void slowCyclesSkipTicksInsteadOfOverlapping() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch cycles = new CountDownLatch(4);
+        scheduler.schedule("slow", 10, () -> {
+            if (running.incrementAndGet() > 1) {
+                overlaps.incrementAndGet();
+            }
+            Thread.sleep(35);
+            running.decrementAndGet();
+            cycles.countDown();
+            return 1;
+        });
+
+        assertThat(cycles.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(overlaps.get(), is(0));
+        assertThat(instrumentation.counter("slow.cycles.skipped").sum(), greaterThan(0L));
+        assertThat(instrumentation.counter("slow.cycles.overlapped").sum(), is(0L));
+    }
+
+    @Test
+    public void aFailedCycleDoesNotEndTheSchedule() throws Exception {
+        CountDownLatch cycles = new CountDownLatch(3);
+        scheduler.schedule("failing", 10, () -> {
+            cycles.countDown();
+            throw new IllegalStateException("unreachable");
+        });
+
+        assertThat(cycles.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void aSlowSourceDoesNotDelayTheOthers() throws Exception {
+        CountDownLatch released = new CountDownLatch(1);
+        CountDownLatch cycles = new CountDownLatch(3);
+        scheduler.schedule("hung", 10, () -> {
+            released.await();
+            return 1;
+        });
+        scheduler.schedule("healthy", 10, () -> {
+            cycles.countDown();
+            return 1;
+        });
+
+        assertThat(cycles.await(5, TimeUnit.SECONDS), is(true));
+        released.countDown();
+    }
+
+    @Test
+    public void intervalIsStretchedToKeepCyclesUnderTheUtilization() {
+        assertThat(CollectionScheduler.adaptedInterval(30000, 1000, 1, 0.5, 4), is(30000L));
+        assertThat(CollectionScheduler.adaptedInterval(30000, 20000, 1, 0.5, 4), is(40000L));
+        assertThat(CollectionScheduler.adaptedInterval(30000, 90000, 1, 0.5, 4), is(120000L));
+    }
+
+    @Test
+    public void intervalIsStretchedWhenFewValuesChange() {
+        assertThat(CollectionScheduler.adaptedInterval(30000, 1000, 0.5, 0.5, 4), is(60000L));
+        assertThat(CollectionScheduler.adaptedInterval(30000, 1000, 0, 0.5, 4), is(120000L));
+    }
+}
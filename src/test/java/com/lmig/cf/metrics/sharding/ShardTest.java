@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.sharding;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class ShardTest {
+
+    private static final int KEYS = 10000;
+
+    @Test
+    public void everyKeyIsOwnedByExactlyOneInstance() {
+        Shard[] shards = shards(5);
+        for (int key = 0; key < KEYS; key++) {
+            int owners = 0;
+            for (Shard shard : shards) {
+                owners += shard.owns(key(key)) ? 1 : 0;
+            }
+            assertThat(owners, is(1));
+        }
+    }
+
+    @Test
+    public void keysAreSpreadEvenly() {
+        Shard[] shards = shards(4);
+        int[] owned = new int[shards.length];
+        for (int key = 0; key < KEYS; key++) {
+            for (Shard shard : shards) {
+                owned[shard.getIndex()] += shard.owns(key(key)) ? 1 : 0;
+            }
+        }
+        for (int count : owned) {
+            assertThat(count, is(greaterThan(KEYS / 4 * 9 / 10)));
+            assertThat(count, is(lessThan(KEYS / 4 * 11 / 10)));
+        }
+    }
+
+    @Test
+    public void scalingOutOnlyMovesKeysToTheNewInstance() {
+        Shard four = new Shard(0, 4);
+        Shard five = new Shard(0, 5);
+        int moved = 0;
+        for (int key = 0; key < KEYS; key++) {
+            int before = four.owner(key(key));
+            int after = five.owner(key(key));
+            if (before != after) {
+                assertThat(after, is(4));
+                moved++;
+            }
+        }
+        assertThat(moved, is(lessThan(KEYS / 5 * 11 / 10)));
+    }
+
+    @Test
+    public void aSingleInstanceOwnsEverything() {
+        assertThat(Shard.ALL.owns(key(42)), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void anIndexOutsideOfTheInstanceCountIsRejected() {
+        new Shard(3, 3);
+    }
+
+    private Shard[] shards(int instances) {
+        Shard[] shards = new Shard[instances];
+        for (int i = 0; i < instances; i++) {
+            shards[i] = new Shard(i, instances);
+        }
+        return shards;
+    }
+
+    private String key(int key) {
+        return "cf-" + (key % 7) + "/job-" + (key / 7 % 50) + "/" + key / 350;
+    }
+}
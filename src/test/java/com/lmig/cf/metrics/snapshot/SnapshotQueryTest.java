@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
+import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
+
+public class SnapshotQueryTest {
+
+    private static final String ROUTER = "org.cloudfoundry:deployment=cf,job=Router,index=0,ip=10.0.0.1";
+    private static final String ROUTER_1 = "org.cloudfoundry:deployment=cf,job=Router,index=1,ip=10.0.0.2";
+    private static final String DEA = "org.cloudfoundry:deployment=cf,job=DEA,index=0,ip=10.0.0.3";
+
+    private final SnapshotStore store = new SnapshotStore("prod", new Dictionary());
+
+    @Before
+    public void setUp() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        add(writer, ROUTER, "router.responses[component=app,status=2xx]", 10);
+        add(writer, ROUTER, "router.responses[component=app,status=5xx]", 1);
+        add(writer, ROUTER_1, "router.responses[component=app,status=2xx]", 30);
+        add(writer, ROUTER_1, "router.responses[component=app,status=5xx]", 3);
+        add(writer, DEA, "available_memory_ratio", 0.5);
+        writer.publish();
+    }
+
+    @Test
+    public void noFiltersSelectEverySeries() {
+        assertThat(select(Collections.emptyMap(), 100), hasSize(5));
+        assertThat(select(Collections.emptyMap(), 2), hasSize(2));
+    }
+
+    @Test
+    public void filtersAreCombined() {
+        Map<String, String> filters = new HashMap<String, String>();
+        filters.put("job", "Router");
+        filters.put("status", "5xx");
+
+        List<Map<String, Object>> series = select(filters, 100);
+
+        assertThat(values(series), contains(1.0, 3.0));
+        assertThat(series.get(0).get("index"), is("0"));
+        assertThat(series.get(0).get("component"), is("app"));
+    }
+
+    @Test
+    public void commaSeparatedValuesMatchAnyOfThem() {
+        assertThat(values(select(Collections.singletonMap("ip", "10.0.0.1,10.0.0.3"), 100)),
+                contains(10.0, 1.0, 0.5));
+    }
+
+    @Test
+    public void unknownValuesMatchNothing() {
+        assertThat(select(Collections.singletonMap("job", "Nope"), 100), is(empty()));
+        assertThat(select(Collections.singletonMap("tenant", "Router"), 100), is(empty()));
+    }
+
+    @Test
+    public void seriesAreAggregatedByDimension() {
+        SnapshotQuery query = new SnapshotQuery(Collections.singletonMap("attribute", "router.responses"));
+
+        List<Map<String, Object>> sums = store.read(snapshot -> query.aggregate(snapshot,
+                new String[] { "status" }, SnapshotQuery.Aggregation.SUM));
+        List<Map<String, Object>> maxima = store.read(snapshot -> query.aggregate(snapshot,
+                new String[] { "index", "status" }, SnapshotQuery.Aggregation.MAX));
+
+        assertThat(sums.stream().map(group -> group.get("status")).collect(Collectors.toList()),
+                contains("2xx", "5xx"));
+        assertThat(values(sums), contains(40.0, 4.0));
+        assertThat(sums.get(0).get("count"), is(2L));
+        assertThat(maxima, hasSize(4));
+        assertThat(values(maxima), contains(30.0, 10.0, 3.0, 1.0));
+    }
+
+    @Test
+    public void averagesAreTakenOverTheGroup() {
+        SnapshotQuery query = new SnapshotQuery(Collections.singletonMap("job", "Router"));
+
+        assertThat(values(store.read(snapshot -> query.aggregate(snapshot, new String[] { "job" },
+                SnapshotQuery.Aggregation.AVG))), contains(11.0));
+    }
+
+    private List<Map<String, Object>> select(Map<String, String> filters, int limit) {
+        SnapshotQuery query = new SnapshotQuery(filters);
+        return store.read(snapshot -> query.select(snapshot, limit));
+    }
+
+    private static List<Object> values(List<Map<String, Object>> series) {
+        return series.stream().map(values -> values.get("value")).collect(Collectors.toList());
+    }
+
+    private void add(SnapshotStore.Writer writer, String name, String attribute, double value) {
+        writer.add(ChangeTracker.seriesId(name, attribute), value,
+                OpsMetricsMetric.from(name, value, attribute, "prod"));
+    }
+}
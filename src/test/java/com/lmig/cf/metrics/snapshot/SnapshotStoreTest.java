@@ -0,0 +1,187 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.snapshot;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.lmig.cf.metrics.opsmetrics.ChangeTracker;
+import com.lmig.cf.metrics.opsmetrics.OpsMetricsMetric;
+
+public class SnapshotStoreTest {
+
+    private static final String ROUTER = "org.cloudfoundry:deployment=untitled_dev,job=Router,index=0,ip=10.0.0.1";
+    private static final String RESPONSES = "router.responses[component=app,status=2xx]";
+
+    private final Dictionary dictionary = new Dictionary();
+    private final SnapshotStore store = new SnapshotStore("prod", dictionary);
+
+    @Test
+    public void readersSeeTheLastPublishedSnapshot() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        add(writer, ROUTER, "router.requests", 10);
+
+        assertThat(store.read(MetricSnapshot::size), is(0));
+
+        writer.publish();
+
+        assertThat(store.read(MetricSnapshot::size), is(1));
+        assertThat(store.read(MetricSnapshot::getTimestamp), is(1000L));
+    }
+
+    @Test
+    public void dimensionsAreDictionaryEncoded() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        add(writer, ROUTER, "router.requests", 10);
+        add(writer, ROUTER, RESPONSES, 20);
+        writer.publish();
+
+        store.read(snapshot -> {
+            assertThat(snapshot.getDimension(MetricSnapshot.DEPLOYMENT, 0), is("untitled_dev"));
+            assertThat(snapshot.getDimension(MetricSnapshot.JOB, 1), is("Router"));
+            assertThat(snapshot.getDimension(MetricSnapshot.ATTRIBUTE, 1), is("router.responses"));
+            assertThat(snapshot.getDimension("status", 1), is("2xx"));
+            assertThat(snapshot.getDimension("status", 0), is(nullValue()));
+            assertThat(snapshot.getDimensionCode(MetricSnapshot.IP, 0),
+                    is(snapshot.getDimensionCode(MetricSnapshot.IP, 1)));
+            return null;
+        });
+        assertThat(dictionary.decode(dictionary.code("Router")), is("Router"));
+    }
+
+    @Test
+    public void rowsAreFoundBySeriesId() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        for (int i = 0; i < 1000; i++) {
+            add(writer, ROUTER.replace("index=0", "index=" + i), "router.requests", i);
+        }
+        writer.publish();
+
+        store.read(snapshot -> {
+            for (int i = 0; i < 1000; i++) {
+                int row = snapshot.indexOf(ChangeTracker.seriesId(ROUTER.replace("index=0", "index=" + i),
+                        "router.requests"));
+                assertThat(snapshot.getValue(row), is((double) i));
+            }
+            assertThat(snapshot.indexOf(ChangeTracker.seriesId(ROUTER, "router.missing")), is(-1));
+            return null;
+        });
+    }
+
+    @Test
+    public void arraysAreReusedEveryOtherCycle() {
+        long[] first = cycle(1);
+        cycle(2);
+
+        assertThat(cycle(3), sameInstance(first));
+    }
+
+    @Test
+    public void arraysStillBeingReadAreNotReused() throws Exception {
+        long[] first = cycle(1);
+        CountDownLatch reading = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Double> value = executor.submit(() -> store.read(snapshot -> {
+                reading.countDown();
+                await(released);
+                return snapshot.getValue(0);
+            }));
+            assertThat(reading.await(5, TimeUnit.SECONDS), is(true));
+
+            cycle(2);
+            long[] third = cycle(3);
+            released.countDown();
+
+            assertThat(third == first, is(false));
+            assertThat(value.get(5, TimeUnit.SECONDS), is(1.0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void nestedAttributesBecomeDimensions() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        add(writer, ROUTER, RESPONSES, 20);
+        writer.publish();
+
+        assertThat(store.read(MetricSnapshot::getDimensionNames),
+                contains("deployment", "job", "index", "ip", "attribute", "component", "status"));
+    }
+
+    @Test
+    public void dimensionsNoSeriesHasAreDropped() {
+        SnapshotStore.Writer writer = store.begin(1000);
+        add(writer, ROUTER, RESPONSES, 20);
+        writer.publish();
+        cycle(2);
+        cycle(3);
+
+        assertThat(store.read(MetricSnapshot::getDimensionNames),
+                contains("deployment", "job", "index", "ip", "attribute"));
+    }
+
+    @Test
+    public void valuesNoLongerUsedAreDroppedFromTheDictionary() {
+        for (int cycle = 0; cycle < 3; cycle++) {
+            SnapshotStore.Writer writer = store.begin(cycle);
+            for (int i = 0; i < 5000; i++) {
+                add(writer, ROUTER.replace("index=0", "index=" + (cycle * 5000 + i)), "router.requests", i);
+            }
+            writer.publish();
+        }
+
+        store.read(snapshot -> {
+            assertThat(snapshot.getDictionary().size(), is(5004));
+            assertThat(snapshot.getDimension(MetricSnapshot.INDEX, 1), is("10001"));
+            assertThat(snapshot.getDimension(MetricSnapshot.JOB, 1), is("Router"));
+            return null;
+        });
+    }
+
+    private long[] cycle(double value) {
+        SnapshotStore.Writer writer = store.begin((long) value);
+        add(writer, ROUTER, "router.requests", value);
+        writer.publish();
+        return store.read(snapshot -> snapshot.seriesIds);
+    }
+
+    private void add(SnapshotStore.Writer writer, String name, String attribute, double value) {
+        writer.add(ChangeTracker.seriesId(name, attribute), value,
+                OpsMetricsMetric.from(name, value, attribute, "prod"));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NotAuthenticated;
+
+public class DatastoreCollectorTest {
+
+    private FakePropertyCollector propertyCollector;
+    private VSphereSession session;
+    private int connects;
+    private DatastoreCollector collector;
+    private ManagedObjectReference ds2;
+
+    @Before
+    public void setUp() {
+        propertyCollector = new FakePropertyCollector();
+        propertyCollector.addDatastore("ds1", 100, 50, 10L);
+        ds2 = propertyCollector.addDatastore("ds2", 200, 150, null);
+        propertyCollector.addDatastore("ds3", 300, 250, 30L);
+        session = new VSphereSession("fake", () -> {
+            connects++;
+            return propertyCollector.serviceInstance();
+        });
+        collector = new DatastoreCollector(session, new String[] { "ds2", "ds1" });
+    }
+
+    @Test
+    public void summariesAreReadInOneRoundTripOnceResolved() throws Exception {
+        assertThat(names(collector.collect()), contains("ds2", "ds1"));
+        assertThat(propertyCollector.getRequests().size(), is(2));
+
+        List<DatastoreSummary> summaries = collector.collect();
+
+        assertThat(names(summaries), contains("ds2", "ds1"));
+        assertThat(summaries.get(0).getFreeSpace(), is(150L));
+        assertThat(propertyCollector.getRequests().size(), is(3));
+    }
+
+    @Test
+    public void missingDatastoresAreLookedUpAgain() throws Exception {
+        collector.collect();
+        propertyCollector.removeDatastore(ds2);
+
+        assertThat(names(collector.collect()), contains("ds1"));
+        assertThat(propertyCollector.getRequests().size(), is(3));
+
+        propertyCollector.addDatastore("ds2", 200, 100, null);
+
+        assertThat(names(collector.collect()), contains("ds2", "ds1"));
+        assertThat(propertyCollector.getRequests().size(), is(5));
+    }
+
+    @Test
+    public void aLostSessionIsReopenedOnTheNextCycle() throws Exception {
+        collector.collect();
+        propertyCollector.expireSession();
+
+        try {
+            collector.collect();
+            fail("expected the expired session to fail");
+        } catch (NotAuthenticated e) {
+        }
+
+        assertThat(names(collector.collect()), contains("ds2", "ds1"));
+        assertThat(connects, is(2));
+    }
+
+    @Test
+    public void nothingIsReadWithoutDatastores() throws Exception {
+        collector = new DatastoreCollector(session, new String[0]);
+
+        assertThat(collector.collect().size(), is(0));
+        assertThat(propertyCollector.getRequests().size(), is(0));
+    }
+
+    private List<String> names(List<DatastoreSummary> summaries) {
+        return summaries.stream().map(DatastoreSummary::getName).collect(Collectors.toList());
+    }
+}
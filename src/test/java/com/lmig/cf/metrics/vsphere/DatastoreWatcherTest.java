@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+
+public class DatastoreWatcherTest {
+
+    private FakePropertyCollector propertyCollector;
+    private ManagedObjectReference ds1;
+    private ManagedObjectReference ds2;
+    private int connects;
+    private List<String> changes;
+    private DatastoreWatcher watcher;
+
+    @Before
+    public void setUp() {
+        propertyCollector = new FakePropertyCollector();
+        ds1 = propertyCollector.addDatastore("ds1", 100, 50, 10L);
+        ds2 = propertyCollector.addDatastore("ds2", 200, 150, null);
+        propertyCollector.addDatastore("ds3", 300, 250, 30L);
+        VSphereSession session = new VSphereSession("fake", () -> {
+            connects++;
+            return propertyCollector.serviceInstance();
+        });
+        changes = new ArrayList<String>();
+        watcher = new DatastoreWatcher(session, new DatastoreCollector(session, new String[] { "ds2", "ds1" }), 60,
+                1, 1);
+        watcher.listen(summary -> changes.add(summary.getName() + "=" + summary.getFreeSpace()));
+    }
+
+    @Test
+    public void onlyChangedDatastoresAreReported() throws Exception {
+        watcher.poll();
+        assertThat(changes, containsInAnyOrder("ds1=50", "ds2=150"));
+        changes.clear();
+
+        watcher.poll();
+        assertThat(changes, is(empty()));
+
+        propertyCollector.setFreeSpace(ds2, 120);
+        watcher.poll();
+        assertThat(changes, contains("ds2=120"));
+        assertThat(names(watcher.getSummaries()), contains("ds2", "ds1"));
+    }
+
+    @Test
+    public void watchingResumesAfterTheSessionIsLost() throws Exception {
+        watcher.poll();
+        changes.clear();
+        propertyCollector.expireSession();
+
+        watcher.poll();
+        propertyCollector.setFreeSpace(ds1, 40);
+        watcher.poll();
+
+        assertThat(changes, contains("ds1=40"));
+        assertThat(connects, is(2));
+        assertThat(propertyCollector.getFiltersCreated(), is(2));
+    }
+
+    @Test
+    public void watchingResumesWhenTheVersionIsNoLongerValid() throws Exception {
+        watcher.poll();
+        changes.clear();
+        propertyCollector.forgetVersion();
+
+        watcher.poll();
+        watcher.poll();
+
+        assertThat(changes, is(empty()));
+        assertThat(connects, is(1));
+        assertThat(propertyCollector.getFiltersCreated(), is(2));
+    }
+
+    @Test
+    public void watchingResumesAfterAnUnexpectedFailure() throws Exception {
+        watcher.listen(summary -> {
+            throw new IllegalStateException("listener failed");
+        });
+        watcher.poll();
+
+        watcher.listen(summary -> changes.add(summary.getName() + "=" + summary.getFreeSpace()));
+        watcher.poll();
+
+        assertThat(changes, containsInAnyOrder("ds1=50", "ds2=150"));
+        assertThat(propertyCollector.getFiltersCreated(), is(2));
+    }
+
+    private List<String> names(List<DatastoreSummary> summaries) {
+        return summaries.stream().map(DatastoreSummary::getName).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MissingProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.InvalidCollectorVersion;
+import com.vmware.vim25.NotAuthenticated;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.PerformanceManager;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.ServiceInstance;
+
+/**
+ * A stand-in for the vCenter property collector that serves datastores held
+ * in memory and counts the round trips made to it. It also plays the part of
+ * the collectors it creates, keeping one filter and a log of changes to
+ * answer {@link #waitForUpdatesEx(String, WaitOptions)} with.
+ */
+public class FakePropertyCollector extends PropertyCollector {
+
+    private final Map<ManagedObjectReference, DatastoreSummary> datastores =
+            new LinkedHashMap<ManagedObjectReference, DatastoreSummary>();
+    private final List<PropertyFilterSpec[]> requests = new ArrayList<PropertyFilterSpec[]>();
+    private final List<ManagedObjectReference> changes = new ArrayList<ManagedObjectReference>();
+    private final List<ObjectContent> entities = new ArrayList<ObjectContent>();
+    private PerformanceManager performanceManager;
+    private List<ManagedObjectReference> watched;
+    private boolean expired;
+    private int filters;
+    private int nextId;
+
+    public FakePropertyCollector() {
+        super(null, reference("PropertyCollector", "propertyCollector"));
+    }
+
+    public static ManagedObjectReference reference(String type, String value) {
+        ManagedObjectReference reference = new ManagedObjectReference();
+        reference.setType(type);
+        reference.setVal(value);
+        return reference;
+    }
+
+    public ManagedObjectReference addDatastore(String name, long capacity, long freeSpace, Long uncommitted) {
+        ManagedObjectReference reference = reference("Datastore", "datastore-" + nextId++);
+        DatastoreSummary summary = new DatastoreSummary();
+        summary.setDatastore(reference);
+        summary.setName(name);
+        summary.setCapacity(capacity);
+        summary.setFreeSpace(freeSpace);
+        summary.setUncommitted(uncommitted);
+        datastores.put(reference, summary);
+        return reference;
+    }
+
+    public synchronized void setFreeSpace(ManagedObjectReference datastore, long freeSpace) {
+        DatastoreSummary previous = datastores.get(datastore);
+        DatastoreSummary summary = new DatastoreSummary();
+        summary.setDatastore(datastore);
+        summary.setName(previous.getName());
+        summary.setCapacity(previous.getCapacity());
+        summary.setFreeSpace(freeSpace);
+        summary.setUncommitted(previous.getUncommitted());
+        datastores.put(datastore, summary);
+        changes.add(datastore);
+    }
+
+    /**
+     * Fails the next call as if the session had expired.
+     */
+    public synchronized void expireSession() {
+        expired = true;
+    }
+
+    /**
+     * Drops the filter as if vCenter no longer knew the version in use.
+     */
+    public synchronized void forgetVersion() {
+        watched = null;
+    }
+
+    public int getFiltersCreated() {
+        return filters;
+    }
+
+    public ServiceInstance serviceInstance() {
+        PropertyCollector propertyCollector = this;
+        return new ServiceInstance((ServerConnection) null) {
+            @Override
+            public PropertyCollector getPropertyCollector() {
+                return propertyCollector;
+            }
+
+            @Override
+            public PerformanceManager getPerformanceManager() {
+                return performanceManager;
+            }
+
+            @Override
+            public Folder getRootFolder() {
+                return new Folder(null, reference("Folder", "group-d1"));
+            }
+        };
+    }
+
+    /**
+     * Adds a host or virtual machine. Virtual machines are given a power
+     * state.
+     */
+    public ManagedObjectReference addEntity(String type, String name, VirtualMachinePowerState powerState) {
+        ManagedObjectReference reference = reference(type, type.toLowerCase() + "-" + nextId++);
+        ObjectContent content = new ObjectContent();
+        content.setObj(reference);
+        DynamicProperty nameProperty = new DynamicProperty();
+        nameProperty.setName("name");
+        nameProperty.setVal(name);
+        DynamicProperty powerStateProperty = new DynamicProperty();
+        powerStateProperty.setName("runtime.powerState");
+        powerStateProperty.setVal(powerState);
+        content.setPropSet(powerState == null ? new DynamicProperty[] { nameProperty }
+                : new DynamicProperty[] { nameProperty, powerStateProperty });
+        entities.add(content);
+        return reference;
+    }
+
+    public void setPerformanceManager(PerformanceManager performanceManager) {
+        this.performanceManager = performanceManager;
+    }
+
+    public void removeDatastore(ManagedObjectReference datastore) {
+        datastores.remove(datastore);
+    }
+
+    public List<PropertyFilterSpec[]> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public synchronized ObjectContent[] retrieveProperties(PropertyFilterSpec[] specs) throws NotAuthenticated {
+        checkSession();
+        requests.add(specs);
+        List<ObjectContent> contents = new ArrayList<ObjectContent>();
+        for (PropertyFilterSpec spec : specs) {
+            for (PropertySpec properties : spec.getPropSet()) {
+                List<String> paths = Arrays.asList(properties.getPathSet());
+                for (ObjectSpec object : spec.getObjectSet()) {
+                    if (!properties.getType().equals(DatastoreCollector.DATASTORE)) {
+                        contents.addAll(entities(properties.getType()));
+                    } else if (Boolean.TRUE.equals(object.getSkip())) {
+                        for (DatastoreSummary summary : datastores.values()) {
+                            contents.add(content(summary.getDatastore(), paths, summary));
+                        }
+                    } else {
+                        contents.add(content(object.getObj(), paths, datastores.get(object.getObj())));
+                    }
+                }
+            }
+        }
+        return contents.toArray(new ObjectContent[contents.size()]);
+    }
+
+    @Override
+    public PropertyCollector createPropertyCollector() {
+        return this;
+    }
+
+    @Override
+    public void destroyPropertyCollector() {
+    }
+
+    @Override
+    public synchronized PropertyFilter createFilter(PropertyFilterSpec spec, boolean partialUpdates)
+            throws NotAuthenticated {
+        checkSession();
+        filters++;
+        watched = new ArrayList<ManagedObjectReference>();
+        for (ObjectSpec object : spec.getObjectSet()) {
+            watched.add(object.getObj());
+        }
+        return new PropertyFilter(null, reference("PropertyFilter", "filter-" + filters)) {
+            @Override
+            public void destroyPropertyFilter() {
+                watched = null;
+            }
+        };
+    }
+
+    /**
+     * Answers with every watched datastore for an empty version and with the
+     * datastores changed since the given version otherwise. Versions are
+     * positions in the change log.
+     */
+    @Override
+    public synchronized UpdateSet waitForUpdatesEx(String version, WaitOptions options)
+            throws InvalidCollectorVersion, RuntimeFault {
+        checkSession();
+        if (watched == null) {
+            throw new InvalidCollectorVersion();
+        }
+        int since = version.isEmpty() ? -1 : Integer.parseInt(version);
+        if (since == changes.size()) {
+            return null;
+        }
+        List<ObjectUpdate> updates = new ArrayList<ObjectUpdate>();
+        for (ManagedObjectReference datastore : watched) {
+            if (since < 0 || changes.subList(since, changes.size()).contains(datastore)) {
+                ObjectUpdate update = new ObjectUpdate();
+                update.setObj(datastore);
+                update.setKind(since < 0 ? ObjectUpdateKind.enter : ObjectUpdateKind.modify);
+                PropertyChange change = new PropertyChange();
+                change.setName(DatastoreCollector.SUMMARY);
+                change.setOp(PropertyChangeOp.assign);
+                change.setVal(datastores.get(datastore));
+                update.setChangeSet(new PropertyChange[] { change });
+                updates.add(update);
+            }
+        }
+        PropertyFilterUpdate filterUpdate = new PropertyFilterUpdate();
+        filterUpdate.setObjectSet(updates.toArray(new ObjectUpdate[updates.size()]));
+        UpdateSet updateSet = new UpdateSet();
+        updateSet.setVersion(String.valueOf(changes.size()));
+        updateSet.setFilterSet(new PropertyFilterUpdate[] { filterUpdate });
+        return updateSet;
+    }
+
+    private List<ObjectContent> entities(String type) {
+        List<ObjectContent> contents = new ArrayList<ObjectContent>();
+        for (ObjectContent content : entities) {
+            if (content.getObj().getType().equals(type)) {
+                contents.add(content);
+            }
+        }
+        return contents;
+    }
+
+    private void checkSession() throws NotAuthenticated {
+        if (expired) {
+            expired = false;
+            watched = null;
+            throw new NotAuthenticated();
+        }
+    }
+
+    static ObjectContent content(ManagedObjectReference reference, List<String> paths, DatastoreSummary summary) {
+        ObjectContent content = new ObjectContent();
+        content.setObj(reference);
+        if (summary == null) {
+            MissingProperty missing = new MissingProperty();
+            missing.setPath("");
+            content.setMissingSet(new MissingProperty[] { missing });
+            return content;
+        }
+        List<DynamicProperty> properties = new ArrayList<DynamicProperty>();
+        for (String path : paths) {
+            DynamicProperty property = new DynamicProperty();
+            property.setName(path);
+            property.setVal(path.equals("name") ? summary.getName() : summary);
+            properties.add(property);
+        }
+        content.setPropSet(properties.toArray(new DynamicProperty[properties.size()]));
+        return content;
+    }
+}
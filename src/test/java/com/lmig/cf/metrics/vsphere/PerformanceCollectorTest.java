@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015, Liberty Mutual Group
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.lmig.cf.metrics.vsphere;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lmig.cf.metrics.sharding.Shard;
+import com.lmig.cf.metrics.vsphere.PerformanceCollector.EntityPerformance;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSummaryType;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.PerformanceManager;
+
+public class PerformanceCollectorTest {
+
+    private FakePropertyCollector propertyCollector;
+    private AtomicInteger counterReads;
+    private List<PerfQuerySpec[]> queries;
+    private PerformanceCollector collector;
+
+    @Before
+    public void setUp() {
+        propertyCollector = new FakePropertyCollector();
+        propertyCollector.addEntity(PerformanceCollector.HOST, "esx-1", null);
+        propertyCollector.addEntity(PerformanceCollector.HOST, "esx-2", null);
+        propertyCollector.addEntity(PerformanceCollector.VIRTUAL_MACHINE, "vm-1", VirtualMachinePowerState.poweredOn);
+        propertyCollector.addEntity(PerformanceCollector.VIRTUAL_MACHINE, "vm-2", VirtualMachinePowerState.poweredOff);
+        propertyCollector.addEntity(PerformanceCollector.VIRTUAL_MACHINE, "vcenter",
+                VirtualMachinePowerState.poweredOn);
+        counterReads = new AtomicInteger();
+        queries = new ArrayList<PerfQuerySpec[]>();
+        propertyCollector.setPerformanceManager(new PerformanceManager(null, null) {
+            @Override
+            public PerfCounterInfo[] getPerfCounter() {
+                counterReads.incrementAndGet();
+                return new PerfCounterInfo[] { counter(1, "cpu", "ready", PerfSummaryType.summation),
+                        counter(2, "mem", "vmmemctl", PerfSummaryType.average),
+                        counter(3, "net", "usage", PerfSummaryType.average) };
+            }
+
+            @Override
+            public PerfEntityMetricBase[] queryPerf(PerfQuerySpec[] specs) {
+                synchronized (queries) {
+                    queries.add(specs);
+                }
+                PerfEntityMetricBase[] results = new PerfEntityMetricBase[specs.length];
+                for (int i = 0; i < specs.length; i++) {
+                    PerfEntityMetric metric = new PerfEntityMetric();
+                    metric.setEntity(specs[i].getEntity());
+                    List<PerfMetricSeries> series = new ArrayList<PerfMetricSeries>();
+                    for (PerfMetricId id : specs[i].getMetricId()) {
+                        PerfMetricIntSeries values = new PerfMetricIntSeries();
+                        values.setId(id);
+                        values.setValue(new long[] { id.getCounterId() * 100 });
+                        series.add(values);
+                    }
+                    metric.setValue(series.toArray(new PerfMetricSeries[series.size()]));
+                    results[i] = metric;
+                }
+                return results;
+            }
+        });
+        VSphereSession session = new VSphereSession("fake", () -> propertyCollector.serviceInstance());
+        collector = new PerformanceCollector(session, Shard.ALL, new String[] { "cpu.ready.summation",
+                "mem.vmmemctl.average", "disk.maxTotalLatency.latest" }, new String[] { "vm-" }, 2, 2);
+    }
+
+    @After
+    public void tearDown() {
+        collector.close();
+    }
+
+    @Test
+    public void hostsAndPoweredOnBoshVmsAreQueriedInBatches() throws Exception {
+        List<EntityPerformance> entities = collector.collect();
+
+        assertThat(entities.stream().map(EntityPerformance::getName).collect(Collectors.toList()),
+                contains("esx-1", "esx-2", "vm-1"));
+        assertThat(queries.size(), is(2));
+        assertThat(queries.stream().mapToInt(specs -> specs.length).sum(), is(3));
+        assertThat(queries.get(0)[0].getIntervalId(), is(PerformanceCollector.REAL_TIME_INTERVAL));
+    }
+
+    @Test
+    public void countersAreReportedByName() throws Exception {
+        EntityPerformance vm = collector.collect().get(2);
+
+        assertThat(vm.getType(), is("vm"));
+        assertThat(vm.getValues().keySet(), contains("cpu.ready.summation", "mem.vmmemctl.average"));
+        assertThat(vm.getValues().get("mem.vmmemctl.average"), is(200L));
+    }
+
+    @Test
+    public void counterIdsAreLookedUpOncePerSession() throws Exception {
+        collector.collect();
+        collector.collect();
+
+        assertThat(counterReads.get(), is(1));
+    }
+
+    private static PerfCounterInfo counter(int key, String group, String name, PerfSummaryType rollup) {
+        PerfCounterInfo counter = new PerfCounterInfo();
+        counter.setKey(key);
+        counter.setGroupInfo(description(group));
+        counter.setNameInfo(description(name));
+        counter.setRollupType(rollup);
+        return counter;
+    }
+
+    private static ElementDescription description(String key) {
+        ElementDescription description = new ElementDescription();
+        description.setKey(key);
+        return description;
+    }
+}